@@ -6,16 +6,20 @@ import org.reactome.server.analysis.core.data.AnalysisDataUtils;
 import org.reactome.server.analysis.core.importer.EntitiesBuilder;
 import org.reactome.server.analysis.core.importer.HierarchyBuilder;
 import org.reactome.server.analysis.core.importer.InteractorsBuilder;
+import org.reactome.server.analysis.core.importer.InternTable;
+import org.reactome.server.analysis.core.importer.SpeciesSegments;
 import org.reactome.server.analysis.core.model.*;
 import org.reactome.server.analysis.core.model.identifier.InteractorIdentifier;
 import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
 import org.reactome.server.analysis.core.util.FileUtil;
 import org.reactome.server.analysis.core.util.FormatUtils;
-import org.reactome.server.analysis.core.util.MapSet;
+import org.reactome.server.analysis.core.util.LongMapSet;
+import org.reactome.server.graph.service.GeneralService;
 import org.reactome.server.graph.service.InteractionsService;
 import org.reactome.server.graph.utils.ReactomeGraphCore;
 
-import java.util.Set;
+import java.io.IOException;
+import java.util.*;
 
 /**
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
@@ -25,6 +29,8 @@ public class Main {
     public static boolean TEST_MAIN_SPECIES;
     public static final String MAIN_SPECIES_TAX_ID = "9606";
     public static boolean VERBOSE;
+    //Number of species imported in parallel
+    public static int WORKERS = 4;
 
     public static void main(String[] args) throws JSAPException {
 
@@ -36,6 +42,14 @@ public class Main {
                         , new FlaggedOption("user", JSAP.STRING_PARSER, "neo4j", JSAP.NOT_REQUIRED, 'u', "user", "The neo4j user")
                         , new FlaggedOption("password", JSAP.STRING_PARSER, "neo4j", JSAP.REQUIRED, 'k', "password", "The neo4j password")
                         , new FlaggedOption("output", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'o', "output", "The file where the results are written to")
+                        , new FlaggedOption("workers", JSAP.INTEGER_PARSER, "4", JSAP.NOT_REQUIRED, 'w', "workers", "The number of species imported in parallel")
+                        , new FlaggedOption("batch", JSAP.INTEGER_PARSER, "500", JSAP.NOT_REQUIRED, 'b', "batch", "The number of accessions whose interactors are retrieved in a single query")
+                        , new FlaggedOption("cache", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'c', "cache", "The file where the retrieved interactors are cached between executions")
+                        , new FlaggedOption("segments", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 's', "segments", "The directory where the query results of each species are stored")
+                        , new QualifiedSwitch("incremental", JSAP.BOOLEAN_PARSER, null, JSAP.NOT_REQUIRED, 'i', "incremental", "Only queries again the species that changed since the stored segments were created (requires --segments)")
+                        , new QualifiedSwitch("compress", JSAP.BOOLEAN_PARSER, null, JSAP.NOT_REQUIRED, 'z', "compress", "Compresses the sections of the data file (cheaper to transfer but slower to load)")
+                        , new QualifiedSwitch("no-intern", JSAP.BOOLEAN_PARSER, null, JSAP.NOT_REQUIRED, 'n', "no-intern", "Does not keep a single instance of the reactions and main identifiers (to measure what it saves)")
+                        , new QualifiedSwitch("measure", JSAP.BOOLEAN_PARSER, null, JSAP.NOT_REQUIRED, 'm', "measure", "Loads the stored file to report the heap it takes (requires --verbose)")
                         , new QualifiedSwitch("test", JSAP.BOOLEAN_PARSER, null, JSAP.NOT_REQUIRED, 't', "test", "Test main species")
                         , new QualifiedSwitch("verbose", JSAP.BOOLEAN_PARSER, null, JSAP.NOT_REQUIRED, 'v', "verbose",  "Requests verbose output")
                 }
@@ -53,22 +67,43 @@ public class Main {
 
         TEST_MAIN_SPECIES = config.getBoolean("test");
         VERBOSE = config.getBoolean("verbose");
+        WORKERS = Math.max(1, config.getInt("workers"));
 
         String fileName = config.getString("output");
         FileUtil.checkFileName(fileName);
 
+        SpeciesSegments segments = null;
+        if (config.getString("segments") != null) {
+            segments = new SpeciesSegments(config.getString("segments"), config.getBoolean("incremental"));
+        } else if (config.getBoolean("incremental")) {
+            System.err.println("The incremental mode requires the segments directory (--segments)");
+            System.exit(1);
+        }
 
         Long start = System.currentTimeMillis();
         HierarchyBuilder hierarchyBuilder = new HierarchyBuilder();
+        hierarchyBuilder.setSegments(segments);
         hierarchyBuilder.build();
+        Long hierarchies = System.currentTimeMillis();
 
+        InternTable internTable = new InternTable(!config.getBoolean("no-intern"));
         EntitiesBuilder entitiesBuilder = new EntitiesBuilder();
+        entitiesBuilder.setSegments(segments);
+        entitiesBuilder.setInternTable(internTable);
         entitiesBuilder.build(hierarchyBuilder.getSpeciesMap());
+        Long entities = System.currentTimeMillis();
         entitiesBuilder.setOrthologous();
+        Long orthologies = System.currentTimeMillis();
 
         InteractionsService interactionsService = ReactomeGraphCore.getService(InteractionsService.class);
         InteractorsBuilder interactorsBuilder = new InteractorsBuilder();
+        interactorsBuilder.setBatchSize(config.getInt("batch"));
+        interactorsBuilder.setCacheFile(config.getString("cache"));
+        interactorsBuilder.setSegments(segments);
+        interactorsBuilder.setInternTable(internTable);
         interactorsBuilder.build(hierarchyBuilder.getHierarchies().keySet(), entitiesBuilder.getEntitiesContainer(), interactionsService);
+        if (segments != null) segments.store();
+        Long interactors = System.currentTimeMillis();
 
         calculateNumbersInHierarchyNodesForMainResources(hierarchyBuilder, entitiesBuilder, interactorsBuilder);
         Long built = System.currentTimeMillis();
@@ -78,15 +113,58 @@ public class Main {
                 entitiesBuilder.getEntitiesContainer(),
                 entitiesBuilder.getEntitiesMap(),
                 interactorsBuilder.getInteractorsMap());
-        AnalysisDataUtils.kryoSerialisation(container, fileName);
+        int dbVersion = ReactomeGraphCore.getService(GeneralService.class).getDBVersion();
+        AnalysisDataUtils.kryoSerialisation(container, fileName, dbVersion, config.getBoolean("compress"));
         Long end = System.currentTimeMillis();
 
         if(VERBOSE){
             System.out.println("Process summary:");
-            System.out.println("\tIntermediate data structure built in " + FormatUtils.getTimeFormatted(built-start));
+            System.out.println("\tIntermediate data structure built in " + FormatUtils.getTimeFormatted(built-start) + " (" + WORKERS + " worker(s))");
+            System.out.println("\t\tPathway hierarchies: " + FormatUtils.getTimeFormatted(hierarchies-start));
+            System.out.println("\t\tEntities: " + FormatUtils.getTimeFormatted(entities-hierarchies));
+            System.out.println("\t\tOrthologies: " + FormatUtils.getTimeFormatted(orthologies-entities));
+            System.out.println("\t\tInteractors: " + FormatUtils.getTimeFormatted(interactors-orthologies));
+            System.out.println("\t\tResource counters: " + FormatUtils.getTimeFormatted(built-interactors));
+            if (segments != null) System.out.println("\tSpecies segments: " + segments.getSummary());
+            System.out.println("\tInterned objects: " + internTable.getSummary());
             System.out.println("\tIntermediate data structure stored in " + FormatUtils.getTimeFormatted(end-built));
             System.out.println("\tTotal time: " + FormatUtils.getTimeFormatted(end-start));
+            System.out.println("\tEntities identifiers index: " + getIndexSummary(entitiesBuilder.getEntitiesMap()));
+            System.out.println("\tInteractors identifiers index: " + getIndexSummary(interactorsBuilder.getInteractorsMap()));
+            System.out.println("\tData file: " + getFileSummary(fileName));
+            if (config.getBoolean("measure")) System.out.println("\tLoaded data file: " + getLoadedHeapSummary(fileName));
+        }
+    }
+
+    private static String getFileSummary(String fileName) {
+        try {
+            return AnalysisDataUtils.getFileSummary(fileName);
+        } catch (IOException e) {
+            return "not available (" + e.getMessage() + ")";
+        }
+    }
+
+    private static String getLoadedHeapSummary(String fileName) {
+        try {
+            return FormatUtils.getSizeFormatted(AnalysisDataUtils.getLoadedHeap(fileName)) + " of heap";
+        } catch (Exception e) {
+            return "not available (" + e.getMessage() + ")";
+        }
+    }
+
+    /**
+     * Memory used by the index and average latency of the exact lookups for (up to) 100000 of its identifiers
+     */
+    private static String getIndexSummary(IdentifiersMap<?> map) {
+        List<String> identifiers = new ArrayList<>(map.keySet());
+        Collections.shuffle(identifiers, new Random(0));
+        identifiers = identifiers.subList(0, Math.min(100000, identifiers.size()));
+        long start = System.nanoTime();
+        for (String identifier : identifiers) {
+            map.get(identifier);
         }
+        double latency = identifiers.isEmpty() ? 0 : (System.nanoTime() - start) / 1000.0 / identifiers.size();
+        return String.format("%d identifiers in %s (average lookup %.2f µs)", map.size(), FormatUtils.getSizeFormatted(map.getIndexSize()), latency);
     }
 
 
@@ -94,19 +172,20 @@ public class Main {
                                                                          EntitiesBuilder entitiesBuilder,
                                                                          InteractorsBuilder interactorsBuilder) {
 
-        MapSet<Long, PathwayNode> pathwayLocation = hierarchyBuilder.getPathwayLocation();
+        LongMapSet<PathwayNode> pathwayLocation = hierarchyBuilder.getPathwayLocation();
         EntitiesContainer entitiesContainer = entitiesBuilder.getEntitiesContainer();
         IdentifiersMap<InteractorNode> interactorsMap = interactorsBuilder.getInteractorsMap();
+        DenseIds denseIds = new DenseIds(entitiesContainer, interactorsMap);
 
         for (EntityNode physicalEntityNode : entitiesContainer.getAllNodes()) {
             MainIdentifier mainIdentifier = physicalEntityNode.getIdentifier();
             if (mainIdentifier != null) {
-                for (Long pathwayId : physicalEntityNode.getPathwayIds()) {
+                for (long pathwayId : physicalEntityNode.getPathwayIds()) {
                     Set<PathwayNode> pNodes = pathwayLocation.getElements(pathwayId);
                     if (pNodes == null) continue;
                     for (PathwayNode pathwayNode : pNodes) {
                         Set<AnalysisReaction> reactions = physicalEntityNode.getReactions(pathwayId);
-                        pathwayNode.process(mainIdentifier, reactions);
+                        pathwayNode.process(mainIdentifier, denseIds.getIdentifierId(mainIdentifier.getValue().getId()), reactions);
                     }
                 }
             }
@@ -114,13 +193,14 @@ public class Main {
 
         for (InteractorNode interactorNode : interactorsMap.values()) {
             InteractorIdentifier identifier = new InteractorIdentifier(interactorNode.getAccession());
-            MapSet<Long, AnalysisReaction> pathwayReactions = interactorNode.getPathwayReactions();
-            for (Long pathwayId : pathwayReactions.keySet()) {
+            int id = denseIds.getIdentifierId(identifier.getMapsTo());
+            LongMapSet<AnalysisReaction> pathwayReactions = interactorNode.getPathwayReactions();
+            for (long pathwayId : pathwayReactions.keys()) {
                 for (MainIdentifier mainIdentifier : interactorNode.getInteractsWith(pathwayId)) {
                     Set<AnalysisReaction> reactions = pathwayReactions.getElements(pathwayId);
                     Set<PathwayNode> pNodes = pathwayLocation.getElements(pathwayId);
                     for (PathwayNode pNode : pNodes) {
-                        pNode.processInteractor(identifier, mainIdentifier, reactions);
+                        pNode.processInteractor(identifier, id, mainIdentifier, reactions);
                     }
                 }
             }
@@ -1,11 +1,13 @@
 package org.reactome.server.analysis.core.data;
 
 import org.reactome.server.analysis.core.model.*;
+import org.reactome.server.analysis.core.util.FormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -16,12 +18,24 @@ import java.util.Map;
  * <p/>
  * *** IMPORTANT ***
  * Please note that every time that getHierarchiesData method is called, it retrieves a
- * clone of the HierarchiesData contained in DataContainer so the changes in it doesn't
- * happen to other instances of HierarchiesData
+ * new result overlay on top of the hierarchies contained in DataContainer so the changes
+ * in it doesn't happen to other instances of HierarchiesData
  * <p/>
  * *** NOTE ****
  * AnalysisData is the object to be used in the code, PLEASE avoid using the DataContainer
  * directly in the analysis (unless there is a good reason).
+ * <p/>
+ * *** LOADING ***
+ * The sections of the file are loaded in parallel and the pathways and entities are available
+ * before the interactors (see isReady). Requests not including the interactors can therefore be
+ * served meanwhile, while getInteractorsMap waits until the interactors have been loaded (or returns null
+ * if they could not be loaded, so the analysis including them cannot be performed)
+ * <p/>
+ * *** RELOADING ***
+ * A new file can be loaded while the current one is in use (see reload). The new container is
+ * completely loaded in the background and replaces the current one once the HierarchiesData pool
+ * has been refilled with its objects. The analysis started before keep using the previous one
+ * (see getDataContainer), that is released by the garbage collector when they finish
  *
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
  */
@@ -32,9 +46,22 @@ public class AnalysisData {
 
     static final Object LOADER_SEMAPHORE = new Object();
 
-    private static DataContainer container = null;
+    //Fraction of the maximum heap that has to remain free once a new container is loaded next to the current one
+    private static final double RELOAD_MIN_HEADROOM = 0.1;
+
+    public enum DataSection {
+        //The pathway hierarchies and the entities (needed by any analysis)
+        ENTITIES,
+        //The interactors (only needed when they are included in the analysis)
+        INTERACTORS
+    }
+
+    private static volatile DataContainer container = null;
+    //Heap used by the current container, measured when it was loaded (0 if unknown). A new one has to fit next to it
+    private static volatile long containerFootprint = 0L;
 
     private IntermediateDataLoader intermediateDataLoader = null;
+    private Reloader reloader = null;
 
     private DataContainer getContainer() {
         if (container == null) {
@@ -47,6 +74,16 @@ public class AnalysisData {
         return container;
     }
 
+    /**
+     * Returns the container in use. An analysis keeps the returned object during its whole execution, so it
+     * is not affected when a new file is loaded meanwhile (this is the reason to use the container directly)
+     *
+     * @return the container in use
+     */
+    public DataContainer getDataContainer() {
+        return this.getContainer();
+    }
+
     /**
      * Returns the physical entity container with all the complexes, sets and proteins in Reactome
      *
@@ -71,11 +108,47 @@ public class AnalysisData {
      * @return a map from identifier to [resource, [InteractorNode]]
      */
     public IdentifiersMap<InteractorNode> getInteractorsMap() {
-        return getContainer().getInteractorsMap();
+        return this.getInteractorsMap(this.getContainer());
+    }
+
+    /**
+     * Returns the interactors of the given container (waiting for them to be loaded if needed)
+     *
+     * @param container the container used by the analysis (see getDataContainer)
+     * @return a map from identifier to [resource, [InteractorNode]] or null if the interactors could not be loaded
+     */
+    public IdentifiersMap<InteractorNode> getInteractorsMap(DataContainer container) {
+        if (container == null) return null;
+        if (container.getInteractorsMap() == null) logger.info("Waiting for the interactors to be loaded...");
+        try {
+            IdentifiersMap<InteractorNode> interactorsMap = container.awaitInteractorsMap();
+            if (interactorsMap == null) logger.error("The interactors have not been loaded");
+            return interactorsMap;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the given section of the data has been loaded (it does not block)
+     *
+     * @param section the section of the data
+     * @return true if the section has been loaded and can be used
+     */
+    public boolean isReady(DataSection section) {
+        DataContainer container = AnalysisData.container;
+        if (container == null) return false;
+        switch (section) {
+            case INTERACTORS:
+                return container.getInteractorsMap() != null;
+            default:
+                return true;
+        }
     }
 
     public Map<SpeciesNode, PathwayHierarchy> getPathwayHierarchies() {
-        return this.getContainer().getHierarchiesData().getPathwayHierarchies();
+        return this.getContainer().getPathwayHierarchies();
     }
 
     /**
@@ -89,17 +162,66 @@ public class AnalysisData {
             intermediateDataLoader = new IntermediateDataLoader(fileName);
             intermediateDataLoader.start();
         } else {
-            logger.warn("Attempt to load the content file when previously loaded");
+            this.reload(fileName);
+        }
+    }
+
+    /**
+     * Loads a new file in the background and replaces the current container once it is ready (the service
+     * keeps working with the current one meanwhile). The reload does not start when there is not enough heap
+     * to keep both containers at the same time (or the heap used by the current one is unknown)
+     *
+     * @param fileName the binary file containing the data structures for the analysis
+     * @return true if the reload has started
+     */
+    public synchronized boolean reload(String fileName) {
+        if (container == null || (intermediateDataLoader != null && intermediateDataLoader.isAlive())) {
+            logger.warn("The current file has not been loaded yet, so it cannot be replaced");
+            return false;
+        }
+        if (reloader != null && reloader.isAlive()) {
+            logger.warn(String.format("%s is still being loaded, so %s cannot be loaded now", reloader.fileName, fileName));
+            return false;
         }
+        if (!hasHeapHeadroom(fileName)) return false;
+        reloader = new Reloader(fileName);
+        reloader.start();
+        return true;
+    }
+
+    /**
+     * @return true if a new file is being loaded to replace the current one
+     */
+    public synchronized boolean isReloading() {
+        return reloader != null && reloader.isAlive();
+    }
+
+    //The new container has to fit in the heap next to the current one (it is similar in size for a new release)
+    private boolean hasHeapHeadroom(String fileName) {
+        if (containerFootprint == 0) {
+            logger.error(String.format("The heap used by the current data is unknown, so it cannot be checked whether %s fits next to it", fileName));
+            return false;
+        }
+        long max = Runtime.getRuntime().maxMemory();
+        long available = max - AnalysisDataUtils.getRetainedHeap();
+        long required = containerFootprint + (long) (max * RELOAD_MIN_HEADROOM);
+        if (available < required) {
+            logger.error(String.format("Not enough heap to load %s next to the current data (%s available, %s required)", fileName,
+                    FormatUtils.getSizeFormatted(available), FormatUtils.getSizeFormatted(required)));
+            return false;
+        }
+        return true;
     }
 
     public void interrupt(){
         if(intermediateDataLoader!=null && intermediateDataLoader.isAlive()){
             intermediateDataLoader.interrupt();
         }
+        if (reloader != null && reloader.isAlive()) {
+            reloader.interrupt();
+        }
         HierarchiesDataProducer.interruptProducer();
         container = null;
-        System.gc();
     }
 
     class IntermediateDataLoader extends Thread {
@@ -113,19 +235,63 @@ public class AnalysisData {
 
         @Override
         public void run() {
-            synchronized (LOADER_SEMAPHORE) {
-                try {
-                    container = AnalysisDataUtils.getDataContainer(fileName);
-                    //Note: HierarchiesDataProducer.getHierarchiesData is also sync with LOADER_SEMAPHORE
-                    HierarchiesDataProducer.initializeProducer(container);
-                } catch (InterruptedException e) {
-                    logger.warn("The thread has been interrupted");
-                } catch (Exception e){
-                    logger.error(e.getMessage());
-                } finally {
-                    LOADER_SEMAPHORE.notifyAll();
-                    Thread.currentThread().interrupt();
+            DataContainerLoader loader = null;
+            DataContainer data = null;
+            try {
+                synchronized (LOADER_SEMAPHORE) {
+                    try {
+                        loader = new DataContainerLoader(fileName);
+                        data = loader.getContainer();
+                        container = data;
+                        //Note: HierarchiesDataProducer.getHierarchiesData is also sync with LOADER_SEMAPHORE
+                        HierarchiesDataProducer.initializeProducer(data);
+                    } finally {
+                        LOADER_SEMAPHORE.notifyAll();
+                    }
+                }
+                //The analysis not including the interactors can be performed meanwhile
+                loader.loadInteractors(data);
+                containerFootprint = loader.getHeapFootprint();
+            } catch (InterruptedException e) {
+                logger.warn("The thread has been interrupted");
+            } catch (Exception e){
+                if (data == null) logger.error(e.getMessage());
+                else logger.error("The interactors could not be loaded (the analysis including them are rejected): " + e.getMessage());
+            } finally {
+                if (loader != null) loader.close();
+                //Does nothing if the interactors have been loaded, otherwise the analysis waiting for them are released
+                if (data != null) data.setInteractorsFailed();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    class Reloader extends Thread {
+
+        private String fileName;
+
+        Reloader(String fileName) {
+            super("IntermediateDataReloader");
+            this.fileName = fileName;
+        }
+
+        @Override
+        public void run() {
+            try (DataContainerLoader loader = new DataContainerLoader(fileName)) {
+                DataContainer data = loader.getContainer();
+                loader.loadInteractors(data);
+                List<HierarchiesData> warmUp = HierarchiesDataProducer.warmUp(data);
+                if (isInterrupted()) throw new InterruptedException();
+                synchronized (LOADER_SEMAPHORE) {
+                    container = data;
+                    HierarchiesDataProducer.replaceData(data, warmUp);
                 }
+                containerFootprint = loader.getHeapFootprint();
+                logger.info(String.format("%s loaded and in use (the analysis already running finish with the previous data)", fileName));
+            } catch (InterruptedException e) {
+                logger.warn(String.format("Loading %s has been interrupted. The current data is kept", fileName));
+            } catch (Exception e) {
+                logger.error(String.format("%s could not be loaded. The current data is kept: %s", fileName, e.getMessage()));
             }
         }
     }
@@ -10,9 +10,12 @@ import org.reactome.server.analysis.core.util.FormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.io.OutputStream;
 
 /**
@@ -21,18 +24,81 @@ import java.io.OutputStream;
 public class AnalysisDataUtils {
     private static Logger logger = LoggerFactory.getLogger("analysisDataLogger");
 
+    //Sections of the data file (see DataFileReader for the layout)
+    static final String PATHWAYS_SECTION = "pathways";
+    static final String ENTITIES_SECTION = "entities";
+    static final String INTERACTORS_SECTION = "interactors";
+    static final String SHARED_SECTION = "shared"; //Reactions and main identifiers (see SharedObjectsSerializer)
+    static final String HIERARCHIES_SECTION = "hierarchies";
+    static final String ENTITIES_INDEX_SECTION = "entitiesIndex";
+    static final String ENTITY_PATHWAYS_SECTION = "entityPathways";
+    static final String INTERACTORS_INDEX_SECTION = "interactorsIndex";
+
+    /**
+     * Loads the whole container (interactors included). See DataContainerLoader to use the container
+     * before the interactors are loaded
+     */
     static DataContainer getDataContainer(String fileName) throws Exception {
-        String clazz = DataContainer.class.getSimpleName();
-        logger.info(String.format("%s: Loading %s file...", clazz, fileName));
-        long start = System.currentTimeMillis();
-        DataContainer container = (DataContainer) AnalysisDataUtils.read(fileName);
-        if(container == null){
-            throw new Exception(String.format("%s: It was not possible to load %s", clazz, fileName));
+        try (DataContainerLoader loader = new DataContainerLoader(fileName)) {
+            DataContainer container = loader.getContainer();
+            loader.loadInteractors(container);
+            return container;
         }
-        container.initialize();
-        long end = System.currentTimeMillis();
-        logger.info(String.format("Loading %s file >> Done (%s)", DataContainer.class.getSimpleName(), FormatUtils.getTimeFormatted(end - start)));
-        return container;
+    }
+
+    /**
+     * Heap taken by the container loaded from the file (interactors included). Collections are forced to
+     * measure it, so it is meant for the importer report (Main --measure) and never for the service
+     */
+    public static long getLoadedHeap(String fileName) throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        DataContainer container = getDataContainer(fileName);
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        //The container has to be reachable until the second measurement
+        logger.trace(String.format("%s measured with %d entities identifiers", fileName, container.getEntitiesMap().size()));
+        return Math.max(0, after - before);
+    }
+
+    /**
+     * @return the size of the file and its main sections as stored (compressed, if so)
+     */
+    public static String getFileSummary(String fileName) throws IOException {
+        StringBuilder sb = new StringBuilder(FormatUtils.getSizeFormatted(new File(fileName).length()));
+        try (DataFileReader reader = new DataFileReader(fileName)) {
+            String sep = " (";
+            for (String section : new String[]{PATHWAYS_SECTION, ENTITIES_SECTION, INTERACTORS_SECTION, SHARED_SECTION}) {
+                if (!reader.hasSection(section)) continue;
+                sb.append(sep).append(section).append(" ").append(FormatUtils.getSizeFormatted(reader.getStoredSectionSize(section)));
+                sep = ", ";
+            }
+            if (!sep.equals(" (")) sb.append(")");
+        }
+        return sb.toString();
+    }
+
+    //Heap in use, including the garbage not collected yet (a collection is NOT forced, so it is an upper bound)
+    static long getUsedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Heap taken by the live objects as seen by the last collections: the usage of the old generation pools
+     * after their last collection (their current usage if they have not been collected yet). The young pools
+     * are not taken into account since what survives there is promoted or collected soon
+     */
+    static long getRetainedHeap() {
+        long rtn = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            //Only the old generation pools support usage thresholds
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()) continue;
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null || usage.getUsed() == 0) usage = pool.getUsage();
+            rtn += usage.getUsed();
+        }
+        return rtn;
     }
 
     public static <T> T kryoCopy(T object) {
@@ -46,39 +112,91 @@ public class AnalysisDataUtils {
     }
 
     public static void kryoSerialisation(DataContainer container, String fileName) {
+        kryoSerialisation(container, fileName, 0, false);
+    }
+
+    /**
+     * Stores the container in the sectioned data file
+     *
+     * @param dbVersion the version of the graph database the container comes from (kept in the file header)
+     * @param compress  true to deflate the sections (smaller file to transfer, but the sections are inflated
+     *                  into memory when loading instead of being mapped in place)
+     */
+    public static void kryoSerialisation(DataContainer container, String fileName, int dbVersion, boolean compress) {
         String msgPrefix = String.format("\rStoring %s data into file %s", container.getClass().getSimpleName(), fileName);
         if (Main.VERBOSE) System.out.print(msgPrefix + " >> Please wait...");
-        try {
+        try (DataFileWriter writer = new DataFileWriter(fileName, dbVersion, compress)) {
             Kryo kryo = new Kryo();
             kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
-            OutputStream file = new FileOutputStream(fileName);
-            Output output = new Output(file);
-            kryo.writeClassAndObject(output, container);
-            output.close();
-            container.initialize(); //At the end the data structure remains the same
-            if (Main.VERBOSE) System.out.println(msgPrefix + " >> Done.");
-        } catch (FileNotFoundException e) {
+            //Each one of these sections is a Kryo graph on its own, so they can be deserialised in parallel
+            //(the pathway locations point to the pathway nodes so they are kept in the same graph)
+            write(writer, kryo, PATHWAYS_SECTION, new Object[]{container.getPathwayHierarchies(), container.getPathwayLocation()});
+            //The reactions and main identifiers of the entities and interactors are stored once in the shared section
+            SharedObjectsSerializer shared = new SharedObjectsSerializer();
+            Kryo sharing = new Kryo();
+            sharing.setInstantiatorStrategy(new StdInstantiatorStrategy());
+            shared.register(sharing);
+            //The pathways of the entities are in their own section, only their reactions table is in the graph
+            write(writer, sharing, ENTITIES_SECTION, new Object[]{container.getEntitiesContainer(), container.getEntitiesMap(), container.getEntityPathways().getReactions()});
+            write(writer, sharing, INTERACTORS_SECTION, container.getInteractorsMap());
+            write(writer, kryo, SHARED_SECTION, shared.getObjects());
+
+            OutputStream os = writer.startSection(HIERARCHIES_SECTION);
+            container.writeCompiledHierarchies(os);
+            os.close();
+            writer.endSection();
+
+            os = writer.startSection(ENTITIES_INDEX_SECTION);
+            container.writeEntitiesIndex(os);
+            os.close();
+            writer.endSection();
+
+            os = writer.startSection(ENTITY_PATHWAYS_SECTION);
+            container.writeEntityPathways(os);
+            os.close();
+            writer.endSection();
+
+            os = writer.startSection(INTERACTORS_INDEX_SECTION);
+            container.writeInteractorsIndex(os);
+            os.close();
+            writer.endSection();
+
+            writer.finish();
+        } catch (IOException e) {
             if (Main.VERBOSE) System.err.println(msgPrefix + " >> An error has occurred: " + e.getMessage());
             e.printStackTrace();
+            return;
         }
+        container.initialize(); //At the end the data structure remains the same
+        if (Main.VERBOSE) System.out.println(msgPrefix + " >> Done.");
     }
 
-    private static Object read(String fileName) {
-        Object rtn = null;
-        Input input = null;
-        try {
-            System.gc();
-            Kryo kryo = new Kryo();
-            kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
-            input = new Input(new FileInputStream(fileName));
-            rtn = kryo.readClassAndObject(input);
-        } catch (RuntimeException ex){
-            logger.error(String.format("There was a problem loading the intermediate data file. %s", ex.getMessage()));
-        } catch (FileNotFoundException e) {
-            logger.error(String.format("%s has not been found. Please check the settings", fileName));
-        } finally {
-            if(input!=null) input.close();;
+    private static void write(DataFileWriter writer, Kryo kryo, String section, Object object) throws IOException {
+        Output output = new Output(writer.startSection(section));
+        kryo.writeClassAndObject(output, object);
+        output.close();
+        writer.endSection();
+    }
+
+    /**
+     * Deserialises a section of the data file (a new Kryo instance is used every time, so different
+     * sections can be read at the same time)
+     */
+    static Object read(DataFileReader reader, String section) throws IOException {
+        return read(reader, section, null);
+    }
+
+    /**
+     * @param shared the objects of the shared section (null if the section was written without them)
+     */
+    static Object read(DataFileReader reader, String section, SharedObjectsSerializer shared) throws IOException {
+        Kryo kryo = new Kryo();
+        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+        if (shared != null) shared.register(kryo);
+        try (Input input = new Input(reader.getSectionStream(section), 1 << 16)) {
+            return kryo.readClassAndObject(input);
+        } catch (RuntimeException ex) {
+            throw new IOException(String.format("There was a problem loading the section %s of the intermediate data file. %s", section, ex.getMessage()), ex);
         }
-        return rtn;
     }
 }
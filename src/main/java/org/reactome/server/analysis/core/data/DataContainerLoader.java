@@ -0,0 +1,197 @@
+package org.reactome.server.analysis.core.data;
+
+import org.reactome.server.analysis.core.model.*;
+import org.reactome.server.analysis.core.util.FormatUtils;
+import org.reactome.server.analysis.core.util.LongMapSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Loads the sections of the data file in parallel. The pathways, the entities and the interactors are
+ * stored in different sections (each one with its own Kryo graph, the reactions and main identifiers they
+ * share are read first from the shared section), so they are deserialised at the same
+ * time and the container can be used without the interactors as soon as the pathways and the entities
+ * are ready (getContainer). The interactors are added afterwards (loadInteractors).
+ * <p>
+ * The compiled hierarchies, the identifiers indexes and the pathways (and reactions) of the entities are
+ * used in place from the mapped sections. The interactors still keep their pathways in their Kryo graph.
+ * <p>
+ * Files written before the pathways of the entities had their own section (including the ones containing
+ * the whole container in a single section) cannot be loaded and have to be regenerated
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+class DataContainerLoader implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger("analysisDataLogger");
+
+    private static final String CLAZZ = DataContainer.class.getSimpleName();
+
+    private final String fileName;
+    private final DataFileReader reader;
+    private final ExecutorService executor;
+    private final long start;
+    private final long heap;
+    private long footprint = 0L;
+
+    private Future<SharedObjectsSerializer> shared;
+    private Future<Object[]> pathways;
+    private Future<Object[]> entities;
+    private Future<Object[]> interactors;
+
+    DataContainerLoader(String fileName) throws IOException {
+        logger.info(String.format("%s: Loading %s file...", CLAZZ, fileName));
+        this.fileName = fileName;
+        this.start = System.currentTimeMillis();
+        this.heap = AnalysisDataUtils.getUsedHeap();
+        this.reader = new DataFileReader(fileName);
+        logger.info(String.format("%s: data file version %d built %s from graph database version %d", CLAZZ, reader.getVersion(),
+                reader.getBuildTimestamp() > 0 ? new Date(reader.getBuildTimestamp()).toString() : "(unknown date)", reader.getDbVersion()));
+
+        if (!reader.hasSection(AnalysisDataUtils.ENTITY_PATHWAYS_SECTION)) {
+            reader.close();
+            throw new IOException(String.format("%s has been written by a previous version (the pathways of the entities are not in their own section) and has to be regenerated", fileName));
+        }
+
+        this.executor = Executors.newFixedThreadPool(4, new ThreadFactory() {
+            private int n = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, DataContainerLoader.class.getSimpleName() + "-" + n++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        //Needed by the entities and the interactors
+        this.shared = executor.submit(new Callable<SharedObjectsSerializer>() {
+            @Override
+            public SharedObjectsSerializer call() throws Exception {
+                if (!reader.hasSection(AnalysisDataUtils.SHARED_SECTION)) return null;
+                return new SharedObjectsSerializer((Object[]) AnalysisDataUtils.read(reader, AnalysisDataUtils.SHARED_SECTION));
+            }
+        });
+        this.pathways = executor.submit(new Callable<Object[]>() {
+            @Override
+            public Object[] call() throws Exception {
+                long start = System.currentTimeMillis();
+                Object[] graph = (Object[]) AnalysisDataUtils.read(reader, AnalysisDataUtils.PATHWAYS_SECTION);
+                ByteBuffer compiledHierarchies = reader.getSection(AnalysisDataUtils.HIERARCHIES_SECTION);
+                logSection("Pathways", start);
+                return new Object[]{graph[0], graph[1], compiledHierarchies};
+            }
+        });
+        this.entities = executor.submit(new Callable<Object[]>() {
+            @Override
+            public Object[] call() throws Exception {
+                long start = System.currentTimeMillis();
+                Object[] graph = (Object[]) AnalysisDataUtils.read(reader, AnalysisDataUtils.ENTITIES_SECTION, get(shared));
+                ByteBuffer entitiesIndex = reader.getSection(AnalysisDataUtils.ENTITIES_INDEX_SECTION);
+                ByteBuffer entityPathways = reader.getSection(AnalysisDataUtils.ENTITY_PATHWAYS_SECTION);
+                ((EntitiesContainer) graph[0]).setOrthologiesCrossLinks(Runtime.getRuntime().availableProcessors());
+                logSection("Entities", start);
+                return new Object[]{graph[0], graph[1], entitiesIndex, entityPathways, graph[2]};
+            }
+        });
+        this.interactors = executor.submit(new Callable<Object[]>() {
+            @Override
+            public Object[] call() throws Exception {
+                long start = System.currentTimeMillis();
+                Object interactorsMap = AnalysisDataUtils.read(reader, AnalysisDataUtils.INTERACTORS_SECTION, get(shared));
+                ByteBuffer interactorsIndex = reader.getSection(AnalysisDataUtils.INTERACTORS_INDEX_SECTION);
+                logSection("Interactors", start);
+                return new Object[]{interactorsMap, interactorsIndex};
+            }
+        });
+        this.executor.shutdown();
+    }
+
+    /**
+     * Waits for the pathways and the entities and returns the container WITHOUT the interactors
+     *
+     * @return the container ready to run the analysis not including the interactors
+     */
+    @SuppressWarnings("unchecked")
+    DataContainer getContainer() throws Exception {
+        Object[] pathways = get(this.pathways);
+        Object[] entities = get(this.entities);
+        DataContainer container = new DataContainer((Map<SpeciesNode, PathwayHierarchy>) pathways[0],
+                (LongMapSet<PathwayNode>) pathways[1],
+                (ByteBuffer) pathways[2],
+                (EntitiesContainer) entities[0],
+                (IdentifiersMap<EntityNode>) entities[1],
+                (ByteBuffer) entities[2],
+                (ByteBuffer) entities[3],
+                (AnalysisReaction[]) entities[4]);
+        logger.info(String.format("Identifiers index mapped: %d entities identifiers (%s)",
+                container.getEntitiesMap().size(), FormatUtils.getSizeFormatted(container.getEntitiesMap().getIndexSize())));
+        logger.info(String.format("Entity pathways mapped: %d entities in %d pathway entries (%s)", container.getEntityPathways().size(),
+                container.getEntityPathways().getEntriesCount(), FormatUtils.getSizeFormatted(container.getEntityPathways().getSize())));
+        logger.info(String.format("%s ready for the analysis without interactors (%s)", CLAZZ, FormatUtils.getTimeFormatted(System.currentTimeMillis() - start)));
+        return container;
+    }
+
+    /**
+     * Waits for the interactors and adds them to the container
+     *
+     * @param container the container returned by getContainer
+     */
+    @SuppressWarnings("unchecked")
+    void loadInteractors(DataContainer container) throws Exception {
+        Object[] interactors = get(this.interactors);
+        container.setInteractorsMap((IdentifiersMap<InteractorNode>) interactors[0], (ByteBuffer) interactors[1]);
+        logger.info(String.format("Identifiers index mapped: %d interactors identifiers (%s)",
+                container.getInteractorsMap().size(), FormatUtils.getSizeFormatted(container.getInteractorsMap().getIndexSize())));
+        logger.info(String.format("Loading %s file >> Done (%s)", CLAZZ, FormatUtils.getTimeFormatted(System.currentTimeMillis() - start)));
+        footprint = Math.max(0, AnalysisDataUtils.getUsedHeap() - heap);
+        logger.info(String.format("%s heap footprint (upper bound): %s", CLAZZ, FormatUtils.getSizeFormatted(footprint)));
+    }
+
+    /**
+     * @return the heap used by the container, including the garbage of the load (an upper bound that is
+     * available once the interactors are loaded)
+     */
+    long getHeapFootprint() {
+        return footprint;
+    }
+
+    /**
+     * Stops the sections still being loaded (if any) and closes the data file
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            reader.close();
+        } catch (IOException e) {
+            logger.warn(String.format("%s could not be closed: %s", fileName, e.getMessage()));
+        }
+    }
+
+    private void logSection(String name, long start) {
+        logger.info(String.format("%s: %s section loaded in %s (%s)", CLAZZ, name,
+                FormatUtils.getTimeFormatted(System.currentTimeMillis() - start), Thread.currentThread().getName()));
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.reactome.server.analysis.core.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the intermediate data file memory-mapping its sections. Sections read with getSection (the compiled
+ * hierarchies, the indexes and the pathways of the entities) are used in place (off-heap) instead of being
+ * copied into the heap and compressed ones are inflated into direct buffers instead. Sections read with
+ * getSectionStream (the Kryo graphs) are still deserialised into the heap; the file only allows doing it in
+ * parallel, one section at a time.
+ * <p>
+ * File layout (big-endian):
+ * <pre>
+ *   int  MAGIC
+ *   int  VERSION
+ *   long directory offset
+ *   long build timestamp (ms)                      (since version 2)
+ *   int  graph database version                    (since version 2)
+ *   int  flags (reserved)                          (since version 2)
+ *   ...  sections (each one starting at a multiple of 8)
+ *   int  number of sections
+ *   n x [UTF name, long offset, long length]       (version 1 directory)
+ *   n x [UTF name, long offset, long length, long raw length, int CRC32, byte codec]   (version 2 directory)
+ * </pre>
+ * The length and the CRC32 refer to the bytes stored in the file, the raw length to the content of the section
+ * once inflated (codec 1 is deflate). The header and the directory are validated when the reader is created, so
+ * a truncated file fails straight away, while the CRC32 of a section is verified when the section is mapped or
+ * before its stream is returned, so a corrupted section is never handed to the deserialiser
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class DataFileReader implements Closeable {
+
+    static final int MAGIC = 0x52414446; //"RADF" (Reactome Analysis Data File)
+    static final int VERSION = 2;
+
+    static final byte CODEC_NONE = 0;
+    static final byte CODEC_DEFLATE = 1;
+
+    //Maximum size of each mapped chunk when a section is read as a stream
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    private String fileName;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private Map<String, Section> sections = new LinkedHashMap<>();
+
+    private int version;
+    private long buildTimestamp = 0L;
+    private int dbVersion = 0;
+
+    public DataFileReader(String fileName) throws IOException {
+        this.fileName = fileName;
+        this.file = new RandomAccessFile(fileName, "r");
+        this.channel = file.getChannel();
+        try {
+            readHeader();
+        } catch (EOFException e) {
+            close();
+            throw new IOException(fileName + " is truncated", e);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        if (!isDataFile(file)) throw new IOException(fileName + " is not a sectioned analysis data file");
+        version = file.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException(String.format("%s has version %d but up to %d is supported", fileName, version, VERSION));
+        }
+        long directory = file.readLong();
+        if (version > 1) {
+            buildTimestamp = file.readLong();
+            dbVersion = file.readInt();
+            file.readInt(); //flags
+        }
+        long headerEnd = file.getFilePointer();
+        if (directory < headerEnd || directory + 4 > file.length()) {
+            throw new IOException(String.format("%s is truncated or corrupted (directory offset %d for %d bytes)", fileName, directory, file.length()));
+        }
+        file.seek(directory);
+        int n = file.readInt();
+        for (int i = 0; i < n; i++) {
+            Section section = new Section();
+            String name = file.readUTF();
+            section.offset = file.readLong();
+            section.length = file.readLong();
+            section.rawLength = section.length;
+            if (version > 1) {
+                section.rawLength = file.readLong();
+                section.crc = file.readInt() & 0xFFFFFFFFL;
+                section.codec = file.readByte();
+            }
+            if (section.offset < headerEnd || section.length < 0 || section.offset + section.length > directory) {
+                throw new IOException(String.format("%s is corrupted: section %s is out of bounds", fileName, name));
+            }
+            if (section.codec != CODEC_NONE && section.codec != CODEC_DEFLATE) {
+                throw new IOException(String.format("%s: section %s uses an unknown codec (%d)", fileName, name, section.codec));
+            }
+            sections.put(name, section);
+        }
+        if (file.getFilePointer() != file.length()) {
+            throw new IOException(String.format("%s is corrupted: unexpected data after the directory", fileName));
+        }
+    }
+
+    /**
+     * Checks whether the given file has the sectioned layout (files produced with previous versions
+     * contain only the Kryo serialised DataContainer)
+     */
+    static boolean isDataFile(String fileName) {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            return isDataFile(file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isDataFile(RandomAccessFile file) throws IOException {
+        if (file.length() < 16) return false;
+        file.seek(0);
+        return file.readInt() == MAGIC;
+    }
+
+    public boolean hasSection(String name) {
+        return sections.containsKey(name);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the time when the file was built (0 for version 1 files)
+     */
+    public long getBuildTimestamp() {
+        return buildTimestamp;
+    }
+
+    /**
+     * @return the version of the graph database used to build the file (0 if unknown)
+     */
+    public int getDbVersion() {
+        return dbVersion;
+    }
+
+    /**
+     * @return the size of the section content (once inflated)
+     */
+    public long getSectionSize(String name) throws IOException {
+        return getSectionBoundaries(name).rawLength;
+    }
+
+    /**
+     * @return the size of the section in the file
+     */
+    public long getStoredSectionSize(String name) throws IOException {
+        return getSectionBoundaries(name).length;
+    }
+
+    /**
+     * Maps the section in memory (read only). Compressed sections are inflated into a direct buffer
+     *
+     * @param name the name of the section
+     * @return the section content
+     */
+    public ByteBuffer getSection(String name) throws IOException {
+        Section section = getSectionBoundaries(name);
+        if (section.rawLength > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Section %s is too big (%d bytes) to be mapped at once", name, section.rawLength));
+        }
+        if (section.codec == CODEC_DEFLATE) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) section.rawLength);
+            try (InputStream is = getSectionStream(name)) {
+                byte[] aux = new byte[1 << 16];
+                int n;
+                while ((n = is.read(aux)) > 0) {
+                    if (n > buffer.remaining()) throw new IOException(String.format("%s: section %s is bigger than expected", fileName, name));
+                    buffer.put(aux, 0, n);
+                }
+            }
+            if (buffer.hasRemaining()) throw new IOException(String.format("%s: section %s is smaller than expected", fileName, name));
+            buffer.flip();
+            return buffer.order(ByteOrder.BIG_ENDIAN);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, section.offset, section.length);
+        if (section.crc >= 0) {
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            checkCrc(name, section, crc.getValue());
+        }
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Returns a stream over the section mapping it in chunks (for sections that are deserialised
+     * and can be bigger than what a single ByteBuffer can map). Compressed sections are inflated.
+     * The CRC32 of the stored bytes is verified before the stream is returned, since deserialisers
+     * (Kryo) stop reading once they have their object and would never reach the end of the section
+     *
+     * @param name the name of the section
+     * @return a stream with the content of the section
+     */
+    public InputStream getSectionStream(final String name) throws IOException {
+        final Section section = getSectionBoundaries(name);
+        if (section.crc >= 0) verifySection(name, section);
+        InputStream stored = new InputStream() {
+            private long position = 0;
+            private ByteBuffer chunk = null;
+
+            private boolean ensure() throws IOException {
+                if (chunk != null && chunk.hasRemaining()) return true;
+                if (position >= section.length) return false;
+                chunk = map(section, position);
+                position += chunk.capacity();
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return ensure() ? chunk.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (!ensure()) return -1;
+                int n = Math.min(len, chunk.remaining());
+                chunk.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return chunk == null ? 0 : chunk.remaining();
+            }
+        };
+        if (section.codec != CODEC_DEFLATE) return stored;
+        return new InflaterInputStream(stored, new Inflater(), 1 << 16) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    //Maps (read only) up to CHUNK_SIZE bytes of the section starting at the given position
+    private ByteBuffer map(Section section, long position) throws IOException {
+        long size = Math.min(CHUNK_SIZE, section.length - position);
+        return channel.map(FileChannel.MapMode.READ_ONLY, section.offset + position, size);
+    }
+
+    private void verifySection(String name, Section section) throws IOException {
+        CRC32 crc = new CRC32();
+        for (long position = 0; position < section.length; ) {
+            ByteBuffer chunk = map(section, position);
+            position += chunk.capacity();
+            crc.update(chunk);
+        }
+        checkCrc(name, section, crc.getValue());
+    }
+
+    private void checkCrc(String name, Section section, long crc) throws IOException {
+        if (crc != section.crc) {
+            throw new IOException(String.format("%s is corrupted: CRC32 of section %s is %08x but %08x was expected", fileName, name, crc, section.crc));
+        }
+    }
+
+    private Section getSectionBoundaries(String name) throws IOException {
+        Section section = sections.get(name);
+        if (section == null) throw new IOException("Section " + name + " not found in the data file");
+        return section;
+    }
+
+    /**
+     * Closing the reader does not invalidate the buffers already mapped (they are kept until garbage collected)
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static class Section {
+        long offset;
+        long length;
+        long rawLength;
+        long crc = -1; //Not available in version 1 files
+        byte codec = CODEC_NONE;
+    }
+}
@@ -0,0 +1,182 @@
+package org.reactome.server.analysis.core.data;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes the intermediate data file as a set of named sections (see DataFileReader for the layout).
+ * Sections are written one after the other through the stream returned by startSection and the
+ * directory is written at the end, so the sections content does not need to be kept in memory.
+ * The CRC32 of every section is calculated while it is written and, when compression is enabled,
+ * the sections are deflated (fastest level, so the loading time is barely affected).
+ * <p>
+ * The directory is only written by finish. A writer closed without finishing (i.e. something failed
+ * while writing the sections) deletes the file, so an incomplete file is never taken as a valid one
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class DataFileWriter implements Closeable {
+
+    private String fileName;
+    private RandomAccessFile file;
+    private boolean compress;
+    private boolean finished = false;
+
+    private List<String> names = new ArrayList<>();
+    private List<Long> offsets = new ArrayList<>();
+    private List<Long> lengths = new ArrayList<>();
+    private List<Long> rawLengths = new ArrayList<>();
+    private List<Long> crcs = new ArrayList<>();
+
+    private long sectionStart = -1;
+    private SectionOutputStream section = null;
+
+    public DataFileWriter(String fileName) throws IOException {
+        this(fileName, 0, false);
+    }
+
+    /**
+     * @param fileName  the file to be written
+     * @param dbVersion the version of the graph database the data comes from (stored in the header)
+     * @param compress  true to deflate the sections
+     */
+    public DataFileWriter(String fileName, int dbVersion, boolean compress) throws IOException {
+        this.fileName = fileName;
+        this.compress = compress;
+        this.file = new RandomAccessFile(fileName, "rw");
+        this.file.setLength(0);
+        this.file.writeInt(DataFileReader.MAGIC);
+        this.file.writeInt(DataFileReader.VERSION);
+        this.file.writeLong(0L); //Directory offset (written when finishing)
+        this.file.writeLong(System.currentTimeMillis());
+        this.file.writeInt(dbVersion);
+        this.file.writeInt(0); //Flags (reserved)
+    }
+
+    /**
+     * Starts a new section. The returned stream can be closed (it does not close the file) and is
+     * finished by endSection in any case
+     *
+     * @param name the name of the section
+     * @return the stream to write the content of the section
+     */
+    public OutputStream startSection(String name) throws IOException {
+        if (sectionStart >= 0) throw new IllegalStateException("Section " + names.get(names.size() - 1) + " has not been ended");
+        if (names.contains(name)) throw new IllegalArgumentException("Section " + name + " already written");
+        align();
+        sectionStart = file.getFilePointer();
+        names.add(name);
+        section = new SectionOutputStream(Channels.newOutputStream(file.getChannel()), compress);
+        return section;
+    }
+
+    public void endSection() throws IOException {
+        if (sectionStart < 0) throw new IllegalStateException("There is not any section started");
+        section.close();
+        offsets.add(sectionStart);
+        lengths.add(file.getFilePointer() - sectionStart);
+        rawLengths.add(section.rawLength);
+        crcs.add(section.checked.getChecksum().getValue());
+        sectionStart = -1;
+        section = null;
+    }
+
+    /**
+     * Writes the directory and completes the header. Sections cannot be added afterwards
+     */
+    public void finish() throws IOException {
+        if (finished) throw new IllegalStateException("The data file has already been finished");
+        if (sectionStart >= 0) endSection();
+        align();
+        long directory = file.getFilePointer();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file.getChannel())));
+        out.writeInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            out.writeUTF(names.get(i));
+            out.writeLong(offsets.get(i));
+            out.writeLong(lengths.get(i));
+            out.writeLong(rawLengths.get(i));
+            out.writeInt((int) (long) crcs.get(i));
+            out.writeByte(compress ? DataFileReader.CODEC_DEFLATE : DataFileReader.CODEC_NONE);
+        }
+        out.flush();
+        file.seek(8);
+        file.writeLong(directory);
+        finished = true;
+    }
+
+    /**
+     * Closes the file, which is deleted if it has not been finished
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (section != null) section.close();
+        } finally {
+            file.close();
+            if (!finished && !new File(fileName).delete()) {
+                throw new IOException("The incomplete data file " + fileName + " could not be deleted");
+            }
+        }
+    }
+
+    //Sections start at multiples of 8 so the mapped int and long arrays are aligned
+    private void align() throws IOException {
+        long pos = file.getFilePointer();
+        while (pos % 8 != 0) {
+            file.write(0);
+            pos++;
+        }
+    }
+
+    /**
+     * Counts the raw bytes and (optionally) deflates them before calculating the CRC32 of what is stored
+     */
+    private static class SectionOutputStream extends FilterOutputStream {
+
+        private final CheckedOutputStream checked;
+        private final Deflater deflater;
+        private long rawLength = 0;
+        private boolean closed = false;
+
+        SectionOutputStream(OutputStream file, boolean compress) {
+            super(null);
+            this.checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            if (compress) {
+                this.deflater = new Deflater(Deflater.BEST_SPEED);
+                this.out = new DeflaterOutputStream(checked, deflater, 1 << 16);
+            } else {
+                this.deflater = null;
+                this.out = new BufferedOutputStream(checked, 1 << 16);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            rawLength++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            rawLength += len;
+        }
+
+        //The file is closed by the writer
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            if (out instanceof DeflaterOutputStream) ((DeflaterOutputStream) out).finish();
+            out.flush();
+            if (deflater != null) deflater.end();
+        }
+    }
+}
@@ -1,78 +1,196 @@
 package org.reactome.server.analysis.core.data;
 
+import org.reactome.server.analysis.core.metrics.AnalysisMetrics;
+import org.reactome.server.analysis.core.model.DataContainer;
 import org.reactome.server.analysis.core.model.HierarchiesData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
+ * Lock-free pool of HierarchiesData objects ready to be used in the analysis. Several analysis can
+ * take objects at the same time that several producers put new ones.
+ * <p>
+ * The target size of the pool adapts to the observed request rate (enough objects for the requests of
+ * TARGET_SECONDS) within [MIN_POOL_SIZE, MAX_POOL_SIZE] and shrinks to MIN_POOL_SIZE when the heap
+ * headroom is below MIN_HEAP_HEADROOM.
+ * <p>
+ * When a new data file is loaded, the pool is refilled with objects of the new data (see replace). The
+ * analysis still running on the previous data get their objects by demand.
+ * <p>
+ * The pool size, its target size, the request rate and the refill rate are exported as gauges (see AnalysisMetrics)
+ *
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
  */
 public abstract class HierarchiesDataContainer {
 
     private static Logger logger = LoggerFactory.getLogger("analysisDataLogger");
 
-    private static final Object READER_SEMAPHORE = new Object();
+    static int MIN_POOL_SIZE = 2;
+    static int MAX_POOL_SIZE = 64;
+    private static final double TARGET_SECONDS = 1.0;
+    private static final double MIN_HEAP_HEADROOM = 0.1;
+    //Weight of the last measurement in the request rate (exponentially weighted moving average)
+    private static final double RATE_WEIGHT = 0.3;
+    //Minimum time between two target size updates
+    private static final double UPDATE_SECONDS = 0.25;
 
-    static int POOL_SIZE = 5;
-    private static HierarchiesData[] pool = new HierarchiesData[POOL_SIZE];
+    private static Queue<HierarchiesData> pool = new ConcurrentLinkedQueue<>();
+    private static AtomicInteger size = new AtomicInteger(0);
+    private static volatile int targetSize = MIN_POOL_SIZE;
 
-    private static int read_pos = 0;
-    private static int write_pos = 0;
+    private static AtomicLong requests = new AtomicLong(0);
+    private static long lastRequests = 0;
+    private static long lastUpdate = System.nanoTime();
+    private static volatile double requestRate = 0;
 
-    public static boolean put(HierarchiesData data) {
-        synchronized (READER_SEMAPHORE) {
-            if (!isFull()) {
-                pool[write_pos] = data;
-                write_pos = next(write_pos);
+    //Objects put in the pool (to calculate the refill rate of the producers)
+    private static AtomicLong produced = new AtomicLong(0);
+    private static long lastProduced = 0;
+    private static volatile double refillRate = 0;
+
+    static {
+        AnalysisMetrics.register("hierarchies_pool_size", "HierarchiesData objects in the pool", new AnalysisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return size.get();
             }
-            logger.trace(String.format("%s written in the pool", HierarchiesData.class.getSimpleName()));
-            READER_SEMAPHORE.notify();
-        }
+        });
+        AnalysisMetrics.register("hierarchies_pool_target_size", "Target size of the HierarchiesData pool", new AnalysisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return targetSize;
+            }
+        });
+        AnalysisMetrics.register("hierarchies_request_rate", "HierarchiesData objects requested per second (moving average)", new AnalysisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return requestRate;
+            }
+        });
+        AnalysisMetrics.register("hierarchies_refill_rate", "HierarchiesData objects put in the pool per second (moving average)", new AnalysisMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return refillRate;
+            }
+        });
+    }
+
+    public static boolean put(HierarchiesData data) {
+        //Reserves the position first so the pool never grows beyond the target size
+        int current;
+        do {
+            current = size.get();
+            if (current >= targetSize) return false;
+        } while (!size.compareAndSet(current, current + 1));
+        pool.offer(data);
+        produced.incrementAndGet();
+        logger.trace(String.format("%s written in the pool", HierarchiesData.class.getSimpleName()));
         return true;
     }
 
     public static HierarchiesData take() {
-        if (isEmpty()) {
-            return HierarchiesDataProducer.getHierarchiesData();
-        }
+        DataContainer data = HierarchiesDataProducer.getData();
+        //Not initialised yet (it waits for the data to be loaded)
+        if (data == null) return HierarchiesDataProducer.getHierarchiesData();
+        return take(data);
+    }
 
-        HierarchiesData data;
-        synchronized (READER_SEMAPHORE) {
-            data = pool[read_pos];
-            pool[read_pos] = null; //Garbage collector purposes
-            read_pos = next(read_pos);
-            logger.trace(String.format("%s taken from the pool", HierarchiesData.class.getSimpleName()));
+    /**
+     * Returns a HierarchiesData object of the given data, so an analysis keeps using the same data
+     * even if a new data file is loaded meanwhile
+     *
+     * @param data the data used by the analysis
+     * @return an empty analysis result overlay on top of the hierarchies of the given data
+     */
+    public static HierarchiesData take(DataContainer data) {
+        requests.incrementAndGet();
+        if (!HierarchiesDataProducer.isProducing(data)) {
+            //The data has been replaced since the analysis started
+            return data.getHierarchiesData();
+        }
+        HierarchiesData rtn;
+        while ((rtn = pool.poll()) != null) {
+            size.decrementAndGet();
+            if (data.isSourceOf(rtn)) break;
+            logger.trace(String.format("%s of the previous data discarded", HierarchiesData.class.getSimpleName()));
         }
+        HierarchiesDataProducer.wakeUp();
+        if (rtn == null) return data.getHierarchiesData();
+        logger.trace(String.format("%s taken from the pool", HierarchiesData.class.getSimpleName()));
+        return rtn;
+    }
 
-        return data;
+    public static boolean isEmpty() {
+        return size.get() <= 0;
     }
 
-    public static synchronized boolean isEmpty() {
-        return size() == 0;
+    static boolean isFull() {
+        return size.get() >= targetSize;
     }
 
-    static synchronized boolean isFull() {
-        return size() == POOL_SIZE;
+    static int size() {
+        return size.get();
     }
 
-    private static int next(int pos) {
-        return (pos + 1) % POOL_SIZE;
+    static int getTargetSize() {
+        return targetSize;
     }
 
-    private static int prev(int pos) {
-        return pos == 0 ? POOL_SIZE - 1 : pos - 1;
+    /**
+     * Recalculates the target size of the pool based on the request rate since the previous call
+     * and the current heap headroom. It is meant to be called periodically by the producers (calls
+     * closer than UPDATE_SECONDS to the previous one are ignored)
+     */
+    static synchronized void updateTargetSize() {
+        long now = System.nanoTime();
+        double elapsed = (now - lastUpdate) / 1e9;
+        if (elapsed < UPDATE_SECONDS) return;
+        long total = requests.get();
+        double rate = (total - lastRequests) / elapsed;
+        lastRequests = total;
+        lastUpdate = now;
+        requestRate = RATE_WEIGHT * rate + (1 - RATE_WEIGHT) * requestRate;
+        long totalProduced = produced.get();
+        refillRate = RATE_WEIGHT * (totalProduced - lastProduced) / elapsed + (1 - RATE_WEIGHT) * refillRate;
+        lastProduced = totalProduced;
+
+        int target = (int) Math.ceil(requestRate * TARGET_SECONDS);
+        target = Math.max(MIN_POOL_SIZE, Math.min(MAX_POOL_SIZE, target));
+
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        double headroom = (runtime.maxMemory() - used) / (double) runtime.maxMemory();
+        if (headroom < MIN_HEAP_HEADROOM) target = MIN_POOL_SIZE;
+
+        if (target != targetSize) {
+            logger.trace(String.format("Pool target size set to %d (%.2f requests/s, %.0f%% heap headroom)", target, requestRate, headroom * 100));
+            targetSize = target;
+        }
+        //Releases the objects exceeding the new target size
+        while (size.get() > targetSize && pool.poll() != null) {
+            size.decrementAndGet();
+        }
     }
 
-    private static synchronized int size() {
-        if (read_pos == write_pos) {
-            if (pool[prev(write_pos)] == null) {
-                return 0;
-            }
-            return POOL_SIZE;
+    /**
+     * Replaces the content of the pool (the objects exceeding the target size are not kept)
+     */
+    static void replace(List<HierarchiesData> data) {
+        clear();
+        for (HierarchiesData hierarchiesData : data) {
+            if (!put(hierarchiesData)) break;
         }
-        if (read_pos < write_pos) {
-            return write_pos - read_pos;
+    }
+
+    static void clear() {
+        while (pool.poll() != null) {
+            size.decrementAndGet();
         }
-        return POOL_SIZE - (read_pos - write_pos);
     }
 }
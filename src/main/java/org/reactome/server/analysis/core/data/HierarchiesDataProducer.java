@@ -1,11 +1,16 @@
 package org.reactome.server.analysis.core.data;
 
-import org.reactome.server.analysis.core.methods.EnrichmentAnalysis;
 import org.reactome.server.analysis.core.model.DataContainer;
 import org.reactome.server.analysis.core.model.HierarchiesData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
  */
@@ -14,19 +19,29 @@ public class HierarchiesDataProducer {
 
     private static Logger logger = LoggerFactory.getLogger("analysisDataLogger");
 
-    private static HierarchiesDataProducer producer;
-    private static Thread backgroundProducer;
+    //Number of background producers refilling the pool
+    static int PRODUCERS = 2;
+    //Maximum time a producer sleeps before checking the pool again (and updating its target size)
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static volatile HierarchiesDataProducer producer;
+    private static List<Thread> backgroundProducers = new CopyOnWriteArrayList<>();
 
-    private DataContainer data;
+    //Replaced when a new data file is loaded (see replaceData)
+    private volatile DataContainer data;
 
     private HierarchiesDataProducer(DataContainer data) {
         this.data = data;
-        if (HierarchiesDataContainer.POOL_SIZE > 1) {
-            logger.trace("Initialising the background producer...");
-            backgroundProducer = new Thread(new BackgroundProducer());
-            backgroundProducer.setName(BackgroundProducer.class.getSimpleName());
-            backgroundProducer.start();
-            logger.info("Hierarchy content background producer initialised");
+        if (HierarchiesDataContainer.MAX_POOL_SIZE > 1 && PRODUCERS > 0) {
+            logger.trace("Initialising the background producers...");
+            for (int i = 0; i < PRODUCERS; i++) {
+                Thread backgroundProducer = new Thread(new BackgroundProducer());
+                backgroundProducer.setName(BackgroundProducer.class.getSimpleName() + "-" + i);
+                backgroundProducer.setDaemon(true);
+                backgroundProducers.add(backgroundProducer);
+                backgroundProducer.start();
+            }
+            logger.info(PRODUCERS + " hierarchy content background producer(s) initialised");
         } else {
             logger.error("No background producer initialised");
         }
@@ -40,14 +55,71 @@ public class HierarchiesDataProducer {
         }
     }
 
+    /**
+     * Creates the HierarchiesData objects to fill the pool with before the new data replaces the current one
+     *
+     * @param data the new data
+     * @return as many HierarchiesData objects as the current target size of the pool
+     */
+    static List<HierarchiesData> warmUp(DataContainer data) {
+        int n = HierarchiesDataContainer.getTargetSize();
+        List<HierarchiesData> rtn = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            rtn.add(data.getHierarchiesData());
+        }
+        return rtn;
+    }
+
+    /**
+     * Replaces the data used to produce the HierarchiesData objects and the content of the pool. The objects
+     * of the previous data that a background producer could still put in the pool are discarded when taken
+     *
+     * @param data   the new data
+     * @param warmUp HierarchiesData objects of the new data (see warmUp)
+     */
+    static void replaceData(DataContainer data, List<HierarchiesData> warmUp) {
+        if (producer == null) {
+            initializeProducer(data);
+        } else {
+            producer.data = data;
+        }
+        HierarchiesDataContainer.replace(warmUp);
+    }
+
+    /**
+     * @return true if the pool is being filled with HierarchiesData objects of the given data
+     */
+    static boolean isProducing(DataContainer data) {
+        HierarchiesDataProducer producer = HierarchiesDataProducer.producer;
+        return producer != null && producer.data == data;
+    }
+
+    static DataContainer getData() {
+        HierarchiesDataProducer producer = HierarchiesDataProducer.producer;
+        return producer == null ? null : producer.data;
+    }
+
     public static void interruptProducer() {
-        if (backgroundProducer != null) {
-            backgroundProducer.interrupt();
+        if (!backgroundProducers.isEmpty()) {
+            for (Thread backgroundProducer : backgroundProducers) {
+                backgroundProducer.interrupt();
+            }
+            backgroundProducers.clear();
+            HierarchiesDataContainer.clear();
         } else {
             logger.warn("The producer has not previously been initialized.");
         }
     }
 
+    /**
+     * Wakes up the background producers so they refill the pool (it does not block)
+     */
+    static void wakeUp() {
+        for (Thread backgroundProducer : backgroundProducers) {
+            LockSupport.unpark(backgroundProducer);
+        }
+    }
+
     static HierarchiesData getHierarchiesData() {
         if (producer != null) {
             return producer.data.getHierarchiesData();
@@ -63,33 +135,26 @@ public class HierarchiesDataProducer {
     }
 
     /**
-     * When running just checks when the server is lazy ( EnrichmentAnalysis.ANALYSIS_COUNT equals zero ) and produces
-     * the data needed to the analysis until the container pool is full (NOTE: It stops as soon as there are analysis
-     * running).
+     * Refills the pool up to its target size. Analysis taking objects from the pool wake the producers up, so
+     * they refill it while the analysis are running. When the pool is full, the producers sleep for a while
      * <p>
-     * IMPORTANT: When there are more analysis running than the size of the POOL of objects, new analysis while produce
+     * IMPORTANT: When there are more analysis running than objects in the pool, new analysis will produce
      * the data object by demand
      */
     class BackgroundProducer implements Runnable {
-        private boolean active = true;
 
         @Override
         public void run() {
             logger.info(Thread.currentThread().getName() + " thread started");
-            while (active) {
-                try {
-                    synchronized (EnrichmentAnalysis.ANALYSIS_SEMAPHORE) {
-                        if (HierarchiesDataContainer.isFull() || EnrichmentAnalysis.getAnalysisCount() > 0) {
-                            EnrichmentAnalysis.ANALYSIS_SEMAPHORE.wait();
-                        }
-                    }
+            while (!Thread.currentThread().isInterrupted()) {
+                HierarchiesDataContainer.updateTargetSize();
+                if (HierarchiesDataContainer.isFull()) {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                } else {
                     HierarchiesDataContainer.put(data.getHierarchiesData());
-                } catch (InterruptedException e) {
-                    active = false;
-                    data = null; System.gc();
-                    logger.info(Thread.currentThread().getName() + ": data has been cleaned up and thread interrupted");
                 }
             }
+            logger.info(Thread.currentThread().getName() + ": thread interrupted");
         }
     }
 }
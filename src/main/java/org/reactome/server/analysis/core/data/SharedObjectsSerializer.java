@@ -0,0 +1,63 @@
+package org.reactome.server.analysis.core.data;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.reactome.server.analysis.core.model.AnalysisReaction;
+import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
+
+import java.util.*;
+
+/**
+ * The reactions and main identifiers are shared by the entities and the interactors (see InternTable), but
+ * every section of the data file is a Kryo graph on its own. This serializer writes them as their position
+ * in a table that is stored once in its own section, so both sections point to the same objects when loaded
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+class SharedObjectsSerializer extends Serializer<Object> {
+
+    private final List<Object> objects;
+    //Only used when writing
+    private final Map<Object, Integer> positions = new IdentityHashMap<>();
+
+    /**
+     * To write the sections (the table is filled meanwhile and stored afterwards, see getObjects)
+     */
+    SharedObjectsSerializer() {
+        this.objects = new ArrayList<>();
+    }
+
+    /**
+     * To read the sections once the table has been loaded
+     */
+    SharedObjectsSerializer(Object[] objects) {
+        this.objects = Arrays.asList(objects);
+    }
+
+    void register(Kryo kryo) {
+        kryo.addDefaultSerializer(AnalysisReaction.class, this);
+        kryo.addDefaultSerializer(MainIdentifier.class, this);
+    }
+
+    Object[] getObjects() {
+        return objects.toArray();
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, Object object) {
+        Integer position = positions.get(object);
+        if (position == null) {
+            position = objects.size();
+            objects.add(object);
+            positions.put(object, position);
+        }
+        output.writeInt(position, true);
+    }
+
+    @Override
+    public Object read(Kryo kryo, Input input, Class<Object> type) {
+        return objects.get(input.readInt(true));
+    }
+}
@@ -7,6 +7,7 @@ import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
 import org.reactome.server.analysis.core.model.resource.MainResource;
 import org.reactome.server.analysis.core.model.resource.Resource;
 import org.reactome.server.analysis.core.model.resource.ResourceFactory;
+import org.reactome.server.analysis.core.util.LongObjectMap;
 import org.reactome.server.graph.exception.CustomQueryException;
 import org.reactome.server.graph.service.AdvancedDatabaseObjectService;
 import org.reactome.server.graph.utils.ReactomeGraphCore;
@@ -22,125 +23,273 @@ public class EntitiesBuilder {
 
     private static Logger logger = LoggerFactory.getLogger("importLogger");
 
-    //Will contain the RADIX-TREE with the map (identifiers -> [EntityNode])
+    //Will contain the index with the map (identifiers -> [EntityNode])
     private IdentifiersMap<EntityNode> entitiesMap;
 
     //A graph representation of the PhysicalEntities in Reactome
     private EntitiesContainer entitiesContainer;
 
+    //Number of pathways whose participants (or xrefs) are retrieved (and merged) in a single query
+    private static final int PATHWAYS_PER_QUERY = 100;
+    //Pages a species can retrieve before waiting for its turn to merge them
+    private static final int MAX_PENDING_PAGES = 2;
+
+    //Aggregates the xrefs of the reference entities "re" matched by the beginning of the query
+    private static final String XREFS_QUERY_TAIL = "WITH DISTINCT re " +
+            "OPTIONAL MATCH (re)-[:crossReference]->(dbi:DatabaseIdentifier) " +
+            "WITH DISTINCT re, COLLECT(DISTINCT {databaseName: dbi.databaseName, identifier: dbi.identifier}) AS dbis, COUNT(DISTINCT dbi) AS n " +
+            "RETURN re.dbId AS referenceEntity, " +
+            "       re.secondaryIdentifier AS  secondaryIdentifiers, " +
+            "       re.geneName AS geneNames, " +
+            "       re.otherIdentifier AS otherIdentifiers, " +
+            "       [{databaseName: re.databaseName, " +
+            "         identifier: CASE WHEN re.variantIdentifier IS NOT NULL THEN re.variantIdentifier ELSE re.identifier END " +
+            "         }] + CASE WHEN n = 0 THEN [] ELSE dbis END AS xrefs";
+
     private AdvancedDatabaseObjectService ados = ReactomeGraphCore.getService(AdvancedDatabaseObjectService.class);
 
-    public void build(Map<String, SpeciesNode> speciesMap) {
-        Collection<SpeciesNode> speciesNodes = speciesMap.values();
+    private SpeciesSegments segments = null;
 
-        this.entitiesMap = new IdentifiersMap<>();
-        this.entitiesContainer = new EntitiesContainer();
+    //Single instances of the reactions and main identifiers (shared with the interactors builder)
+    private InternTable internTable = new InternTable();
 
-        Map<String, PsiModNode> psiModNodeMap = PsiModImporter.getPsiModMap();
+    public void setSegments(SpeciesSegments segments) {
+        this.segments = segments;
+    }
 
-        String msgPrefix = "\rCreating the entities container ";
+    public void setInternTable(InternTable internTable) {
+        this.internTable = internTable;
+    }
 
-        String query;
-        Map<String, Object> paramsMap = new HashMap<>();
-        int s = 0; int st = speciesNodes.size();
-        for (SpeciesNode species : speciesNodes) {
+    public void build(final Map<String, SpeciesNode> speciesMap) {
+        List<SpeciesNode> speciesNodes = new ArrayList<>();
+        for (SpeciesNode species : speciesMap.values()) {
             if (Main.TEST_MAIN_SPECIES && !species.getTaxID().equals(Main.MAIN_SPECIES_TAX_ID)) continue;
+            speciesNodes.add(species);
+        }
+        Collections.sort(speciesNodes, SpeciesWorkers.SPECIES_ORDER);
+
+        this.entitiesMap = new IdentifiersMap<>();
+        this.entitiesContainer = new EntitiesContainer();
+
+        final Map<String, PsiModNode> psiModNodeMap = PsiModImporter.getPsiModMap();
+
+        String msgPrefix = "\rCreating the entities container";
+        if (Main.VERBOSE) System.out.print(msgPrefix + " >> retrieving xrefs and participants for " + speciesNodes.size() + " species...");
+
+        //The queries for the different species run in parallel and each page of participants is merged as soon
+        //as it is retrieved by the species having the turn. The other species keep up to MAX_PENDING_PAGES pages
+        //and then wait for their turn
+        new SpeciesWorkers<SpeciesNode>() {
+            @Override
+            void run(SpeciesNode species) throws InterruptedException {
+                SpeciesSegment segment = segments != null ? segments.get(species.getTaxID()) : null;
+                if (segment != null && segment.getXrefs() != null && segment.getEntities() != null) {
+                    LongObjectMap<ReferenceEntityIdentifiers> xrefMap = getXrefMap(segment.getXrefs());
+                    awaitTurn();
+                    merge(speciesMap, psiModNodeMap, xrefMap, segment.getEntities());
+                    return;
+                }
 
-            paramsMap.put("taxId", species.getTaxID());
-
-            String speciesPrefix = "for '" + species.getName() + "' (" + (++s) + "/" + st + ")";
-            if (Main.VERBOSE) System.out.print(msgPrefix + speciesPrefix + " >> retrieving xrefs...");
-
-            query = "MATCH (:Species{taxId:{taxId}})<-[:species]-(:Pathway)-[:hasEvent]->(rle:ReactionLikeEvent), " +
-                    "      (rle)-[:input|output|catalystActivity|entityFunctionalStatus|physicalEntity|regulatedBy|regulator|hasComponent|hasMember|hasCandidate|repeatedUnit|referenceEntity*]->(re:ReferenceEntity) " +
-                    "WITH DISTINCT re " +
-                    "OPTIONAL MATCH (re)-[:crossReference]->(dbi:DatabaseIdentifier) " +
-                    "WITH DISTINCT re, COLLECT(DISTINCT {databaseName: dbi.databaseName, identifier: dbi.identifier}) AS dbis, COUNT(DISTINCT dbi) AS n " +
-                    "RETURN re.dbId AS referenceEntity, " +
-                    "       re.secondaryIdentifier AS  secondaryIdentifiers, " +
-                    "       re.geneName AS geneNames, " +
-                    "       re.otherIdentifier AS otherIdentifiers, " +
-                    "       [{databaseName: re.databaseName, " +
-                    "         identifier: CASE WHEN re.variantIdentifier IS NOT NULL THEN re.variantIdentifier ELSE re.identifier END " +
-                    "         }] + CASE WHEN n = 0 THEN [] ELSE dbis END AS xrefs";
-
-            Map<Long, ReferenceEntityIdentifiers> xrefMap = new HashMap<>();
-            try {
-                for (ReferenceEntityIdentifiers aux : ados.getCustomQueryResults(ReferenceEntityIdentifiers.class, query, paramsMap)) {
-                    xrefMap.put(aux.getReferenceEntity(), aux);
+                List<Long> pathways = getPathways(species);
+                Collection<ReferenceEntityIdentifiers> xrefs = null;
+                LongObjectMap<ReferenceEntityIdentifiers> xrefMap;
+                if (segment == null) {
+                    xrefMap = getXrefMap(pathways);
+                } else {
+                    //The segments retrieve the xrefs of the species to calculate its fingerprint
+                    xrefs = segment.getXrefs() != null ? segment.getXrefs() : getReferenceEntityIdentifiers(ados, species.getTaxID());
+                    xrefMap = getXrefMap(xrefs);
+                }
+                //The segment needs the whole result to be stored, so in that case it is kept in memory
+                List<EntitiesQueryResult> all = segment != null ? new ArrayList<EntitiesQueryResult>() : null;
+                List<Collection<EntitiesQueryResult>> pending = new ArrayList<>();
+                int merged = 0;
+                for (int i = 0; i < pathways.size(); i += PATHWAYS_PER_QUERY) {
+                    Collection<EntitiesQueryResult> page = getEntities(pathways.subList(i, Math.min(pathways.size(), i + PATHWAYS_PER_QUERY)));
+                    pending.add(page);
+                    if (all != null) all.addAll(page);
+                    //Without the turn it stops retrieving pages once MAX_PENDING_PAGES are kept
+                    if (pending.size() >= MAX_PENDING_PAGES) awaitTurn();
+                    if (isTurn()) merged = mergePending(xrefMap, pending, merged, pathways.size());
+                }
+                awaitTurn();
+                mergePending(xrefMap, pending, merged, pathways.size());
+                if (segment != null) {
+                    segment.setXrefs(xrefs);
+                    segment.setEntities(all);
                 }
-            } catch (CustomQueryException e) {
-                throw new RuntimeException(e);
             }
 
-            if (Main.VERBOSE) System.out.print(msgPrefix + speciesPrefix + " >> retrieving participants...");
-
-            query = "MATCH (:Species{taxId:{taxId}})<-[:species]-(p:Pathway)-[:hasEvent]->(rle:ReactionLikeEvent), " +
-                    "      (rle)-[:input|output|catalystActivity|entityFunctionalStatus|physicalEntity|regulatedBy|regulator|hasComponent|hasMember|hasCandidate|repeatedUnit*]->(pe:PhysicalEntity)-[:referenceEntity]->(re:ReferenceEntity) " +
-                    "WITH DISTINCT p, pe, re, COLLECT(DISTINCT {dbId: rle.dbId, stId: rle.stId}) AS rles " +
-                    "OPTIONAL MATCH (pe)-[:hasModifiedResidue]->(tm:TranslationalModification)-[:psiMod]->(mod:PsiMod) " +
-                    "WITH DISTINCT p, pe, re, rles, COLLECT(DISTINCT {coordinate: tm.coordinate, mod: mod.identifier}) AS tmods, COUNT(DISTINCT mod) AS n " +
-                    "RETURN p.dbId AS pathway, " +
-                    "       pe.dbId AS physicalEntity, " +
-                    "       pe.speciesName AS speciesName, " +
-                    "       re.dbId as referenceEntity, " +
-                    "       rles AS reactions, " +
-                    "       CASE WHEN n = 0 THEN [] ELSE tmods END AS mods";
-
-            Collection<EntitiesQueryResult> result;
-            try {
-                result = ados.getCustomQueryResults(EntitiesQueryResult.class, query, paramsMap);
-            } catch (CustomQueryException e) {
-                throw new RuntimeException(e);
+            //Merges the pending pages (each one contains the participants of PATHWAYS_PER_QUERY pathways)
+            private int mergePending(LongObjectMap<ReferenceEntityIdentifiers> xrefMap, List<Collection<EntitiesQueryResult>> pending, int merged, int pathways) {
+                for (Collection<EntitiesQueryResult> page : pending) {
+                    merge(speciesMap, psiModNodeMap, xrefMap, page);
+                    merged = Math.min(pathways, merged + PATHWAYS_PER_QUERY);
+                    progress(merged + "/" + pathways + " pathways");
+                }
+                pending.clear();
+                return merged;
             }
 
-            int i = 0; int tot = result.size();
-            for (EntitiesQueryResult current : result) {
-                if (Main.VERBOSE && ++i % 25 == 0) System.out.print(msgPrefix + speciesPrefix + " >> " + i + "/" + tot);
-
-                ReferenceEntityIdentifiers rei = xrefMap.get(current.getReferenceEntity());
-                List<XRef> xrefs = rei.getXrefs();
-                final String databaseName = xrefs.get(0).getDatabaseName();
-                final String identifier = xrefs.get(0).getIdentifier();
-                final SpeciesNode entitySpecies = speciesMap.get(current.getSpeciesName()); //Small molecules have no species (null is assigned)
-                Resource resource = ResourceFactory.getResource(databaseName);
-                if (resource instanceof MainResource) {
-                    List<Modification> modifications = new ArrayList<>();
-                    for (Mod mod : current.getMods()) {
-                        modifications.add(new Modification(mod.getCoordinate(), psiModNodeMap.get(mod.getMod())));
-                    }
-                    MainResource mainResource = (MainResource) resource;
-                    //IMPORTANT: Add checks for duplicates and returns the right entity node to "play with"
-                    EntityNode node = entitiesContainer.add(new EntityNode(entitySpecies, mainResource, identifier, modifications));
-                    node.addPathwayReactions(current.getPathwayReactions());
-
-                    //Adding every possible xRef to the RadixTree
-                    for (XRef xref : xrefs) {
-                        resource = ResourceFactory.getResource(xref.getDatabaseName());
-                        entitiesMap.add(xref.getIdentifier(), resource, node);
-                    }
+            @Override
+            String getName(SpeciesNode species) {
+                return species.getName();
+            }
+        }.runAll(speciesNodes, msgPrefix);
 
-                    resource = ResourceFactory.getResource("#" + databaseName);
+        //No more identifiers are added from here, so the (immutable) index is created
+        entitiesMap.build();
+        if (Main.VERBOSE) System.out.println(msgPrefix + " >> Done.");
+    }
 
-                    for (String secondaryIdentifier : rei.getSecondaryIdentifiers()) {
-                        entitiesMap.add(secondaryIdentifier, resource, node);
-                    }
+    /**
+     * Retrieves the xrefs of the reference entities taking part in the reactions of the species
+     */
+    static Collection<ReferenceEntityIdentifiers> getReferenceEntityIdentifiers(AdvancedDatabaseObjectService ados, String taxId) {
+        Map<String, Object> paramsMap = new HashMap<>();
+        paramsMap.put("taxId", taxId);
 
-                    for (String geneName : rei.getGeneNames()) {
-                        entitiesMap.add(geneName, resource, node);
-                    }
+        String query = "MATCH (:Species{taxId:{taxId}})<-[:species]-(:Pathway)-[:hasEvent]->(rle:ReactionLikeEvent), " +
+                "      (rle)-[:input|output|catalystActivity|entityFunctionalStatus|physicalEntity|regulatedBy|regulator|hasComponent|hasMember|hasCandidate|repeatedUnit|referenceEntity*]->(re:ReferenceEntity) " +
+                XREFS_QUERY_TAIL;
 
-                    for (String otherIdentifier : rei.getOtherIdentifiers()) {
-                        entitiesMap.add(otherIdentifier, resource, node);
-                    }
+        try {
+            return ados.getCustomQueryResults(ReferenceEntityIdentifiers.class, query, paramsMap);
+        } catch (CustomQueryException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                } else {
-                    logger.error("There is not main resource for physical entity " + current.getPhysicalEntity());
-                }
+    /**
+     * Retrieves the xrefs of the reference entities taking part in the reactions of the given pathways
+     */
+    private Collection<ReferenceEntityIdentifiers> getReferenceEntityIdentifiers(List<Long> pathways) {
+        Map<String, Object> paramsMap = new HashMap<>();
+        paramsMap.put("pathways", pathways);
+
+        String query = "MATCH (p:Pathway)-[:hasEvent]->(rle:ReactionLikeEvent) WHERE p.dbId IN {pathways} " +
+                "MATCH (rle)-[:input|output|catalystActivity|entityFunctionalStatus|physicalEntity|regulatedBy|regulator|hasComponent|hasMember|hasCandidate|repeatedUnit|referenceEntity*]->(re:ReferenceEntity) " +
+                XREFS_QUERY_TAIL;
+
+        try {
+            return ados.getCustomQueryResults(ReferenceEntityIdentifiers.class, query, paramsMap);
+        } catch (CustomQueryException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static LongObjectMap<ReferenceEntityIdentifiers> getXrefMap(Collection<ReferenceEntityIdentifiers> xrefs) {
+        LongObjectMap<ReferenceEntityIdentifiers> rtn = new LongObjectMap<>(xrefs.size());
+        for (ReferenceEntityIdentifiers aux : xrefs) {
+            rtn.put(aux.getReferenceEntity(), aux);
+        }
+        return rtn;
+    }
+
+    /**
+     * Retrieves the xrefs of the species in pages of pathways (as the participants) straight into the map, so
+     * only one page of the result is kept in memory next to it (a reference entity can be in several pages)
+     */
+    private LongObjectMap<ReferenceEntityIdentifiers> getXrefMap(List<Long> pathways) {
+        LongObjectMap<ReferenceEntityIdentifiers> rtn = new LongObjectMap<>();
+        for (int i = 0; i < pathways.size(); i += PATHWAYS_PER_QUERY) {
+            for (ReferenceEntityIdentifiers aux : getReferenceEntityIdentifiers(pathways.subList(i, Math.min(pathways.size(), i + PATHWAYS_PER_QUERY)))) {
+                if (!rtn.containsKey(aux.getReferenceEntity())) rtn.put(aux.getReferenceEntity(), aux);
             }
         }
+        return rtn;
+    }
+
+    private List<Long> getPathways(SpeciesNode species) {
+        Map<String, Object> paramsMap = new HashMap<>();
+        paramsMap.put("taxId", species.getTaxID());
+
+        String query = "MATCH (:Species{taxId:{taxId}})<-[:species]-(p:Pathway) " +
+                "RETURN COLLECT(DISTINCT p.dbId) AS pathways";
+
+        try {
+            SpeciesPathways result = ados.getCustomQueryResult(SpeciesPathways.class, query, paramsMap);
+            return result == null ? Collections.<Long>emptyList() : result.getPathways();
+        } catch (CustomQueryException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Retrieves the participants of the reactions in the given pathways
+     */
+    private Collection<EntitiesQueryResult> getEntities(List<Long> pathways) {
+        Map<String, Object> paramsMap = new HashMap<>();
+        paramsMap.put("pathways", pathways);
+
+        String query = "MATCH (p:Pathway)-[:hasEvent]->(rle:ReactionLikeEvent) WHERE p.dbId IN {pathways} " +
+                "MATCH (rle)-[:input|output|catalystActivity|entityFunctionalStatus|physicalEntity|regulatedBy|regulator|hasComponent|hasMember|hasCandidate|repeatedUnit*]->(pe:PhysicalEntity)-[:referenceEntity]->(re:ReferenceEntity) " +
+                "WITH DISTINCT p, pe, re, COLLECT(DISTINCT {dbId: rle.dbId, stId: rle.stId}) AS rles " +
+                "OPTIONAL MATCH (pe)-[:hasModifiedResidue]->(tm:TranslationalModification)-[:psiMod]->(mod:PsiMod) " +
+                "WITH DISTINCT p, pe, re, rles, COLLECT(DISTINCT {coordinate: tm.coordinate, mod: mod.identifier}) AS tmods, COUNT(DISTINCT mod) AS n " +
+                "RETURN p.dbId AS pathway, " +
+                "       pe.dbId AS physicalEntity, " +
+                "       pe.speciesName AS speciesName, " +
+                "       re.dbId as referenceEntity, " +
+                "       rles AS reactions, " +
+                "       CASE WHEN n = 0 THEN [] ELSE tmods END AS mods";
+
+        try {
+            return ados.getCustomQueryResults(EntitiesQueryResult.class, query, paramsMap);
+        } catch (CustomQueryException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Adds the entities of a species to the container and the identifiers map (NOT thread safe, it is called
+     * by the species having the SpeciesWorkers turn because nodes like small molecules are shared between species)
+     */
+    private void merge(Map<String, SpeciesNode> speciesMap, Map<String, PsiModNode> psiModNodeMap,
+                       LongObjectMap<ReferenceEntityIdentifiers> xrefMap, Collection<EntitiesQueryResult> result) {
+        for (EntitiesQueryResult current : result) {
+            ReferenceEntityIdentifiers rei = xrefMap.get(current.getReferenceEntity());
+            List<XRef> xrefs = rei.getXrefs();
+            final String databaseName = xrefs.get(0).getDatabaseName();
+            final String identifier = xrefs.get(0).getIdentifier();
+            final SpeciesNode entitySpecies = speciesMap.get(current.getSpeciesName()); //Small molecules have no species (null is assigned)
+            Resource resource = ResourceFactory.getResource(databaseName);
+            if (resource instanceof MainResource) {
+                List<Modification> modifications = new ArrayList<>();
+                for (Mod mod : current.getMods()) {
+                    modifications.add(new Modification(mod.getCoordinate(), psiModNodeMap.get(mod.getMod())));
+                }
+                MainResource mainResource = (MainResource) resource;
+                //IMPORTANT: Add checks for duplicates and returns the right entity node to "play with"
+                MainIdentifier mainIdentifier = internTable.getMainIdentifier(mainResource, identifier);
+                EntityNode node = entitiesContainer.add(new EntityNode(entitySpecies, mainIdentifier, modifications));
+                node.addPathwayReactions(current.getPathway(), internTable.getReactions(current.getReactions()));
+
+                //Adding every possible xRef to the identifiers map
+                for (XRef xref : xrefs) {
+                    resource = ResourceFactory.getResource(xref.getDatabaseName());
+                    entitiesMap.add(xref.getIdentifier(), resource, node);
+                }
+
+                resource = ResourceFactory.getResource("#" + databaseName);
 
-        if (Main.VERBOSE) System.out.println(msgPrefix + ">> Done.");
+                for (String secondaryIdentifier : rei.getSecondaryIdentifiers()) {
+                    entitiesMap.add(secondaryIdentifier, resource, node);
+                }
+
+                for (String geneName : rei.getGeneNames()) {
+                    entitiesMap.add(geneName, resource, node);
+                }
+
+                for (String otherIdentifier : rei.getOtherIdentifiers()) {
+                    entitiesMap.add(otherIdentifier, resource, node);
+                }
+
+            } else {
+                logger.error("There is not main resource for physical entity " + current.getPhysicalEntity());
+            }
+        }
     }
 
     public void setOrthologous() {
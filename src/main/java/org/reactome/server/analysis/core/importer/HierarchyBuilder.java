@@ -1,11 +1,12 @@
 package org.reactome.server.analysis.core.importer;
 
 import org.reactome.server.analysis.core.Main;
+import org.reactome.server.analysis.core.importer.query.PathwayResult;
 import org.reactome.server.analysis.core.model.PathwayHierarchy;
 import org.reactome.server.analysis.core.model.PathwayNode;
 import org.reactome.server.analysis.core.model.SpeciesNode;
 import org.reactome.server.analysis.core.model.SpeciesNodeFactory;
-import org.reactome.server.analysis.core.util.MapSet;
+import org.reactome.server.analysis.core.util.LongMapSet;
 import org.reactome.server.graph.domain.model.Event;
 import org.reactome.server.graph.domain.model.Pathway;
 import org.reactome.server.graph.domain.model.Species;
@@ -16,6 +17,8 @@ import org.reactome.server.graph.utils.ReactomeGraphCore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,38 +31,69 @@ public class HierarchyBuilder {
     private static Logger logger = LoggerFactory.getLogger("importLogger");
 
     private Map<SpeciesNode, PathwayHierarchy> hierarchies = new HashMap<>();
-    private MapSet<Long, PathwayNode> pathwayLocation = new MapSet<>();
+    private LongMapSet<PathwayNode> pathwayLocation = new LongMapSet<>();
+    private SpeciesSegments segments = null;
+
+    public void setSegments(SpeciesSegments segments) {
+        this.segments = segments;
+    }
 
     public void build() {
         String msgPrefix = "\rCreating the pathway hierarchies";
 
         SpeciesService speciesService = ReactomeGraphCore.getService(SpeciesService.class);
-        TopLevelPathwayService tlpService = ReactomeGraphCore.getService(TopLevelPathwayService.class);
+        final TopLevelPathwayService tlpService = ReactomeGraphCore.getService(TopLevelPathwayService.class);
 
-        List<Species> speciesList = speciesService.getSpecies();
-        int i = 0;
-        int tot = Main.TEST_MAIN_SPECIES ? 1 : speciesList.size();
-        for (Species species : speciesList) {
+        List<Species> speciesList = new ArrayList<>();
+        for (Species species : speciesService.getSpecies()) {
             //FOR TEST PURPOSES
             if(Main.TEST_MAIN_SPECIES && !species.getTaxId().equals(Main.MAIN_SPECIES_TAX_ID)) break;
+            speciesList.add(species);
+        }
 
-            if (Main.VERBOSE) System.out.print(msgPrefix + " '" + species.getDisplayName() + "' >> " + ++i + "/" + tot + " ");
+        //Each species hierarchy is built in parallel with its own pathway locations that are merged in species order
+        new SpeciesWorkers<Species>() {
+            @Override
+            void run(Species species) throws InterruptedException {
+                SpeciesNode speciesNode = SpeciesNodeFactory.getSpeciesNode(species.getDbId(), species.getTaxId(), species.getDisplayName());
+                PathwayHierarchy pathwayHierarchy = new PathwayHierarchy(speciesNode);
+                LongMapSet<PathwayNode> pathwayLocation = new LongMapSet<>();
+
+                if (species.getTaxId() == null || species.getTaxId().isEmpty()) {
+                    logger.error("The species: " + species.getDisplayName() + " is missing the taxonomy id");
+                } else {
+                    SpeciesSegment segment = segments != null ? segments.get(species.getTaxId()) : null;
+                    List<PathwayResult> pathways = segment != null ? segment.getPathways() : null;
+                    if (pathways == null) {
+                        //The pathways are object mapped (and their events lazily loaded)
+                        synchronized (GRAPH_LOCK) {
+                            pathways = getPathways(tlpService.getTopLevelPathways(species.getTaxId()));
+                        }
+                        if (segment != null) segment.setPathways(pathways);
+                    }
+                    PathwayNode[] nodes = new PathwayNode[pathways.size()];
+                    for (int i = 0; i < nodes.length; i++) {
+                        PathwayResult p = pathways.get(i);
+                        if (p.getParent() < 0) {
+                            nodes[i] = pathwayHierarchy.addTopLevelPathway(p.getStId(), p.getDbId(), p.getDisplayName(), p.getHasDiagram());
+                        } else {
+                            nodes[i] = nodes[p.getParent()].addChild(p.getStId(), p.getDbId(), p.getDisplayName(), p.getHasDiagram());
+                        }
+                        if (p.isLowerLevelPathway()) nodes[i].setLowerLevelPathway(true);
+                        pathwayLocation.add(p.getDbId(), nodes[i]);
+                    }
+                }
 
-            SpeciesNode speciesNode = SpeciesNodeFactory.getSpeciesNode(species.getDbId(), species.getTaxId(), species.getDisplayName());
-            PathwayHierarchy pathwayHierarchy = new PathwayHierarchy(speciesNode);
-            this.hierarchies.put(speciesNode, pathwayHierarchy);
+                awaitTurn();
+                hierarchies.put(speciesNode, pathwayHierarchy);
+                HierarchyBuilder.this.pathwayLocation.addAll(pathwayLocation);
+            }
 
-            if (species.getTaxId() == null || species.getTaxId().isEmpty()) {
-                logger.error("The species: " + species.getDisplayName() + " is missing the taxonomy id");
-            } else {
-                for (TopLevelPathway tlp : tlpService.getTopLevelPathways(species.getTaxId())) {
-                    PathwayNode node = pathwayHierarchy.addTopLevelPathway(tlp);
-                    this.pathwayLocation.add(tlp.getDbId(), node);
-                    this.fillBranch(node, tlp);
-                    if (Main.VERBOSE) System.out.print("."); // Indicates progress
-                }
+            @Override
+            String getName(Species species) {
+                return species.getDisplayName();
             }
-        }
+        }.runAll(speciesList, msgPrefix);
 
         if(Main.VERBOSE) System.out.println(msgPrefix + " >> Done.");
     }
@@ -68,7 +102,7 @@ public class HierarchyBuilder {
         return hierarchies;
     }
 
-    public MapSet<Long, PathwayNode> getPathwayLocation() {
+    public LongMapSet<PathwayNode> getPathwayLocation() {
         return pathwayLocation;
     }
 
@@ -80,15 +114,26 @@ public class HierarchyBuilder {
         return rtn;
     }
 
-    private void fillBranch(PathwayNode node, Pathway pathway) {
+    /**
+     * Flattens the hierarchy below the top level pathways into its pathway locations (in pre-order)
+     */
+    private List<PathwayResult> getPathways(Collection<? extends TopLevelPathway> tlps) {
+        List<PathwayResult> rtn = new ArrayList<>();
+        for (TopLevelPathway tlp : tlps) {
+            rtn.add(new PathwayResult(-1, tlp.getStId(), tlp.getDbId(), tlp.getDisplayName(), tlp.getHasDiagram()));
+            fillBranch(rtn, rtn.size() - 1, tlp);
+        }
+        return rtn;
+    }
+
+    private void fillBranch(List<PathwayResult> pathways, int parent, Pathway pathway) {
         for (Event event : pathway.getHasEvent()) {
             if (event instanceof Pathway) {
                 Pathway p = (Pathway) event;
-                PathwayNode aux = node.addChild(p);
-                this.pathwayLocation.add(p.getDbId(), aux);
-                this.fillBranch(aux, p);
+                pathways.add(new PathwayResult(parent, p.getStId(), p.getDbId(), p.getDisplayName(), p.getHasDiagram()));
+                this.fillBranch(pathways, pathways.size() - 1, p);
             } else {
-                node.setLowerLevelPathway(true);
+                pathways.get(parent).setLowerLevelPathway(true);
             }
         }
     }
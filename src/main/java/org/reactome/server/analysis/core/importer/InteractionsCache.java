@@ -0,0 +1,140 @@
+package org.reactome.server.analysis.core.importer;
+
+import org.reactome.server.analysis.core.importer.query.InteractionResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local on-disk cache of the interactions retrieved for each target accession. The cache is bound to
+ * the graph database version, so it is discarded when the database changes. Accessions missing in the
+ * cache are retrieved from the database and added to it
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+class InteractionsCache {
+
+    private static Logger logger = LoggerFactory.getLogger("importLogger");
+
+    private static final int MAGIC = 0x52414943; //"RAIC" (Reactome Analysis Interactions Cache)
+
+    private final String fileName;
+    private final int dbVersion;
+    private final Map<String, List<InteractionResult>> interactions = new ConcurrentHashMap<>();
+    private volatile boolean modified = false;
+
+    /**
+     * Loads the cache stored in the file if it was created for the same database version (the cache starts
+     * empty otherwise)
+     */
+    InteractionsCache(String fileName, int dbVersion) {
+        this.fileName = fileName;
+        this.dbVersion = dbVersion;
+        File file = new File(fileName);
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                logger.warn(fileName + " is not an interactions cache. It will be overwritten");
+                return;
+            }
+            int version = in.readInt();
+            if (version != dbVersion) {
+                logger.info(String.format("Interactions cache created for version %d (current is %d). It will be refreshed", version, dbVersion));
+                return;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String target = in.readUTF();
+                int m = in.readInt();
+                List<InteractionResult> list = new ArrayList<>(m);
+                for (int j = 0; j < m; j++) {
+                    list.add(new InteractionResult(target, in.readUTF(), in.readUTF(), in.readBoolean(), readList(in), readList(in)));
+                }
+                interactions.put(target, list);
+            }
+            logger.info(String.format("Interactions cache loaded from %s (%d accessions)", fileName, n));
+        } catch (IOException e) {
+            logger.error("The interactions cache could not be read. It will be refreshed", e);
+            interactions.clear();
+        }
+    }
+
+    /**
+     * @return the interactions for the accession or null if it is not in the cache
+     */
+    List<InteractionResult> get(String accession) {
+        return interactions.get(accession);
+    }
+
+    void put(String accession, List<InteractionResult> list) {
+        interactions.put(accession, list);
+        modified = true;
+    }
+
+    int size() {
+        return interactions.size();
+    }
+
+    /**
+     * Writes the cache to a temporary file that replaces the previous one once it is complete, so an
+     * interrupted build does not leave a truncated cache behind
+     */
+    void store() {
+        if (!modified) return;
+        File target = new File(fileName).getAbsoluteFile();
+        File tmp;
+        try {
+            tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        } catch (IOException e) {
+            logger.error("The interactions cache could not be stored", e);
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(dbVersion);
+            out.writeInt(interactions.size());
+            for (Map.Entry<String, List<InteractionResult>> entry : interactions.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (InteractionResult interaction : entry.getValue()) {
+                    out.writeUTF(interaction.getDatabaseName());
+                    out.writeUTF(interaction.getIdentifier());
+                    out.writeBoolean(interaction.isReferenceSequence());
+                    writeList(out, interaction.getGeneNames());
+                    writeList(out, interaction.getSecondaryIdentifiers());
+                }
+            }
+        } catch (IOException e) {
+            logger.error("The interactions cache could not be stored", e);
+            if (!tmp.delete()) logger.warn("The temporary file " + tmp + " could not be deleted");
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modified = false;
+            logger.info(String.format("Interactions cache stored in %s (%d accessions)", fileName, interactions.size()));
+        } catch (IOException e) {
+            logger.error("The interactions cache could not be replaced", e);
+            if (!tmp.delete()) logger.warn("The temporary file " + tmp + " could not be deleted");
+        }
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        List<String> rtn = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) rtn.add(in.readUTF());
+        return rtn;
+    }
+
+    private static void writeList(DataOutputStream out, List<String> list) throws IOException {
+        out.writeInt(list.size());
+        for (String s : list) out.writeUTF(s);
+    }
+}
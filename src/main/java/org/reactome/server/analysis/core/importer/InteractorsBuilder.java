@@ -1,6 +1,7 @@
 package org.reactome.server.analysis.core.importer;
 
 import org.reactome.server.analysis.core.Main;
+import org.reactome.server.analysis.core.importer.query.InteractionResult;
 import org.reactome.server.analysis.core.importer.query.InteractorsTargetQueryResult;
 import org.reactome.server.analysis.core.model.*;
 import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
@@ -11,15 +12,13 @@ import org.reactome.server.analysis.core.util.MapSet;
 import org.reactome.server.graph.domain.model.*;
 import org.reactome.server.graph.exception.CustomQueryException;
 import org.reactome.server.graph.service.AdvancedDatabaseObjectService;
+import org.reactome.server.graph.service.GeneralService;
 import org.reactome.server.graph.service.InteractionsService;
 import org.reactome.server.graph.utils.ReactomeGraphCore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 /**
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
@@ -30,98 +29,285 @@ public class InteractorsBuilder {
 
     private AdvancedDatabaseObjectService ados = ReactomeGraphCore.getService(AdvancedDatabaseObjectService.class);
 
-    //Will contain the RADIX-TREE with the map (identifiers -> [InteractorNode])
+    //Will contain the index with the map (identifiers -> [InteractorNode])
     private IdentifiersMap<InteractorNode> interactorsMap = new IdentifiersMap<>();
 
     //Keeps track of the number of interactors that have been included
     private int n = 0;
 
-    public void build(Set<SpeciesNode> speciesNodes, EntitiesContainer entities, InteractionsService interactionsService) {
-        if (Main.VERBOSE) System.out.print("Starting creation of the interactors container...");
+    //Number of accessions whose interactions are retrieved in a single query (1 to use the interactions service)
+    private int batchSize = 500;
 
-        String query;
-        Map<String, Object> paramsMap = new HashMap<>();
-        int s = 0;
-        int st = speciesNodes.size();
+    //Local cache of the retrieved interactions (null when not used)
+    private String cacheFile = null;
+    private InteractionsCache cache = null;
+
+    private SpeciesSegments segments = null;
+
+    //Single instances of the reactions and main identifiers (shared with the entities builder)
+    private InternTable internTable = new InternTable();
+
+    public void build(Set<SpeciesNode> speciesNodes, final EntitiesContainer entities, final InteractionsService interactionsService) {
+        List<SpeciesNode> speciesList = new ArrayList<>();
         for (SpeciesNode species : speciesNodes) {
             if (Main.TEST_MAIN_SPECIES && !species.getTaxID().equals(Main.MAIN_SPECIES_TAX_ID)) continue;
+            speciesList.add(species);
+        }
+        Collections.sort(speciesList, SpeciesWorkers.SPECIES_ORDER);
 
-            paramsMap.put("taxId", species.getTaxID());
+        String msgPrefix = "\rCreating the interactors container";
+        if (cacheFile != null) {
+            GeneralService generalService = ReactomeGraphCore.getService(GeneralService.class);
+            cache = new InteractionsCache(cacheFile, generalService.getDBVersion());
+        }
+        if (Main.VERBOSE) System.out.print(msgPrefix + " >> retrieving interactors for " + speciesList.size() + " species...");
 
-            String speciesPrefix = "'" + species.getName() + "' (" + (++s) + "/" + st + ")";
-            if (Main.VERBOSE) System.out.print("\rCreating the interactors container for " + speciesPrefix + " >> retrieving targets for interactors...");
+        //Targets and interactions are retrieved in parallel and the results are merged one species at a time (in order)
+        new SpeciesWorkers<SpeciesNode>() {
+            @Override
+            void run(SpeciesNode species) throws InterruptedException {
+                SpeciesSegment segment = segments != null ? segments.get(species.getTaxID()) : null;
+                Collection<InteractorsTargetQueryResult> its = segment != null ? segment.getTargets() : null;
+                Map<String, List<InteractionResult>> interactions = segment != null ? segment.getInteractions(segments.getInteractionsVersion()) : null;
+                if (its == null) {
+                    its = getTargets(species);
+                    if (segment != null) segment.setTargets(its);
+                }
 
-            query = "MATCH (:Species{taxId:{taxId}})<-[:species]-(p:Pathway)-[:hasEvent]->(rle:ReactionLikeEvent), " +
-                    "      (rle)-[:input|output|catalystActivity|entityFunctionalStatus|physicalEntity|regulatedBy|regulator*]->(pe:PhysicalEntity)-[:referenceEntity]->(re:ReferenceEntity) " +
-                    "WHERE (p:TopLevelPathway) OR (:TopLevelPathway)-[:hasEvent*]->(p) " +
-                    //"     AND NOT (pe)-[:hasModifiedResidue]->(:TranslationalModification) " +
-                    "WITH DISTINCT p, re, COLLECT(DISTINCT {dbId: rle.dbId, stId: rle.stId}) AS rles " +
-                    "RETURN DISTINCT re.databaseName AS databaseName, " +
-                    "                CASE WHEN re.variantIdentifier IS NOT NULL THEN re.variantIdentifier ELSE re.identifier END AS identifier, " +
-                    "                p.dbId AS pathway, " +
-                    "                rles AS reactions";
-
-            Collection<InteractorsTargetQueryResult> its;
-            try {
-                its = ados.getCustomQueryResults(InteractorsTargetQueryResult.class, query, paramsMap);
-            } catch (CustomQueryException e) {
-                throw new RuntimeException(e);
+                MapSet<MainIdentifier, MapSet<Long, AnalysisReaction>> targets = getTargets(species, its, entities);
+                if (interactions == null) {
+                    Set<String> accessions = new HashSet<>();
+                    for (MainIdentifier target : targets.keySet()) {
+                        accessions.add(target.getValue().getId());
+                    }
+                    interactions = getInteractions(accessions, interactionsService);
+                    if (segment != null) segment.setInteractions(interactions, segments.getInteractionsVersion());
+                }
+                awaitTurn();
+                merge(targets, interactions);
+            }
+
+            @Override
+            String getName(SpeciesNode species) {
+                return species.getName();
             }
+        }.runAll(speciesList, msgPrefix);
+
+        if (cache != null) cache.store();
 
-            if (Main.VERBOSE) System.out.print("\rInteractors retrieved for " + speciesPrefix + " >> aggregating results by entity identifier...");
-            MapSet<MainIdentifier, MapSet<Long, AnalysisReaction>> compressedResult = new MapSet<>();
-            for (InteractorsTargetQueryResult it : its) {
-                MainResource mr = (MainResource) ResourceFactory.getResource(it.getDatabaseName());
-                AnalysisIdentifier ai = new AnalysisIdentifier(it.getIdentifier());
+        //No more identifiers are added from here, so the (immutable) index is created
+        interactorsMap.build();
+        if (Main.VERBOSE)
+            System.out.println("\rInteractors container successfully created >> " + n + " interactors have been added to Reactome.");
+    }
 
-                MainIdentifier interactsWith = new MainIdentifier(mr, ai);
-                if (entities.getNodes(interactsWith).isEmpty()) logger.error(interactsWith + " hasn't been previously created for '" + species.getName() + "'.");
+    /**
+     * Retrieves the entities of the species that can be targets of interactors
+     */
+    private Collection<InteractorsTargetQueryResult> getTargets(SpeciesNode species) {
+        Map<String, Object> paramsMap = new HashMap<>();
+        paramsMap.put("taxId", species.getTaxID());
 
-                compressedResult.add(interactsWith, it.getPathwayReactions());
+        String query = "MATCH (:Species{taxId:{taxId}})<-[:species]-(p:Pathway)-[:hasEvent]->(rle:ReactionLikeEvent), " +
+                "      (rle)-[:input|output|catalystActivity|entityFunctionalStatus|physicalEntity|regulatedBy|regulator*]->(pe:PhysicalEntity)-[:referenceEntity]->(re:ReferenceEntity) " +
+                "WHERE (p:TopLevelPathway) OR (:TopLevelPathway)-[:hasEvent*]->(p) " +
+                    //"     AND NOT (pe)-[:hasModifiedResidue]->(:TranslationalModification) " +
+                "WITH DISTINCT p, re, COLLECT(DISTINCT {dbId: rle.dbId, stId: rle.stId}) AS rles " +
+                "RETURN DISTINCT re.databaseName AS databaseName, " +
+                "                CASE WHEN re.variantIdentifier IS NOT NULL THEN re.variantIdentifier ELSE re.identifier END AS identifier, " +
+                "                p.dbId AS pathway, " +
+                "                rles AS reactions";
+
+        try {
+            return ados.getCustomQueryResults(InteractorsTargetQueryResult.class, query, paramsMap);
+        } catch (CustomQueryException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Aggregates the targets of a species by their main identifier
+     */
+    private MapSet<MainIdentifier, MapSet<Long, AnalysisReaction>> getTargets(SpeciesNode species, Collection<InteractorsTargetQueryResult> its, EntitiesContainer entities) {
+        MapSet<MainIdentifier, MapSet<Long, AnalysisReaction>> compressedResult = new MapSet<>();
+        for (InteractorsTargetQueryResult it : its) {
+            MainResource mr = (MainResource) ResourceFactory.getResource(it.getDatabaseName());
+            MainIdentifier interactsWith = internTable.getMainIdentifier(mr, it.getIdentifier());
+            if (entities.getNodes(interactsWith).isEmpty()) logger.error(interactsWith + " hasn't been previously created for '" + species.getName() + "'.");
+
+            compressedResult.add(interactsWith, it.getPathwayReactions());
+        }
+        return compressedResult;
+    }
+
+    /**
+     * Retrieves the interactions for the given accessions. Accessions in the cache are not queried and the
+     * rest are retrieved in batches of batchSize accessions (or one by one using the interactions service
+     * when batchSize is 1)
+     *
+     * @return the interactions for each accession (empty list when it does not have interactors)
+     */
+    private Map<String, List<InteractionResult>> getInteractions(Set<String> accessions, InteractionsService interactionsService) {
+        Map<String, List<InteractionResult>> rtn = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String accession : accessions) {
+            List<InteractionResult> cached = cache == null ? null : cache.get(accession);
+            if (cached != null) {
+                rtn.put(accession, cached);
+            } else {
+                missing.add(accession);
+                rtn.put(accession, new ArrayList<InteractionResult>());
             }
+        }
 
-            int i = 0, tot = compressedResult.keySet().size();
-            for (MainIdentifier target : compressedResult.keySet()) {
-                if (Main.VERBOSE) System.out.print("\rRetrieving interactors for targets in " + speciesPrefix + " >> " + (++i) + "/" + tot);
-                String acc = target.getValue().getId();
-
-                for (Interaction interaction : interactionsService.getInteractions(acc)) {
-                    Resource resource = ResourceFactory.getResource(interaction.getDatabaseName());
-                    ReferenceEntity interactor;
-                    if (interaction instanceof UndirectedInteraction) {
-                        UndirectedInteraction ui = (UndirectedInteraction) interaction;
-                        interactor = ui.getInteractor().get(0);
-                    } else {
-                        DirectedInteraction di = (DirectedInteraction) interaction;
-                        interactor = di.getTarget();
+        if (batchSize <= 1) {
+            for (String accession : missing) {
+                //The interactions are object mapped
+                synchronized (SpeciesWorkers.GRAPH_LOCK) {
+                    for (Interaction interaction : interactionsService.getInteractions(accession)) {
+                        rtn.get(accession).add(getInteractionResult(accession, interaction));
                     }
+                }
+            }
+        } else {
+            for (int i = 0; i < missing.size(); i += batchSize) {
+                List<String> batch = missing.subList(i, Math.min(missing.size(), i + batchSize));
+                addInteractions(rtn, batch, getInteractions(batch));
+            }
+        }
 
-                    InteractorNode interactorNode = getOrCreate(resource, interactor.getIdentifier());
-                    for (MapSet<Long, AnalysisReaction> prs : compressedResult.getElements(target)) {
-                        for (Long pathwayId : prs.keySet()) {
-                            interactorNode.addInteractsWith(pathwayId, target);
-                            interactorNode.addPathwayReactions(prs);
-                        }
+        if (cache != null) {
+            for (String accession : missing) {
+                cache.put(accession, rtn.get(accession));
+            }
+        }
+        return rtn;
+    }
+
+    /**
+     * Adds every row of the batched query to all the accessions of the batch it matches (either the identifier
+     * or the variant identifier of the target), so the result does not depend on which accessions share a batch.
+     * A target isoform is therefore added to the isoform and to the canonical accession, as when querying them
+     * one by one
+     *
+     * @param interactions the list of interactions of each accession (rows are added to them)
+     * @param batch        the accessions of the batch
+     * @param rows         the result of the batched query
+     */
+    static void addInteractions(Map<String, List<InteractionResult>> interactions, Collection<String> batch, Collection<InteractionResult> rows) {
+        Set<String> accessions = new HashSet<>(batch);
+        for (InteractionResult row : rows) {
+            addInteraction(interactions, accessions, row.getTarget(), row);
+            if (row.getTargetVariant() != null && !row.getTargetVariant().equals(row.getTarget())) {
+                addInteraction(interactions, accessions, row.getTargetVariant(), row);
+            }
+        }
+    }
+
+    private static void addInteraction(Map<String, List<InteractionResult>> interactions, Set<String> accessions, String target, InteractionResult row) {
+        if (target == null || !accessions.contains(target)) return;
+        interactions.get(target).add(new InteractionResult(target, row.getDatabaseName(), row.getIdentifier(), row.isReferenceSequence(), row.getGeneNames(), row.getSecondaryIdentifiers()));
+    }
+
+    /**
+     * Retrieves the interactors of a batch of accessions in a single query. A self interaction returns
+     * the target as interactor
+     */
+    private Collection<InteractionResult> getInteractions(List<String> accessions) {
+        Map<String, Object> paramsMap = new HashMap<>();
+        paramsMap.put("accessions", accessions);
+
+        String query = "MATCH (t:ReferenceEntity)<-[:interactor]-(in:Interaction) " +
+                "WHERE t.identifier IN {accessions} OR t.variantIdentifier IN {accessions} " +
+                "OPTIONAL MATCH (in)-[:interactor]->(i:ReferenceEntity) WHERE i <> t " +
+                "WITH DISTINCT t, in, CASE WHEN i IS NULL THEN t ELSE i END AS re " +
+                "RETURN t.identifier AS target, " +
+                "       t.variantIdentifier AS targetVariant, " +
+                "       in.databaseName AS databaseName, " +
+                "       re.identifier AS identifier, " +
+                "       'ReferenceSequence' IN LABELS(re) AS referenceSequence, " +
+                "       re.geneName AS geneNames, " +
+                "       re.secondaryIdentifier AS secondaryIdentifiers";
+
+        try {
+            return ados.getCustomQueryResults(InteractionResult.class, query, paramsMap);
+        } catch (CustomQueryException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private InteractionResult getInteractionResult(String accession, Interaction interaction) {
+        ReferenceEntity interactor;
+        if (interaction instanceof UndirectedInteraction) {
+            UndirectedInteraction ui = (UndirectedInteraction) interaction;
+            interactor = ui.getInteractor().get(0);
+        } else {
+            DirectedInteraction di = (DirectedInteraction) interaction;
+            interactor = di.getTarget();
+        }
+        List<String> geneNames = null;
+        List<String> secondaryIdentifiers = null;
+        boolean referenceSequence = interactor instanceof ReferenceSequence;
+        if (referenceSequence) {
+            ReferenceSequence rs = (ReferenceSequence) interactor;
+            geneNames = rs.getGeneName();
+            secondaryIdentifiers = rs.getSecondaryIdentifier();
+        }
+        return new InteractionResult(accession, interaction.getDatabaseName(), interactor.getIdentifier(), referenceSequence, geneNames, secondaryIdentifiers);
+    }
+
+    /**
+     * Adds the interactors of the targets of a species (NOT thread safe, it is called by the species having the
+     * SpeciesWorkers turn because the same interactor can be found for different species)
+     */
+    private void merge(MapSet<MainIdentifier, MapSet<Long, AnalysisReaction>> targets, Map<String, List<InteractionResult>> interactions) {
+        for (MainIdentifier target : targets.keySet()) {
+            for (InteractionResult interaction : interactions.get(target.getValue().getId())) {
+                Resource resource = ResourceFactory.getResource(interaction.getDatabaseName());
+                InteractorNode interactorNode = getOrCreate(resource, interaction.getIdentifier());
+                for (MapSet<Long, AnalysisReaction> prs : targets.getElements(target)) {
+                    for (Long pathwayId : prs.keySet()) {
+                        interactorNode.addInteractsWith(pathwayId, target);
+                        interactorNode.addPathwayReactions(pathwayId, internTable.getReactions(prs.getElements(pathwayId)));
                     }
+                }
 
-                    if (interactor instanceof ReferenceSequence) {
-                        ReferenceSequence rs = (ReferenceSequence) interactor;
-                        if (rs.getGeneName() != null) {
-                            for (String alias : rs.getGeneName()) {
-                                interactorsMap.add(alias, resource, interactorNode);
-                            }
-                        }
-                        if (rs.getSecondaryIdentifier() != null){
-                            for (String si : rs.getSecondaryIdentifier()) {
-                                if(!si.contains(" ")) interactorsMap.add(si, resource, interactorNode);
-                            }
-                        }
+                if (interaction.isReferenceSequence()) {
+                    for (String alias : interaction.getGeneNames()) {
+                        interactorsMap.add(alias, resource, interactorNode);
+                    }
+                    for (String si : interaction.getSecondaryIdentifiers()) {
+                        if(!si.contains(" ")) interactorsMap.add(si, resource, interactorNode);
                     }
                 }
             }
         }
-        if (Main.VERBOSE)
-            System.out.println("\rInteractors container successfully created >> " + n + " interactors have been added to Reactome.");
+    }
+
+    /**
+     * Sets the number of accessions whose interactions are retrieved in a single query
+     *
+     * @param batchSize the number of accessions per query (1 to use the interactions service per accession)
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Sets the file used to cache the retrieved interactions between executions
+     *
+     * @param cacheFile the cache file (null to retrieve everything from the database)
+     */
+    public void setCacheFile(String cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    public void setSegments(SpeciesSegments segments) {
+        this.segments = segments;
+    }
+
+    public void setInternTable(InternTable internTable) {
+        this.internTable = internTable;
     }
 
     public IdentifiersMap<InteractorNode> getInteractorsMap() {
@@ -0,0 +1,98 @@
+package org.reactome.server.analysis.core.importer;
+
+import org.reactome.server.analysis.core.model.AnalysisIdentifier;
+import org.reactome.server.analysis.core.model.AnalysisReaction;
+import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
+import org.reactome.server.analysis.core.model.resource.MainResource;
+import org.reactome.server.analysis.core.util.LongObjectMap;
+
+import java.util.*;
+
+/**
+ * Keeps a single instance of every reaction and main identifier added to the intermediate data structure.
+ * The query results create a new object per row, so without it the same reaction (or main identifier) is
+ * repeated in every entity node, interactor and pathway where it is present. Since Kryo tracks references,
+ * an interned object is also written only once to the data file (the rest of its occurrences are stored as
+ * an integer reference to it). The entities and the interactors are stored in different sections of the file,
+ * so the objects they share are written once in their own section (see SharedObjectsSerializer).
+ *
+ * The interning can be disabled (Main --no-intern) to measure what it saves comparing the resulting files
+ * and the heap they take once loaded (Main --measure)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class InternTable {
+
+    private final boolean intern;
+
+    private final LongObjectMap<AnalysisReaction> reactions = new LongObjectMap<>();
+    private final Map<MainResource, Map<String, MainIdentifier>> identifiers = new HashMap<>();
+
+    private long reactionRequests = 0;
+    private long identifierRequests = 0;
+    private int identifiersCount = 0;
+
+    public InternTable() {
+        this(true);
+    }
+
+    /**
+     * @param intern false to get a new instance every time (only to measure what the interning saves)
+     */
+    public InternTable(boolean intern) {
+        this.intern = intern;
+    }
+
+    /**
+     * @return the single instance of the reaction
+     */
+    public synchronized AnalysisReaction getReaction(AnalysisReaction reaction) {
+        reactionRequests++;
+        if (!intern) return reaction;
+        AnalysisReaction rtn = reactions.get(reaction.getDbId());
+        if (rtn == null) {
+            rtn = reaction;
+            reactions.put(reaction.getDbId(), rtn);
+        }
+        return rtn;
+    }
+
+    /**
+     * @return the single instances of the reactions (same order)
+     */
+    public synchronized List<AnalysisReaction> getReactions(Collection<AnalysisReaction> reactions) {
+        List<AnalysisReaction> rtn = new ArrayList<>(reactions.size());
+        for (AnalysisReaction reaction : reactions) {
+            rtn.add(getReaction(reaction));
+        }
+        return rtn;
+    }
+
+    /**
+     * @return the single instance of the main identifier for the resource and identifier
+     */
+    public synchronized MainIdentifier getMainIdentifier(MainResource resource, String identifier) {
+        identifierRequests++;
+        if (!intern) return new MainIdentifier(resource, new AnalysisIdentifier(identifier));
+        Map<String, MainIdentifier> map = identifiers.get(resource);
+        if (map == null) {
+            map = new HashMap<>();
+            identifiers.put(resource, map);
+        }
+        MainIdentifier rtn = map.get(identifier);
+        if (rtn == null) {
+            rtn = new MainIdentifier(resource, new AnalysisIdentifier(identifier));
+            map.put(identifier, rtn);
+            identifiersCount++;
+        }
+        return rtn;
+    }
+
+    public synchronized String getSummary() {
+        if (!intern) {
+            return String.format("disabled (%d reactions and %d main identifiers created)", reactionRequests, identifierRequests);
+        }
+        return String.format("%d reactions (%d references) and %d main identifiers (%d references)",
+                reactions.size(), reactionRequests, identifiersCount, identifierRequests);
+    }
+}
@@ -0,0 +1,126 @@
+package org.reactome.server.analysis.core.importer;
+
+import org.reactome.server.analysis.core.importer.query.*;
+
+import java.util.*;
+
+/**
+ * Query results needed to build the data structure for a species (hierarchy, entities and interactors).
+ * Segments are stored by SpeciesSegments so the species that did not change since the previous build do
+ * not need to be queried again
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+class SpeciesSegment {
+
+    private String taxId;
+    //Summary of the species content in the database when the segment was queried
+    private String fingerprint;
+    //Hash of the query results (calculated when the segment is stored)
+    private String hash;
+
+    private List<PathwayResult> pathways;
+    private List<ReferenceEntityIdentifiers> xrefs;
+    private List<EntitiesQueryResult> entities;
+    private List<InteractorsTargetQueryResult> targets;
+    private Map<String, List<InteractionResult>> interactions;
+    //Graph database version the interactions were retrieved from
+    private int interactionsVersion;
+
+    //True when any part has been (re)queried in this build
+    private transient boolean modified;
+
+    SpeciesSegment(String taxId, String fingerprint) {
+        this.taxId = taxId;
+        this.fingerprint = fingerprint;
+        this.modified = true;
+    }
+
+    String getTaxId() {
+        return taxId;
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    String getHash() {
+        return hash;
+    }
+
+    void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    boolean isModified() {
+        return modified;
+    }
+
+    List<PathwayResult> getPathways() {
+        return pathways;
+    }
+
+    void setPathways(List<PathwayResult> pathways) {
+        this.pathways = new ArrayList<>(pathways);
+        this.modified = true;
+    }
+
+    List<ReferenceEntityIdentifiers> getXrefs() {
+        return xrefs;
+    }
+
+    void setXrefs(Collection<ReferenceEntityIdentifiers> xrefs) {
+        this.xrefs = sort(xrefs);
+        this.modified = true;
+    }
+
+    /**
+     * Sorts the xrefs by reference entity, so their hash does not depend on the order of the query results
+     */
+    static List<ReferenceEntityIdentifiers> sort(Collection<ReferenceEntityIdentifiers> xrefs) {
+        List<ReferenceEntityIdentifiers> rtn = new ArrayList<>(xrefs);
+        Collections.sort(rtn, new Comparator<ReferenceEntityIdentifiers>() {
+            @Override
+            public int compare(ReferenceEntityIdentifiers o1, ReferenceEntityIdentifiers o2) {
+                return o1.getReferenceEntity().compareTo(o2.getReferenceEntity());
+            }
+        });
+        return rtn;
+    }
+
+    List<EntitiesQueryResult> getEntities() {
+        return entities;
+    }
+
+    void setEntities(Collection<EntitiesQueryResult> entities) {
+        this.entities = new ArrayList<>(entities);
+        this.modified = true;
+    }
+
+    List<InteractorsTargetQueryResult> getTargets() {
+        return targets;
+    }
+
+    void setTargets(Collection<InteractorsTargetQueryResult> targets) {
+        this.targets = new ArrayList<>(targets);
+        this.modified = true;
+    }
+
+    /**
+     * @param version the version of the interactions used in this build
+     * @return the interactions or null if they were retrieved from a different version
+     */
+    Map<String, List<InteractionResult>> getInteractions(int version) {
+        return version == interactionsVersion ? interactions : null;
+    }
+
+    Map<String, List<InteractionResult>> getInteractions() {
+        return interactions;
+    }
+
+    void setInteractions(Map<String, List<InteractionResult>> interactions, int version) {
+        this.interactions = new TreeMap<>(interactions);
+        this.interactionsVersion = version;
+        this.modified = true;
+    }
+}
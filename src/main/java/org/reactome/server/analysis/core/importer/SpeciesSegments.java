@@ -0,0 +1,188 @@
+package org.reactome.server.analysis.core.importer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.shaded.org.objenesis.strategy.StdInstantiatorStrategy;
+import org.reactome.server.analysis.core.importer.query.ReferenceEntityIdentifiers;
+import org.reactome.server.analysis.core.importer.query.SpeciesFingerprint;
+import org.reactome.server.graph.exception.CustomQueryException;
+import org.reactome.server.graph.service.AdvancedDatabaseObjectService;
+import org.reactome.server.graph.service.GeneralService;
+import org.reactome.server.graph.utils.ReactomeGraphCore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the query results of each species in its own file (segment) in a directory. In incremental mode,
+ * the segment of a species is reused when the fingerprint of the species in the database (number of events
+ * and physical entities, their identifiers and latest modification plus a hash of the xrefs of its reference
+ * entities) has not changed, so only the changed species are queried again. The xrefs are therefore always
+ * queried, since identifiers, gene names and secondary identifiers change without the events or the physical
+ * entities being modified. The container is always reassembled from the segments.
+ * <p>
+ * Interactions are not species-scoped, so the interactions kept in a segment are only reused when they were
+ * retrieved from the same graph database version (the interactions are imported with every release)
+ * <p>
+ * Each stored segment contains a hash of its query results, so it is possible to tell whether a species that
+ * was queried again actually changed
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class SpeciesSegments {
+
+    private static Logger logger = LoggerFactory.getLogger("importLogger");
+
+    private static final String EXTENSION = ".segment";
+
+    private AdvancedDatabaseObjectService ados = ReactomeGraphCore.getService(AdvancedDatabaseObjectService.class);
+
+    private final File directory;
+    private final boolean incremental;
+    private final int dbVersion;
+    private final ConcurrentHashMap<String, SpeciesSegment> segments = new ConcurrentHashMap<>();
+
+    private int reused = 0;
+    private int unchanged = 0;
+    private int changed = 0;
+
+    /**
+     * @param directory   the directory where the segments are stored
+     * @param incremental true to reuse the stored segments of the species that did not change
+     */
+    public SpeciesSegments(String directory, boolean incremental) {
+        this.directory = new File(directory);
+        this.incremental = incremental;
+        this.dbVersion = ReactomeGraphCore.getService(GeneralService.class).getDBVersion();
+        if (!this.directory.exists() && !this.directory.mkdirs()) {
+            throw new RuntimeException("The segments directory " + directory + " cannot be created");
+        }
+    }
+
+    /**
+     * Returns the segment for the species. In incremental mode it is the stored one if the species did not
+     * change, otherwise it is an empty segment to be filled by the builders
+     *
+     * @param taxId the species taxonomy identifier
+     * @return the segment for the species or null if the species does not have taxonomy identifier
+     */
+    SpeciesSegment get(final String taxId) {
+        if (taxId == null || taxId.isEmpty()) return null;
+        SpeciesSegment segment = segments.get(taxId);
+        if (segment != null) return segment;
+        List<ReferenceEntityIdentifiers> xrefs = SpeciesSegment.sort(EntitiesBuilder.getReferenceEntityIdentifiers(ados, taxId));
+        String fingerprint = getFingerprint(taxId, xrefs);
+        SpeciesSegment stored = incremental ? load(taxId) : null;
+        if (stored != null && fingerprint.equals(stored.getFingerprint())) {
+            segment = stored;
+        } else {
+            segment = new SpeciesSegment(taxId, fingerprint);
+            //The xrefs have just been retrieved, so the entities builder does not query them again
+            segment.setXrefs(xrefs);
+            if (stored != null) segment.setHash(stored.getHash());
+        }
+        SpeciesSegment previous = segments.putIfAbsent(taxId, segment);
+        return previous != null ? previous : segment;
+    }
+
+    /**
+     * Stores the segments that have been (re)queried in this build
+     */
+    public void store() {
+        Kryo kryo = getKryo();
+        for (SpeciesSegment segment : segments.values()) {
+            if (!segment.isModified()) {
+                reused++;
+                continue;
+            }
+            String previous = segment.getHash();
+            String hash = getHash(kryo, segment);
+            segment.setHash(hash);
+            if (hash.equals(previous)) unchanged++; else changed++;
+            try (Output output = new Output(new FileOutputStream(getFile(segment.getTaxId())))) {
+                kryo.writeObject(output, segment);
+            } catch (IOException e) {
+                logger.error("The segment for " + segment.getTaxId() + " could not be stored", e);
+            }
+        }
+        logger.info(getSummary());
+    }
+
+    /**
+     * @return the version of the interactions retrieved in this build (the graph database version)
+     */
+    int getInteractionsVersion() {
+        return dbVersion;
+    }
+
+    public String getSummary() {
+        return String.format("%d species reused, %d re-queried without changes and %d rebuilt", reused, unchanged, changed);
+    }
+
+    private SpeciesSegment load(String taxId) {
+        File file = getFile(taxId);
+        if (!file.exists()) return null;
+        try (Input input = new Input(new FileInputStream(file))) {
+            return getKryo().readObject(input, SpeciesSegment.class);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("The segment for " + taxId + " could not be read. It will be rebuilt", e);
+            return null;
+        }
+    }
+
+    private String getFingerprint(String taxId, Collection<ReferenceEntityIdentifiers> xrefs) {
+        Map<String, Object> paramsMap = new HashMap<>();
+        paramsMap.put("taxId", taxId);
+        String query = "MATCH (s:Species{taxId:{taxId}}) " +
+                "OPTIONAL MATCH (s)<-[:species]-(o) WHERE o:Event OR o:PhysicalEntity " +
+                "OPTIONAL MATCH (o)-[:modified|created]->(ie:InstanceEdit) " +
+                "RETURN COUNT(DISTINCT o) AS objects, SUM(DISTINCT o.dbId) AS dbIds, MAX(ie.dateTime) AS lastModified";
+        try {
+            SpeciesFingerprint fingerprint = ados.getCustomQueryResult(SpeciesFingerprint.class, query, paramsMap);
+            return (fingerprint == null ? "" : fingerprint.toString()) + ":" + digest(getKryo(), xrefs);
+        } catch (CustomQueryException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Hash of the query results in the segment (the fingerprint is not included)
+    private static String getHash(Kryo kryo, SpeciesSegment segment) {
+        return digest(kryo, segment.getPathways(), segment.getXrefs(), segment.getEntities(), segment.getTargets(), segment.getInteractions());
+    }
+
+    //MD5 of the Kryo serialisation of the given objects
+    private static String digest(Kryo kryo, Object... objects) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Output output = new Output(bos);
+        for (Object object : objects) {
+            kryo.writeClassAndObject(output, object);
+        }
+        output.close();
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(bos.toByteArray())) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File getFile(String taxId) {
+        return new File(directory, taxId + EXTENSION);
+    }
+
+    private static Kryo getKryo() {
+        Kryo kryo = new Kryo();
+        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+        return kryo;
+    }
+}
@@ -0,0 +1,123 @@
+package org.reactome.server.analysis.core.importer;
+
+import org.reactome.server.analysis.core.Main;
+import org.reactome.server.analysis.core.model.SpeciesNode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs the import of the different species in parallel (Main.WORKERS threads). Each task runs its queries
+ * without touching the shared data structures and merges its results once it has its turn (awaitTurn or
+ * isTurn). The turns follow the order of the species list, so the merged data structures (and the file
+ * built from them) do not depend on the order in which the queries finish.
+ *
+ * The custom queries of AdvancedDatabaseObjectService map the rows to plain result classes, so they run in
+ * parallel. The object mapped services (those returning domain objects, registered in the mapping context
+ * of the OGM session shared by the graph-core services and lazily loaded through it) are not known to be
+ * thread safe, so they have to be called holding GRAPH_LOCK. Use one worker to import sequentially.
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+abstract class SpeciesWorkers<S> {
+
+    static final Object GRAPH_LOCK = new Object();
+
+    //Fixed order for the species taken from maps and sets
+    static final Comparator<SpeciesNode> SPECIES_ORDER = new Comparator<SpeciesNode>() {
+        @Override
+        public int compare(SpeciesNode o1, SpeciesNode o2) {
+            return o1.getSpeciesID().compareTo(o2.getSpeciesID());
+        }
+    };
+
+    private final Object turnLock = new Object();
+    //Position in the species list of the species whose results are being merged
+    private int turn = 0;
+    //Position in the species list of the species imported by the current thread
+    private final ThreadLocal<Integer> position = new ThreadLocal<>();
+
+    private List<S> speciesList;
+    private String msgPrefix;
+
+    /**
+     * Imports a species. It runs concurrently with the import of other species
+     */
+    abstract void run(S species) throws Exception;
+
+    /**
+     * Name shown in the progress message for a species
+     */
+    abstract String getName(S species);
+
+    /**
+     * Waits until the previous species in the list have been merged
+     */
+    void awaitTurn() throws InterruptedException {
+        synchronized (turnLock) {
+            while (turn != position.get()) turnLock.wait();
+        }
+    }
+
+    /**
+     * @return true if the previous species in the list have been merged (so can be the current one)
+     */
+    boolean isTurn() {
+        synchronized (turnLock) {
+            return turn == position.get();
+        }
+    }
+
+    /**
+     * Shows the progress of the current species (only to be called when it has the turn)
+     */
+    void progress(String msg) {
+        if (Main.VERBOSE) {
+            int i = position.get();
+            System.out.print(msgPrefix + " >> '" + getName(speciesList.get(i)) + "' (" + (i + 1) + "/" + speciesList.size() + ") " + msg);
+        }
+    }
+
+    void runAll(Collection<S> speciesList, final String msgPrefix) {
+        this.speciesList = new ArrayList<>(speciesList);
+        this.msgPrefix = msgPrefix;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(Main.WORKERS, speciesList.size())));
+        try {
+            //The tasks are taken in order, so the one having the turn is always running (no deadlock)
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < this.speciesList.size(); i++) {
+                final int pos = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        position.set(pos);
+                        run(SpeciesWorkers.this.speciesList.get(pos));
+                        //In case the task did not merge anything
+                        awaitTurn();
+                        progress("done");
+                        synchronized (turnLock) {
+                            turn++;
+                            turnLock.notifyAll();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.reactome.server.analysis.core.importer.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An interactor of a target accession (one row of the batched interactions query)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class InteractionResult {
+
+    private String target;
+    //Variant identifier of the target (only set by the batched query, see InteractorsBuilder)
+    private String targetVariant;
+    private String databaseName;
+    private String identifier;
+    private boolean referenceSequence;
+    private List<String> geneNames;
+    private List<String> secondaryIdentifiers;
+
+    public InteractionResult() { }
+
+    public InteractionResult(String target, String databaseName, String identifier, boolean referenceSequence,
+                             List<String> geneNames, List<String> secondaryIdentifiers) {
+        this.target = target;
+        this.databaseName = databaseName;
+        this.identifier = identifier;
+        this.referenceSequence = referenceSequence;
+        this.geneNames = geneNames;
+        this.secondaryIdentifiers = secondaryIdentifiers;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    public String getTargetVariant() {
+        return targetVariant;
+    }
+
+    public void setTargetVariant(String targetVariant) {
+        this.targetVariant = targetVariant;
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    public void setDatabaseName(String databaseName) {
+        this.databaseName = databaseName;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public void setIdentifier(String identifier) {
+        this.identifier = identifier;
+    }
+
+    public boolean isReferenceSequence() {
+        return referenceSequence;
+    }
+
+    public void setReferenceSequence(boolean referenceSequence) {
+        this.referenceSequence = referenceSequence;
+    }
+
+    public List<String> getGeneNames() {
+        return geneNames == null ? new ArrayList<String>() : geneNames;
+    }
+
+    public void setGeneNames(List<String> geneNames) {
+        this.geneNames = geneNames;
+    }
+
+    public List<String> getSecondaryIdentifiers() {
+        return secondaryIdentifiers == null ? new ArrayList<String>() : secondaryIdentifiers;
+    }
+
+    public void setSecondaryIdentifiers(List<String> secondaryIdentifiers) {
+        this.secondaryIdentifiers = secondaryIdentifiers;
+    }
+}
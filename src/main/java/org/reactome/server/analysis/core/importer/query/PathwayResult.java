@@ -0,0 +1,55 @@
+package org.reactome.server.analysis.core.importer.query;
+
+/**
+ * A location of a pathway in a species hierarchy. The locations are stored in pre-order and each one
+ * points to the position of its parent location (-1 for the top level pathways)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class PathwayResult {
+
+    private int parent;
+    private String stId;
+    private Long dbId;
+    private String displayName;
+    private boolean hasDiagram;
+    private boolean lowerLevelPathway;
+
+    public PathwayResult() { }
+
+    public PathwayResult(int parent, String stId, Long dbId, String displayName, boolean hasDiagram) {
+        this.parent = parent;
+        this.stId = stId;
+        this.dbId = dbId;
+        this.displayName = displayName;
+        this.hasDiagram = hasDiagram;
+    }
+
+    public int getParent() {
+        return parent;
+    }
+
+    public String getStId() {
+        return stId;
+    }
+
+    public Long getDbId() {
+        return dbId;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public boolean getHasDiagram() {
+        return hasDiagram;
+    }
+
+    public boolean isLowerLevelPathway() {
+        return lowerLevelPathway;
+    }
+
+    public void setLowerLevelPathway(boolean lowerLevelPathway) {
+        this.lowerLevelPathway = lowerLevelPathway;
+    }
+}
@@ -0,0 +1,44 @@
+package org.reactome.server.analysis.core.importer.query;
+
+/**
+ * Cheap summary of the events and physical entities of a species used to detect whether they have changed
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class SpeciesFingerprint {
+
+    private Long objects;
+    private Long dbIds;
+    private String lastModified;
+
+    public SpeciesFingerprint() { }
+
+    public Long getObjects() {
+        return objects;
+    }
+
+    public void setObjects(Long objects) {
+        this.objects = objects;
+    }
+
+    public Long getDbIds() {
+        return dbIds;
+    }
+
+    public void setDbIds(Long dbIds) {
+        this.dbIds = dbIds;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return objects + ":" + dbIds + ":" + lastModified;
+    }
+}
@@ -0,0 +1,24 @@
+package org.reactome.server.analysis.core.importer.query;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The identifiers of the pathways of a species, used to split the per species queries in smaller ones
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class SpeciesPathways {
+
+    private List<Long> pathways;
+
+    public SpeciesPathways() { }
+
+    public List<Long> getPathways() {
+        return pathways == null ? Collections.<Long>emptyList() : pathways;
+    }
+
+    public void setPathways(List<Long> pathways) {
+        this.pathways = pathways;
+    }
+}
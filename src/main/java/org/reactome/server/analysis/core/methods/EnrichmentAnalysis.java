@@ -3,23 +3,22 @@ package org.reactome.server.analysis.core.methods;
 
 import org.reactome.server.analysis.core.data.AnalysisData;
 import org.reactome.server.analysis.core.data.HierarchiesDataContainer;
+import org.reactome.server.analysis.core.metrics.AnalysisMetrics;
+import org.reactome.server.analysis.core.metrics.AnalysisMetrics.Stage;
 import org.reactome.server.analysis.core.model.*;
 import org.reactome.server.analysis.core.model.identifier.Identifier;
 import org.reactome.server.analysis.core.model.identifier.InteractorIdentifier;
 import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
 import org.reactome.server.analysis.core.model.identifier.OtherIdentifier;
 import org.reactome.server.analysis.core.model.resource.MainResource;
-import org.reactome.server.analysis.core.model.resource.Resource;
-import org.reactome.server.analysis.core.util.MapSet;
+import org.reactome.server.analysis.core.result.exception.ServiceUnavailableException;
+import org.reactome.server.analysis.core.util.LongMapSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 /**
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
@@ -34,6 +33,9 @@ public class EnrichmentAnalysis {
 
     private final AnalysisData analysisData;
 
+    //When true the hits are propagated using the flat (index based) representation of the hierarchies
+    private boolean compiledHierarchies = true;
+
     @Autowired
     public EnrichmentAnalysis(AnalysisData analysisData) {
         this.analysisData = analysisData;
@@ -41,79 +43,149 @@ public class EnrichmentAnalysis {
 
     @SuppressWarnings("WeakerAccess")
     public HierarchiesData overRepresentation(Set<AnalysisIdentifier> identifiers, SpeciesNode speciesNode, boolean includeInteractors) {
+        //The same data is used during the whole analysis (even if a new data file is loaded meanwhile)
+        DataContainer data = analysisData.getDataContainer();
+        //The interactors might still be loading, so they are only requested when needed
+        IdentifiersMap<InteractorNode> interactorsMap = includeInteractors ? analysisData.getInteractorsMap(data) : null;
+        if (includeInteractors && interactorsMap == null) {
+            throw new ServiceUnavailableException("The interactors are not available. Please try the analysis without including them");
+        }
         this.increaseCounter();
-        HierarchiesData hierarchiesData = HierarchiesDataContainer.take();
-        this.analyse(hierarchiesData, identifiers, speciesNode, includeInteractors);
+        long start = System.nanoTime();
+        HierarchiesData hierarchiesData = HierarchiesDataContainer.take(data);
+        AnalysisMetrics.record(Stage.HIERARCHIES_TAKE, start);
+        this.analyse(data, hierarchiesData, identifiers, speciesNode, interactorsMap);
+        AnalysisMetrics.record(Stage.ANALYSIS, start);
         this.decreaseCounter();
         return hierarchiesData;
     }
 
+    /**
+     * Sets the maximum number of threads used to calculate the statistics of the different hit species
+     *
+     * @param parallelism the maximum number of threads (1 for sequential calculation)
+     */
+    @SuppressWarnings("unused")
+    public void setStatisticsParallelism(int parallelism) {
+        HierarchiesData.setStatisticsParallelism(parallelism);
+    }
+
+    /**
+     * Sets the maximum number of threads used to resolve the submitted identifiers
+     *
+     * @param parallelism the maximum number of threads (1 for sequential resolution)
+     */
+    @SuppressWarnings("unused")
+    public void setResolutionParallelism(int parallelism) {
+        IdentifiersResolver.setResolutionParallelism(parallelism);
+    }
+
     public static long getAnalysisCount() {
         return ANALYSIS_COUNT;
     }
 
-    private void analyse(HierarchiesData hierarchies, Set<AnalysisIdentifier> identifiers, SpeciesNode speciesNode, boolean includeInteractors) {
+    public boolean isCompiledHierarchies() {
+        return compiledHierarchies;
+    }
+
+    /**
+     * Selects whether the hits are propagated using the compiled hierarchies (default) or following
+     * the parent links of the pathway hierarchies object tree
+     *
+     * @param compiledHierarchies true to use the compiled hierarchies
+     */
+    @SuppressWarnings("unused")
+    public void setCompiledHierarchies(boolean compiledHierarchies) {
+        this.compiledHierarchies = compiledHierarchies;
+    }
+
+    private void analyse(DataContainer data, HierarchiesData hierarchies, Set<AnalysisIdentifier> identifiers, SpeciesNode speciesNode, IdentifiersMap<InteractorNode> interactorsMap) {
+        boolean includeInteractors = interactorsMap != null;
         Integer originalSampleSize = identifiers.size();
-        IdentifiersMap<EntityNode> entitiesMap = analysisData.getEntitiesMap();
-        IdentifiersMap<InteractorNode> interactorsMap = analysisData.getInteractorsMap();
+        IdentifiersMap<EntityNode> entitiesMap = data.getEntitiesMap();
 
         logger.trace("Analysing: " + originalSampleSize + " identifier(s). Including interactors: " + includeInteractors + ". Project to species: " + (speciesNode == null ? false : speciesNode.getName()));
         long start = System.currentTimeMillis();
-
+        long stage = System.nanoTime();
+
+        //Resolution stage: the identifiers are looked up in bulk and the propagation works with the matches
+        List<AnalysisIdentifier> input = new ArrayList<>(identifiers);
+        IdentifiersResolver resolver = new IdentifiersResolver(input);
+        IdentifiersResolver.Resolution entities = resolver.resolve(entitiesMap);
+        IdentifiersResolver.Resolution interactors = includeInteractors ? resolver.resolve(interactorsMap) : null;
+        long resolved = System.currentTimeMillis();
+        stage = AnalysisMetrics.record(Stage.RESOLUTION, stage);
+        logger.trace(originalSampleSize + " identifier(s) (" + resolver.getUniqueCount() + " unique) resolved in " + (resolved - start) + " ms");
+
+        //Propagation stage
+        boolean[] found = new boolean[input.size()];
         Set<MainIdentifier> newSample = new HashSet<>();
-        for (AnalysisIdentifier identifier : identifiers) {
-            MapSet<Resource, EntityNode> resourceEntities = entitiesMap.get(identifier);
-            boolean found = false;
-            for (Resource resource : resourceEntities.keySet()) {
-                Identifier otherIdentifier = new OtherIdentifier(resource, identifier);
-                for (EntityNode node : resourceEntities.getElements(resource)) {
-                    if (speciesNode != null) node = node.getProjection(speciesNode);
-                    if (node == null) continue;
-                    found = true;
-                    MainIdentifier mainAux = node.getIdentifier();
-                    if (mainAux != null) {
-                        //Create a copy of the main identifier and add to it the expression values of the analysed one
-                        AnalysisIdentifier ai = new AnalysisIdentifier(mainAux.getValue().getId(), otherIdentifier.getValue().getExp());
-                        MainIdentifier mainIdentifier = new MainIdentifier(mainAux.getResource(), ai);
-                        newSample.add(mainIdentifier);
-                        for (Long pathwayId : node.getPathwayIds()) {
-                            Set<PathwayNode> pNodes = hierarchies.getPathwayLocation().getElements(pathwayId);
-                            if (pNodes == null) continue;
-                            for (PathwayNode pNode : pNodes) {
-                                Set<AnalysisReaction> reactions = node.getReactions(pathwayId);
-                                pNode.process(otherIdentifier, mainIdentifier, reactions);
-                            }
-                        }
+        int inputIndex = -1, resourceId = -1;
+        Identifier otherIdentifier = null;
+        for (int i = 0; i < entities.size(); i++) {
+            //Matches of the same input are consecutive, but the resources of an accession and its isoforms can
+            //interleave, so an input can get more than one (equal) OtherIdentifier for the same resource
+            if (entities.getInput(i) != inputIndex || entities.getResourceId(i) != resourceId) {
+                inputIndex = entities.getInput(i);
+                resourceId = entities.getResourceId(i);
+                otherIdentifier = new OtherIdentifier(entitiesMap.getResource(resourceId), input.get(inputIndex));
+            }
+            EntityNode node = entitiesMap.getElement(entities.getElementId(i));
+            if (speciesNode != null) node = node.getProjection(speciesNode);
+            if (node == null) continue;
+            found[inputIndex] = true;
+            MainIdentifier mainAux = node.getIdentifier();
+            if (mainAux != null) {
+                //Create a copy of the main identifier and add to it the expression values of the analysed one
+                AnalysisIdentifier ai = new AnalysisIdentifier(mainAux.getValue().getId(), otherIdentifier.getValue());
+                MainIdentifier mainIdentifier = new MainIdentifier(mainAux.getResource(), ai);
+                newSample.add(mainIdentifier);
+                for (long pathwayId : node.getPathwayIds()) {
+                    if (compiledHierarchies) {
+                        hierarchies.process(pathwayId, otherIdentifier, mainIdentifier, node.getIdentifierId(), node.getReactionIds(pathwayId));
+                        continue;
+                    }
+                    Set<PathwayNode> pNodes = hierarchies.getPathwayLocation().getElements(pathwayId);
+                    if (pNodes == null) continue;
+                    for (PathwayNode pNode : pNodes) {
+                        Set<AnalysisReaction> reactions = node.getReactions(pathwayId);
+                        hierarchies.process(pNode, otherIdentifier, mainIdentifier, reactions);
                     }
                 }
             }
+        }
 
-            if (includeInteractors) {
-                MapSet<Resource, InteractorNode> interactors = interactorsMap.get(identifier);
-                for (Resource resource : interactors.keySet()) {
-                    //Note: It goes only once
-                    for (InteractorNode interactor : interactors.getElements(resource)) {
-                        InteractorIdentifier interactorIdentifier = new InteractorIdentifier(identifier, interactor.getAccession());
-                        MapSet<Long, AnalysisReaction> pathwayReactions = interactor.getPathwayReactions();
-                        for (Long pathwayId : pathwayReactions.keySet()) {
-                            for (MainIdentifier mainIdentifier : interactor.getInteractsWith(pathwayId)) {
-                                found = true;
-                                newSample.add(mainIdentifier);
-                                Set<AnalysisReaction> reactions = pathwayReactions.getElements(pathwayId);
-                                Set<PathwayNode> pNodes = hierarchies.getPathwayLocation().getElements(pathwayId);
-                                for (PathwayNode pNode : pNodes) {
-                                    pNode.processInteractor(interactorIdentifier, mainIdentifier, reactions);
-                                }
-                            }
+        if (interactors != null) {
+            for (int i = 0; i < interactors.size(); i++) {
+                AnalysisIdentifier identifier = input.get(interactors.getInput(i));
+                //Note: It goes only once
+                InteractorNode interactor = interactorsMap.getElement(interactors.getElementId(i));
+                InteractorIdentifier interactorIdentifier = new InteractorIdentifier(identifier, interactor.getAccession());
+                LongMapSet<AnalysisReaction> pathwayReactions = interactor.getPathwayReactions();
+                for (long pathwayId : pathwayReactions.keys()) {
+                    for (MainIdentifier mainIdentifier : interactor.getInteractsWith(pathwayId)) {
+                        found[interactors.getInput(i)] = true;
+                        newSample.add(mainIdentifier);
+                        if (compiledHierarchies) {
+                            hierarchies.processInteractor(pathwayId, interactorIdentifier, mainIdentifier, interactor.getIdentifierId(), interactor.getReactionIds(pathwayId));
+                            continue;
+                        }
+                        Set<AnalysisReaction> reactions = pathwayReactions.getElements(pathwayId);
+                        Set<PathwayNode> pNodes = hierarchies.getPathwayLocation().getElements(pathwayId);
+                        for (PathwayNode pNode : pNodes) {
+                            hierarchies.processInteractor(pNode, interactorIdentifier, mainIdentifier, reactions);
                         }
                     }
                 }
             }
+        }
 
-            if (!found) {
-                hierarchies.addNotFound(identifier);
-            }
+        for (int i = 0; i < found.length; i++) {
+            if (!found[i]) hierarchies.addNotFound(input.get(i));
         }
+        logger.trace("Hits propagated in " + (System.currentTimeMillis() - resolved) + " ms");
+        stage = AnalysisMetrics.record(Stage.PROPAGATION, stage);
+
         //IMPORTANT: For the statistics the sample is the projection we find (newSample) plus the not found identifiers
         //           in the original sample
         Integer finalSampleSize = newSample.size() + hierarchies.getNotFound().size();
@@ -125,15 +197,14 @@ public class EnrichmentAnalysis {
 
         logger.trace("Final sample size is " + finalSampleSize + " identifier(s)");
         hierarchies.setResultStatistics(sampleSizePerResource, hierarchies.getNotFound().size(), includeInteractors);
+        AnalysisMetrics.record(Stage.STATISTICS, stage);
         long end = System.currentTimeMillis();
         logger.info("Analysis for " + originalSampleSize + " identifier(s) (" + finalSampleSize + " when expanded) performed in " + (end - start) + " ms");
     }
 
     private void decreaseCounter() {
         synchronized (ANALYSIS_SEMAPHORE) {
-            if (--ANALYSIS_COUNT == 0) {
-                ANALYSIS_SEMAPHORE.notify(); //Only one background producer should be using this semaphore
-            }
+            --ANALYSIS_COUNT;
         }
     }
 
@@ -0,0 +1,192 @@
+package org.reactome.server.analysis.core.methods;
+
+import org.reactome.server.analysis.core.model.AnalysisIdentifier;
+import org.reactome.server.analysis.core.model.IdentifiersMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Resolution stage of the analysis. The submitted identifiers are upper-cased, sorted and deduplicated once
+ * and then resolved in bulk against an identifiers index (in parallel chunks when there are several of them).
+ * <p>
+ * The result is a compact list of (input index, element id, resource id) sorted by input index, so the
+ * propagation stage does not need to look anything up and both stages can be measured independently
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class IdentifiersResolver {
+
+    //Number of unique identifiers resolved by each parallel task
+    private static final int CHUNK_SIZE = 4096;
+
+    private static int RESOLUTION_PARALLELISM = 1;
+    private static ForkJoinPool RESOLUTION_POOL = null;
+
+    //The upper case unique identifiers (UTF-8) in the index order and, for each input, its position in them
+    private final byte[][] keys;
+    private final int[] inputKeys;
+
+    /**
+     * Sorts and deduplicates the identifiers so they can be resolved against several indexes
+     *
+     * @param identifiers the submitted identifiers (their position in the list is the input index)
+     */
+    IdentifiersResolver(List<AnalysisIdentifier> identifiers) {
+        final byte[][] aux = new byte[identifiers.size()][];
+        Integer[] order = new Integer[identifiers.size()];
+        for (int i = 0; i < aux.length; i++) {
+            aux[i] = identifiers.get(i).getId().toUpperCase().getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return IdentifiersMap.KEY_ORDER.compare(aux[o1], aux[o2]);
+            }
+        });
+
+        byte[][] keys = new byte[aux.length][];
+        this.inputKeys = new int[aux.length];
+        int n = 0;
+        for (Integer i : order) {
+            if (n == 0 || !Arrays.equals(keys[n - 1], aux[i])) keys[n++] = aux[i];
+            this.inputKeys[i] = n - 1;
+        }
+        this.keys = Arrays.copyOf(keys, n);
+    }
+
+    /**
+     * Sets the maximum number of threads used to resolve the identifiers of an analysis
+     *
+     * @param parallelism the maximum number of threads (1 for sequential resolution)
+     */
+    public static synchronized void setResolutionParallelism(int parallelism) {
+        RESOLUTION_PARALLELISM = Math.max(1, parallelism);
+        //The previous pool (if any) is not shut down because it might be in use. Its threads finish when idle
+        RESOLUTION_POOL = null;
+    }
+
+    public static synchronized int getResolutionParallelism() {
+        return RESOLUTION_PARALLELISM;
+    }
+
+    private static synchronized ForkJoinPool getResolutionPool() {
+        if (RESOLUTION_PARALLELISM < 2) return null;
+        if (RESOLUTION_POOL == null) {
+            RESOLUTION_POOL = new ForkJoinPool(RESOLUTION_PARALLELISM);
+        }
+        return RESOLUTION_POOL;
+    }
+
+    /**
+     * Number of unique (upper case) identifiers
+     */
+    int getUniqueCount() {
+        return keys.length;
+    }
+
+    /**
+     * Resolves the identifiers against the given index
+     *
+     * @param map the identifiers index
+     * @return the (input index, element id, resource id) matches sorted by input index
+     */
+    Resolution resolve(final IdentifiersMap<?> map) {
+        int chunks = (keys.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final IdentifiersMap.Matches[] matches = new IdentifiersMap.Matches[chunks];
+        ForkJoinPool pool = getResolutionPool();
+        if (pool == null || chunks < 2) {
+            for (int c = 0; c < chunks; c++) {
+                matches[c] = new IdentifiersMap.Matches();
+                map.resolve(keys, c * CHUNK_SIZE, Math.min(keys.length, (c + 1) * CHUNK_SIZE), matches[c]);
+            }
+        } else {
+            RecursiveAction[] tasks = new RecursiveAction[chunks];
+            for (int c = 0; c < chunks; c++) {
+                final int chunk = c;
+                tasks[c] = new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        matches[chunk] = new IdentifiersMap.Matches();
+                        map.resolve(keys, chunk * CHUNK_SIZE, Math.min(keys.length, (chunk + 1) * CHUNK_SIZE), matches[chunk]);
+                    }
+                };
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+        return new Resolution(matches, keys.length, inputKeys);
+    }
+
+    /**
+     * The (input index, element id, resource id) matches sorted by input index
+     */
+    static class Resolution {
+        private int[] inputs;
+        private int[] elements;
+        private int[] resources;
+
+        private Resolution(IdentifiersMap.Matches[] matches, int keys, int[] inputKeys) {
+            //Matches of each key are consecutive (chunks are sorted by key), so each key gets a range
+            int[] from = new int[keys];
+            int[] to = new int[keys];
+            int total = 0;
+            for (IdentifiersMap.Matches aux : matches) {
+                for (int i = 0; i < aux.size(); i++) {
+                    int key = aux.getKey(i);
+                    if (from[key] == to[key]) from[key] = total;
+                    to[key] = ++total;
+                }
+            }
+            int[] elements = new int[total];
+            int[] resources = new int[total];
+            int n = 0;
+            for (IdentifiersMap.Matches aux : matches) {
+                for (int i = 0; i < aux.size(); i++, n++) {
+                    elements[n] = aux.getElementId(i);
+                    resources[n] = aux.getResourceId(i);
+                }
+            }
+
+            int size = 0;
+            for (int key : inputKeys) size += to[key] - from[key];
+            this.inputs = new int[size];
+            this.elements = new int[size];
+            this.resources = new int[size];
+            n = 0;
+            for (int input = 0; input < inputKeys.length; input++) {
+                int key = inputKeys[input];
+                for (int i = from[key]; i < to[key]; i++, n++) {
+                    this.inputs[n] = input;
+                    this.elements[n] = elements[i];
+                    this.resources[n] = resources[i];
+                }
+            }
+        }
+
+        int size() {
+            return inputs.length;
+        }
+
+        int getInput(int i) {
+            return inputs[i];
+        }
+
+        int getElementId(int i) {
+            return elements[i];
+        }
+
+        int getResourceId(int i) {
+            return resources[i];
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.reactome.server.analysis.core.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the analysis metrics: a Timer per analysis stage plus the gauges registered by the
+ * different components (e.g. the HierarchiesData pool). Metrics are kept in memory, so they do not
+ * need any monitoring backend, and can be exported in the Prometheus text format (toPrometheus) or
+ * as a human readable summary (getSummary)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public abstract class AnalysisMetrics {
+
+    private static final String PREFIX = "reactome_analysis_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public enum Stage {
+        HIERARCHIES_TAKE    ("hierarchies_take",    "Time to get the HierarchiesData object for an analysis (from the pool or created by demand)"),
+        HIERARCHIES_CREATE  ("hierarchies_create",  "Time to create a HierarchiesData object (analysis result overlay)"),
+        RESOLUTION          ("resolution",          "Time to resolve the submitted identifiers"),
+        PROPAGATION         ("propagation",         "Time to propagate the hits through the pathway hierarchies"),
+        STATISTICS          ("statistics",          "Time to calculate the statistics (FDR included)"),
+        FDR                 ("fdr",                 "Time spent on the FDR calculation (added up for all the species)"),
+        ANALYSIS            ("analysis",            "Time to perform the whole analysis"),
+        SUMMARY             ("summary",             "Time to summarise the hit pathways in the stored result"),
+        RESULT_SAVE         ("result_save",         "Time to serialise the analysis result into its file");
+
+        private final Timer timer;
+
+        Stage(String name, String description) {
+            this.timer = new Timer(PREFIX + name + "_seconds", description);
+        }
+
+        public Timer getTimer() {
+            return timer;
+        }
+    }
+
+    /**
+     * A value that is read when the metrics are exported
+     */
+    public interface Gauge {
+        double getValue();
+    }
+
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, String> descriptions = new ConcurrentHashMap<>();
+
+    public static Timer getTimer(Stage stage) {
+        return stage.getTimer();
+    }
+
+    /**
+     * Records the time since start for the given stage
+     *
+     * @param start the value of System.nanoTime when the stage started
+     * @return the current System.nanoTime (to be used as the start of the next stage)
+     */
+    public static long record(Stage stage, long start) {
+        return stage.getTimer().stop(start);
+    }
+
+    /**
+     * Registers (or replaces) a gauge
+     *
+     * @param name the name of the gauge (the prefix is added when exporting)
+     */
+    public static void register(String name, String description, Gauge gauge) {
+        gauges.put(name, gauge);
+        descriptions.put(name, description);
+    }
+
+    public static void reset() {
+        for (Stage stage : Stage.values()) {
+            stage.getTimer().reset();
+        }
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format (timers exported as summaries in seconds)
+     */
+    public static String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            Timer timer = stage.getTimer();
+            String name = timer.getName();
+            sb.append("# HELP ").append(name).append(" ").append(timer.getDescription()).append("\n");
+            sb.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : QUANTILES) {
+                sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(timer.getPercentileNanos(quantile))).append("\n");
+            }
+            sb.append(name).append("_sum ").append(seconds(timer.getTotalNanos())).append("\n");
+            sb.append(name).append("_count ").append(timer.getCount()).append("\n");
+            sb.append("# TYPE ").append(name).append("_max gauge\n");
+            sb.append(name).append("_max ").append(seconds(timer.getMaxNanos())).append("\n");
+        }
+        for (String key : new TreeSet<>(gauges.keySet())) {
+            String name = PREFIX + key;
+            sb.append("# HELP ").append(name).append(" ").append(descriptions.get(key)).append("\n");
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(" ").append(gauges.get(key).getValue()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return a table with the count, mean and percentiles (in ms) of every stage followed by the gauges
+     */
+    public static String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-20s %10s %10s %10s %10s %10s %10s%n", "stage", "count", "mean", "p50", "p99", "p99.9", "max"));
+        for (Stage stage : Stage.values()) {
+            Timer timer = stage.getTimer();
+            sb.append(String.format("%-20s %10d %10.2f %10.2f %10.2f %10.2f %10.2f%n", stage.name().toLowerCase(), timer.getCount(),
+                    millis(timer.getMeanNanos()), millis(timer.getPercentileNanos(0.5)), millis(timer.getPercentileNanos(0.99)),
+                    millis(timer.getPercentileNanos(0.999)), millis(timer.getMaxNanos())));
+        }
+        for (String key : new TreeSet<>(gauges.keySet())) {
+            sb.append(String.format("%-20s %10.2f%n", key, gauges.get(key).getValue()));
+        }
+        return sb.toString();
+    }
+
+    private static double seconds(double nanos) {
+        return nanos / 1e9;
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,125 @@
+package org.reactome.server.analysis.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram. The durations (in nanoseconds) are counted in log-linear buckets: every
+ * power of two is split in SUB_BUCKETS buckets, so any percentile is reported with a relative error
+ * below 1/SUB_BUCKETS (12.5%) using a fixed amount of memory, no matter how many times it is recorded
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class Timer {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Values below SUB_BUCKETS have their own bucket, the rest of the powers of two are split in SUB_BUCKETS
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final String name;
+    private final String description;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong total = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    Timer(String name, String description) {
+        this.name = name;
+        this.description = description;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @param nanos the duration to be recorded (negative values are ignored)
+     */
+    public void record(long nanos) {
+        if (nanos < 0) return;
+        buckets.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            //Retries until the max is updated or a bigger value has been recorded meanwhile
+        }
+    }
+
+    /**
+     * Records the time since start
+     *
+     * @param start the value of System.nanoTime when the measured stage started
+     * @return the current System.nanoTime (to be used as the start of the next stage)
+     */
+    public long stop(long start) {
+        long now = System.nanoTime();
+        record(now - start);
+        return now;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return total.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long count = this.count.get();
+        return count == 0 ? 0 : total.get() / (double) count;
+    }
+
+    /**
+     * @param quantile a value in [0, 1] (0.99 for the 99th percentile)
+     * @return the upper bound of the bucket containing the quantile (0 if nothing has been recorded)
+     */
+    public long getPercentileNanos(double quantile) {
+        long count = this.count.get();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    //The biggest value counted in the bucket
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (1L << exponent) + sub * width;
+        return lower + width - 1 < 0 ? Long.MAX_VALUE : lower + width - 1;
+    }
+}
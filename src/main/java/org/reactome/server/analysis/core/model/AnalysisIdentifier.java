@@ -1,43 +1,104 @@
 package org.reactome.server.analysis.core.model;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
+ * An identifier submitted for the analysis. Its expression values (if any) are kept in the ExpressionMatrix
+ * of the submitted data, where this identifier only points to its row
+ *
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
  */
 public class AnalysisIdentifier implements Comparable<AnalysisIdentifier> {
 
     private String id;
-    private List<Double> exp;
+    private ExpressionMatrix exp;   //null when there are not expression values
+    private int row;
 
+    //Creates a clone (the expression values are shared)
     public AnalysisIdentifier(AnalysisIdentifier aux){
-        this(aux.getId());
-        for (Double ev : aux.getExp()) {
-            this.add(ev);
-        }
+        this(aux.id, aux);
     }
 
     public AnalysisIdentifier(String id) {
         this.id = id;
-        this.exp = new LinkedList<>();
     }
 
-    public AnalysisIdentifier(String id, List<Double> exp) {
+    /**
+     * @param id     the identifier
+     * @param values the identifier whose expression values are to be shared with the new one
+     */
+    public AnalysisIdentifier(String id, AnalysisIdentifier values) {
+        this(id, values.exp, values.row);
+    }
+
+    public AnalysisIdentifier(String id, ExpressionMatrix exp, int row) {
         this.id = id;
         this.exp = exp;
+        this.row = row;
+    }
+
+    /**
+     * @param exp the expression values (null for the missing ones), copied into a single row matrix
+     * @deprecated the values are not kept by reference anymore, use AnalysisIdentifier(String, ExpressionMatrix, int)
+     */
+    @Deprecated
+    public AnalysisIdentifier(String id, List<Double> exp) {
+        this.id = id;
+        if (exp != null && !exp.isEmpty()) this.exp = getSingleRow(exp);
     }
 
-    public boolean add(Double value){
-        return this.exp.add(value);
+    /**
+     * Appends an expression value (the row is copied into a new single row matrix every time)
+     *
+     * @deprecated add the values to the ExpressionMatrix of the submitted data instead
+     */
+    @Deprecated
+    public boolean add(Double value) {
+        List<Double> values = new ArrayList<>(getExp());
+        values.add(value);
+        this.exp = getSingleRow(values);
+        this.row = 0;
+        return true;
+    }
+
+    private static ExpressionMatrix getSingleRow(List<Double> values) {
+        double[] row = new double[values.size()];
+        for (int i = 0; i < row.length; i++) {
+            Double value = values.get(i);
+            row[i] = value == null ? Double.NaN : value;
+        }
+        ExpressionMatrix rtn = new ExpressionMatrix(row.length);
+        rtn.addRow(row);
+        rtn.trim();
+        return rtn;
     }
 
     public String getId() {
         return id;
     }
 
+    /**
+     * @return a read-only view of the expression values (null for the missing ones)
+     */
     public List<Double> getExp() {
-        return exp;
+        return exp == null ? Collections.<Double>emptyList() : exp.getRow(row);
+    }
+
+    /**
+     * @return the number of expression values (missing ones included)
+     */
+    public int getExpSize() {
+        return exp == null ? 0 : exp.getColumns();
+    }
+
+    /**
+     * @return the expression value for the given column (NaN when missing)
+     */
+    public double getExp(int column) {
+        if (exp == null) throw new IndexOutOfBoundsException(id + " does not have expression values");
+        return exp.get(row, column);
     }
 
     @Override
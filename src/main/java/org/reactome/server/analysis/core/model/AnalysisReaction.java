@@ -7,6 +7,10 @@ public class AnalysisReaction {
     private Long dbId;
     private String stId;
 
+    //Dense id + 1 used to keep track of the found reactions (assigned by DenseIds, NOT stored). Kryo does not
+    //run the field initialisers when loading, so 0 (the default) has to be the one meaning "not assigned"
+    private transient int index;
+
     public AnalysisReaction() { }
 
     public AnalysisReaction(Long dbId, String stId) {
@@ -22,6 +26,17 @@ public class AnalysisReaction {
         this.dbId = dbId;
     }
 
+    /**
+     * @return the dense id of the reaction or -1 if it has not been assigned (see DenseIds)
+     */
+    public int getIndex() {
+        return index - 1;
+    }
+
+    void setIndex(int index) {
+        this.index = index + 1;
+    }
+
     public String getStId() {
         return stId;
     }
@@ -0,0 +1,206 @@
+package org.reactome.server.analysis.core.model;
+
+import org.reactome.server.analysis.core.util.LongMapSet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+
+/**
+ * Flat, index based representation of the pathway hierarchies used in the analysis hot path.
+ * <p>
+ * Every PathwayNode is identified by its index (PathwayNode.getIndex()) and, since the indexes are
+ * assigned traversing the hierarchies in pre-order, a parent always has a lower index than its children.
+ * For each pathway identifier the ids of all its locations plus their ancestors are precomputed (without
+ * duplicates and children before parents), so propagating a hit becomes a loop over an int array instead
+ * of following the parent links of each location.
+ * <p>
+ * The arrays are kept in buffers so they can either be created from the object tree (build time) or
+ * used in place from the memory-mapped data file. The object tree is kept as it is (and is still the one
+ * used to export the results)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class CompiledHierarchies {
+
+    //The pathway nodes by index
+    private PathwayNode[] nodes;
+    //The species hierarchy for the top level pathways (null for the rest)
+    private PathwayHierarchy[] hierarchies;
+
+    //The parent index for each pathway node (-1 for the top level pathways)
+    private IntBuffer parents;
+    //Sorted pathway identifiers and, for each one, its locations plus their ancestors in closureNodes[from, to)
+    private LongBuffer pathwayIds;
+    private IntBuffer closureOffsets;
+    private IntBuffer closureNodes;
+
+    CompiledHierarchies(Map<SpeciesNode, PathwayHierarchy> pathwayHierarchies, LongMapSet<PathwayNode> pathwayLocation, int size) {
+        this.setNodes(pathwayHierarchies, size);
+        int[] parents = new int[size];
+        for (PathwayNode node : this.nodes) {
+            parents[node.getIndex()] = node.getParent() == null ? -1 : node.getParent().getIndex();
+        }
+        this.parents = IntBuffer.wrap(parents);
+
+        long[] pathwayIds = pathwayLocation.keys();
+        Arrays.sort(pathwayIds);
+        int[] closureOffsets = new int[pathwayIds.length + 1];
+        int[] closureNodes = new int[16];
+        int n = 0;
+        for (int i = 0; i < pathwayIds.length; i++) {
+            closureOffsets[i] = n;
+            int[] closure = this.getClosure(pathwayLocation.getElements(pathwayIds[i]));
+            if (n + closure.length > closureNodes.length) {
+                closureNodes = Arrays.copyOf(closureNodes, Math.max(closureNodes.length * 2, n + closure.length));
+            }
+            System.arraycopy(closure, 0, closureNodes, n, closure.length);
+            n += closure.length;
+        }
+        closureOffsets[pathwayIds.length] = n;
+        this.pathwayIds = LongBuffer.wrap(pathwayIds);
+        this.closureOffsets = IntBuffer.wrap(closureOffsets);
+        this.closureNodes = IntBuffer.wrap(Arrays.copyOf(closureNodes, n));
+    }
+
+    /**
+     * Uses the arrays in place from the given buffer (see write for the layout)
+     */
+    CompiledHierarchies(Map<SpeciesNode, PathwayHierarchy> pathwayHierarchies, ByteBuffer buffer) {
+        ByteBuffer aux = buffer.duplicate();
+        int size = aux.getInt();
+        this.setNodes(pathwayHierarchies, size);
+        this.parents = slice(aux, size * 4).asIntBuffer();
+        int pathways = aux.getInt();
+        this.pathwayIds = slice(aux, pathways * 8).asLongBuffer();
+        this.closureOffsets = slice(aux, (pathways + 1) * 4).asIntBuffer();
+        this.closureNodes = slice(aux, this.closureOffsets.get(pathways) * 4).asIntBuffer();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer rtn = buffer.slice();
+        rtn.limit(length);
+        buffer.position(buffer.position() + length);
+        return rtn;
+    }
+
+    private void setNodes(Map<SpeciesNode, PathwayHierarchy> pathwayHierarchies, int size) {
+        this.nodes = new PathwayNode[size];
+        this.hierarchies = new PathwayHierarchy[size];
+        for (PathwayHierarchy hierarchy : pathwayHierarchies.values()) {
+            for (PathwayRoot root : hierarchy.getChildren()) {
+                this.hierarchies[root.getIndex()] = hierarchy;
+                this.add(root);
+            }
+        }
+    }
+
+    private void add(PathwayNode node) {
+        this.nodes[node.getIndex()] = node;
+        for (PathwayNode child : node.getChildren()) {
+            this.add(child);
+        }
+    }
+
+    private int[] getClosure(Set<PathwayNode> locations) {
+        int n = 0;
+        int[] aux = new int[16];
+        for (PathwayNode location : locations) {
+            for (PathwayNode node = location; node != null; node = node.getParent()) {
+                if (n == aux.length) aux = Arrays.copyOf(aux, n * 2);
+                aux[n++] = node.getIndex();
+            }
+        }
+
+        //Sorted descending so children are always processed before their parents
+        Arrays.sort(aux, 0, n);
+        int[] rtn = new int[n];
+        int size = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            if (size == 0 || rtn[size - 1] != aux[i]) rtn[size++] = aux[i];
+        }
+        return Arrays.copyOf(rtn, size);
+    }
+
+    /**
+     * Writes the arrays with the following layout (big-endian):
+     * int size, int[size] parents, int pathways, long[pathways] pathwayIds, int[pathways + 1] closureOffsets,
+     * int[closureOffsets[pathways]] closureNodes
+     */
+    void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(this.size());
+        for (int i = 0; i < this.size(); i++) out.writeInt(this.parents.get(i));
+        int pathways = this.pathwayIds.limit();
+        out.writeInt(pathways);
+        for (int i = 0; i < pathways; i++) out.writeLong(this.pathwayIds.get(i));
+        for (int i = 0; i <= pathways; i++) out.writeInt(this.closureOffsets.get(i));
+        for (int i = 0; i < this.closureNodes.limit(); i++) out.writeInt(this.closureNodes.get(i));
+        out.flush();
+    }
+
+    /**
+     * Returns the position of the pathway in the closures
+     *
+     * @param pathwayId the pathway identifier
+     * @return the position of the pathway in the closures or -1 if the pathway is not in the hierarchies
+     */
+    public int indexOf(long pathwayId) {
+        int low = 0;
+        int high = this.pathwayIds.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long id = this.pathwayIds.get(mid);
+            if (id < pathwayId) {
+                low = mid + 1;
+            } else if (id > pathwayId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The ids of the locations of the pathway in position "pos" plus their ancestors (children before parents)
+     * are the ones between getClosureFrom(pos) (inclusive) and getClosureTo(pos) (exclusive)
+     */
+    public int getClosureFrom(int pos) {
+        return this.closureOffsets.get(pos);
+    }
+
+    public int getClosureTo(int pos) {
+        return this.closureOffsets.get(pos + 1);
+    }
+
+    public int getClosureNode(int i) {
+        return this.closureNodes.get(i);
+    }
+
+    /**
+     * Returns the species hierarchy for a top level pathway
+     *
+     * @param id the pathway node id
+     * @return the species hierarchy for a top level pathway or null if the node is not a top level pathway
+     */
+    public PathwayHierarchy getHierarchy(int id) {
+        return this.hierarchies[id];
+    }
+
+    public PathwayNode getNode(int id) {
+        return this.nodes[id];
+    }
+
+    public int getParent(int id) {
+        return this.parents.get(id);
+    }
+
+    public int size() {
+        return this.nodes.length;
+    }
+}
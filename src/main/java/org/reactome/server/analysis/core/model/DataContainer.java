@@ -1,10 +1,16 @@
 package org.reactome.server.analysis.core.model;
 
-import org.reactome.server.analysis.core.data.AnalysisDataUtils;
-import org.reactome.server.analysis.core.util.MapSet;
+import org.reactome.server.analysis.core.metrics.AnalysisMetrics;
+import org.reactome.server.analysis.core.util.LongMapSet;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Contains the different data structures for the binary data and also provides
@@ -18,6 +24,10 @@ import java.util.Map;
  * Linking from the physical entity graph nodes to the pathway hierarchy is an
  * option that improves the binary time but makes the splitting or cloning
  * tasks MORE difficult and slow
+ * <p/>
+ * The pathway hierarchies are shared between the different analysis (they are not
+ * modified while analysing) and each analysis keeps its result in the overlay provided
+ * by getHierarchiesData
  *
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
  */
@@ -25,18 +35,30 @@ public class DataContainer implements Serializable {
     //A double link hierarchy tree with the pathways for each species
     Map<SpeciesNode, PathwayHierarchy> pathwayHierarchies;
     //A map between pathways identifier and their locations in the pathway hierarchy
-    MapSet<Long, PathwayNode> pathwayLocation;
+    LongMapSet<PathwayNode> pathwayLocation;
 
-    //A radix-tree with (identifier -> HierarchyNode)
+    //An index with (identifier -> EntityNode)
     IdentifiersMap<EntityNode> entitiesMap;
 
-    IdentifiersMap<InteractorNode> interactorsMap;
+    //Set by the loader thread when the container might already be in use (see setInteractorsMap)
+    volatile IdentifiersMap<InteractorNode> interactorsMap;
+    //Released once the interactors have been set or could not be loaded (null for containers deserialised as a whole)
+    private final transient CountDownLatch interactorsLoaded;
 
     //A double link graph with the representation of the physical entities
     EntitiesContainer entitiesContainer;
 
+    //The pathways (and reactions) of every entity node, stored in their own section of the data file
+    private transient EntityPathways entityPathways;
+
+    //Flat representation of the pathway hierarchies used to propagate the hits while analysing
+    private transient CompiledHierarchies compiledHierarchies;
+
+    //Dense ids of the identifiers and reactions used to keep track of the found elements while analysing
+    private transient DenseIds denseIds;
+
     public DataContainer(Map<SpeciesNode, PathwayHierarchy> pathwayHierarchies,
-                         MapSet<Long, PathwayNode> pathwayLocation,
+                         LongMapSet<PathwayNode> pathwayLocation,
                          EntitiesContainer entitiesContainer,
                          IdentifiersMap<EntityNode> entitiesMap,
                          IdentifiersMap<InteractorNode> interactorsMap) {
@@ -45,17 +67,114 @@ public class DataContainer implements Serializable {
         this.pathwayLocation = pathwayLocation;
         this.entitiesMap = entitiesMap;
         this.interactorsMap = interactorsMap;
+        this.interactorsLoaded = new CountDownLatch(0);
+
+        //Indexes are assigned (and stored) at build time so they match the compiled hierarchies in the data file
+        int pathwayNodes = 0;
+        for (PathwayHierarchy hierarchy : this.pathwayHierarchies.values()) {
+            for (PathwayRoot root : hierarchy.getChildren()) {
+                pathwayNodes = this.setPathwayNodeIndex(root, pathwayNodes);
+            }
+        }
+        this.compiledHierarchies = new CompiledHierarchies(this.pathwayHierarchies, this.pathwayLocation, pathwayNodes);
+
+        //Positions are also assigned (and stored with the nodes) at build time so they match the EntityPathways
+        List<EntityNode> nodes = new ArrayList<>(this.entitiesContainer.getAllNodes());
+        this.entityPathways = new EntityPathways(nodes);
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).setPathways(this.entityPathways, i);
+        }
+    }
+
+    /**
+     * Creates the container with the parts loaded from the data file. The interactors are set afterwards (see
+     * setInteractorsMap), so the analysis not including them can start before they are loaded
+     *
+     * @param compiledHierarchies the (memory-mapped) compiled hierarchies section of the data file
+     * @param entitiesIndex       the (memory-mapped) entities identifiers index
+     * @param entityPathways      the (memory-mapped) pathways of the entities
+     * @param reactions           the reactions table of the pathways of the entities
+     */
+    public DataContainer(Map<SpeciesNode, PathwayHierarchy> pathwayHierarchies,
+                         LongMapSet<PathwayNode> pathwayLocation,
+                         ByteBuffer compiledHierarchies,
+                         EntitiesContainer entitiesContainer,
+                         IdentifiersMap<EntityNode> entitiesMap,
+                         ByteBuffer entitiesIndex,
+                         ByteBuffer entityPathways,
+                         AnalysisReaction[] reactions) {
+        this.pathwayHierarchies = pathwayHierarchies;
+        this.pathwayLocation = pathwayLocation;
+        this.entitiesContainer = entitiesContainer;
+        this.entitiesMap = entitiesMap;
+        this.entitiesMap.setIndex(entitiesIndex);
+        this.compiledHierarchies = new CompiledHierarchies(this.pathwayHierarchies, compiledHierarchies);
+        this.entityPathways = new EntityPathways(entityPathways, reactions);
+        for (EntityNode node : this.entitiesContainer.getAllNodes()) {
+            if (node.getPosition() < 0 || node.getPosition() >= this.entityPathways.size()) {
+                throw new IllegalStateException("The entities and their pathways do not match");
+            }
+            node.setPathways(this.entityPathways, node.getPosition());
+        }
+        this.denseIds = new DenseIds(this.entityPathways, this.entitiesContainer, null);
+        this.interactorsLoaded = new CountDownLatch(1);
     }
 
     /**
-     * Returns a clone of the clean version of the hierarchies
+     * Sets the interactors once they have been loaded
      *
-     * @return a clone of the clean version of the hierarchies
+     * @param interactorsIndex the (memory-mapped) interactors identifiers index
+     */
+    public void setInteractorsMap(IdentifiersMap<InteractorNode> interactorsMap, ByteBuffer interactorsIndex) {
+        interactorsMap.setIndex(interactorsIndex);
+        this.denseIds.addInteractors(interactorsMap);
+        this.interactorsMap = interactorsMap;
+        this.interactorsLoaded.countDown();
+    }
+
+    /**
+     * Releases the threads waiting for the interactors when they could not be loaded (the container
+     * keeps working without them)
+     */
+    public void setInteractorsFailed() {
+        if (this.interactorsLoaded != null) this.interactorsLoaded.countDown();
+    }
+
+    /**
+     * Waits until the interactors have been set (see setInteractorsMap)
+     *
+     * @return the interactors or null if they could not be loaded
+     */
+    public IdentifiersMap<InteractorNode> awaitInteractorsMap() throws InterruptedException {
+        if (this.interactorsMap == null && this.interactorsLoaded != null) this.interactorsLoaded.await();
+        return this.interactorsMap;
+    }
+
+    /**
+     * Returns an empty analysis result overlay on top of the shared hierarchies
+     *
+     * @return an empty analysis result overlay on top of the shared hierarchies
      */
     public HierarchiesData getHierarchiesData() {
-        //The object is not kept by itself because it requires more disk space
-        HierarchiesData data = new HierarchiesData(this.pathwayHierarchies, this.pathwayLocation);
-        return AnalysisDataUtils.kryoCopy(data);
+        long start = System.nanoTime();
+        HierarchiesData rtn = new HierarchiesData(this.pathwayHierarchies, this.pathwayLocation, this.compiledHierarchies, this.denseIds);
+        AnalysisMetrics.record(AnalysisMetrics.Stage.HIERARCHIES_CREATE, start);
+        return rtn;
+    }
+
+    /**
+     * @return true if the given overlay was created on top of the hierarchies of this container
+     */
+    public boolean isSourceOf(HierarchiesData data) {
+        return data.getPathwayLocation() == this.pathwayLocation;
+    }
+
+    public Map<SpeciesNode, PathwayHierarchy> getPathwayHierarchies() {
+        return pathwayHierarchies;
+    }
+
+    public LongMapSet<PathwayNode> getPathwayLocation() {
+        return pathwayLocation;
     }
 
     public EntitiesContainer getEntitiesContainer() {
@@ -66,12 +185,90 @@ public class DataContainer implements Serializable {
         return entitiesMap;
     }
 
+    public EntityPathways getEntityPathways() {
+        return entityPathways;
+    }
+
     public IdentifiersMap<InteractorNode> getInteractorsMap() {
         return interactorsMap;
     }
 
     public void initialize() {
+        this.initialize(null, null, null);
+    }
+
+    /**
+     * Initialises the data structure after loading it from file
+     *
+     * @param compiledHierarchies the (memory-mapped) compiled hierarchies section of the data file or null
+     *                            if they have to be created from the pathway hierarchies
+     * @param entitiesIndex       the (memory-mapped) entities identifiers index or null to keep the current one
+     * @param interactorsIndex    the (memory-mapped) interactors identifiers index or null to keep the current one
+     */
+    public void initialize(ByteBuffer compiledHierarchies, ByteBuffer entitiesIndex, ByteBuffer interactorsIndex) {
+        if (entitiesIndex != null) this.entitiesMap.setIndex(entitiesIndex);
+        if (interactorsIndex != null) this.interactorsMap.setIndex(interactorsIndex);
         this.entitiesContainer.setOrthologiesCrossLinks();
+        if (compiledHierarchies != null) {
+            this.compiledHierarchies = new CompiledHierarchies(this.pathwayHierarchies, compiledHierarchies);
+        } else if (this.compiledHierarchies == null) {
+            this.compiledHierarchies = new CompiledHierarchies(this.pathwayHierarchies, this.pathwayLocation, this.countPathwayNodes());
+        }
+        this.denseIds = new DenseIds(this.entityPathways, this.entitiesContainer, this.interactorsMap);
+    }
+
+    /**
+     * Writes the compiled hierarchies to be stored in their own section of the data file
+     */
+    public void writeCompiledHierarchies(OutputStream os) throws IOException {
+        this.compiledHierarchies.write(os);
+    }
+
+    /**
+     * Writes the pathways of the entities to be stored in their own section of the data file
+     */
+    public void writeEntityPathways(OutputStream os) throws IOException {
+        this.entityPathways.write(os);
+    }
+
+    /**
+     * Writes the entities identifiers index to be stored in its own section of the data file
+     */
+    public void writeEntitiesIndex(OutputStream os) throws IOException {
+        this.entitiesMap.write(os);
+    }
+
+    /**
+     * Writes the interactors identifiers index to be stored in its own section of the data file
+     */
+    public void writeInteractorsIndex(OutputStream os) throws IOException {
+        this.interactorsMap.write(os);
+    }
+
+    private int countPathwayNodes() {
+        int rtn = 0;
+        for (PathwayHierarchy hierarchy : this.pathwayHierarchies.values()) {
+            for (PathwayRoot root : hierarchy.getChildren()) {
+                rtn += this.countPathwayNodes(root);
+            }
+        }
+        return rtn;
+    }
+
+    private int countPathwayNodes(PathwayNode node) {
+        int rtn = 1;
+        for (PathwayNode child : node.getChildren()) {
+            rtn += this.countPathwayNodes(child);
+        }
+        return rtn;
+    }
+
+    private int setPathwayNodeIndex(PathwayNode node, int index) {
+        node.setIndex(index++);
+        for (PathwayNode child : node.getChildren()) {
+            index = this.setPathwayNodeIndex(child, index);
+        }
+        return index;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,186 @@
+package org.reactome.server.analysis.core.model;
+
+import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
+import org.reactome.server.analysis.core.util.LongMapSet;
+import org.reactome.server.analysis.core.util.LongObjectMap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dense integer encoding of the main identifiers, the interactors and the reactions contained in the
+ * intermediate data structure. It allows PathwayNodeData to keep track of the found elements in bitsets
+ * instead of sets of objects.
+ * <p>
+ * The identifiers ids are NOT stored in the binary file, they are assigned every time the data structure is
+ * built or loaded, so they are only meaningful in the same execution. Once assigned (construction and
+ * addInteractors) they are only looked up, so asking for an identifier that is not in the data structure is
+ * a programming error (as it is for the reactions). The reactions of the entities keep their position in the
+ * EntityPathways as id (so the stored reaction ids can be used as they are) and the ones only present in the
+ * interactors are added after them.
+ * <p>
+ * The entity and interactor nodes also get the id of their identifier (and the interactors the ids of their
+ * reactions for every pathway, see InteractorNode.getReactionIds), so the hits can be propagated without any lookup
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class DenseIds {
+
+    static final int[] NO_IDS = new int[0];
+
+    //Main identifiers and interactors share the id space (same string means same element)
+    private Map<String, Integer> identifiers = new ConcurrentHashMap<>();
+
+    //Replaced (not modified) when the interactors are added, so readers always see a complete array
+    private volatile AnalysisReaction[] reactions;
+    private Map<Long, Integer> reactionIds = new HashMap<>();
+
+    /**
+     * Assigns the ids of entities that have not been compiled yet (while building the data structure)
+     *
+     * @param interactorsMap the interactors or null if they are added later (see addInteractors)
+     */
+    public DenseIds(EntitiesContainer entitiesContainer, IdentifiersMap<InteractorNode> interactorsMap) {
+        this(new EntityPathways(new ArrayList<>(entitiesContainer.getAllNodes())), entitiesContainer, interactorsMap);
+    }
+
+    /**
+     * @param entityPathways the pathways of the entities (their reactions keep their position as id)
+     * @param interactorsMap the interactors or null if they are added later (see addInteractors)
+     */
+    public DenseIds(EntityPathways entityPathways, EntitiesContainer entitiesContainer, IdentifiersMap<InteractorNode> interactorsMap) {
+        List<AnalysisReaction> reactions = new ArrayList<>();
+        for (AnalysisReaction reaction : entityPathways.getReactions()) {
+            this.setReactionId(reaction, reactions);
+        }
+
+        for (EntityNode node : entitiesContainer.getAllNodes()) {
+            MainIdentifier mainIdentifier = node.getIdentifier();
+            if (mainIdentifier != null) node.setIdentifierId(this.setIdentifierId(mainIdentifier.getValue().getId()));
+        }
+        if (interactorsMap != null) this.setInteractorIds(interactorsMap, reactions);
+
+        this.reactions = reactions.toArray(new AnalysisReaction[reactions.size()]);
+    }
+
+    /**
+     * Assigns the ids of the interactors (and their reactions) once they have been loaded. The ids already
+     * assigned do not change, so the analysis using only the entities can run meanwhile
+     */
+    public synchronized void addInteractors(IdentifiersMap<InteractorNode> interactorsMap) {
+        List<AnalysisReaction> reactions = new ArrayList<>(Arrays.asList(this.reactions));
+        this.setInteractorIds(interactorsMap, reactions);
+        this.reactions = reactions.toArray(new AnalysisReaction[reactions.size()]);
+    }
+
+    private void setInteractorIds(IdentifiersMap<InteractorNode> interactorsMap, List<AnalysisReaction> reactions) {
+        for (InteractorNode node : interactorsMap.values()) {
+            int id = this.setIdentifierId(node.getAccession());
+            LongMapSet<AnalysisReaction> pathwayReactions = node.getPathwayReactions();
+            if (pathwayReactions != null) {
+                for (long pathwayId : pathwayReactions.keys()) {
+                    for (MainIdentifier mainIdentifier : node.getInteractsWith(pathwayId)) {
+                        this.setIdentifierId(mainIdentifier.getValue().getId());
+                    }
+                }
+                this.setReactionIds(pathwayReactions, reactions);
+            }
+            node.setDenseIds(id, getPathwayReactionIds(pathwayReactions));
+        }
+    }
+
+    private void setReactionIds(LongMapSet<AnalysisReaction> pathwayReactions, List<AnalysisReaction> reactions) {
+        if (pathwayReactions == null) return;
+        for (AnalysisReaction reaction : pathwayReactions.values()) {
+            this.setReactionId(reaction, reactions);
+        }
+    }
+
+    private void setReactionId(AnalysisReaction reaction, List<AnalysisReaction> reactions) {
+        Integer id = reactionIds.get(reaction.getDbId());
+        if (id == null) {
+            id = reactions.size();
+            reactionIds.put(reaction.getDbId(), id);
+            reactions.add(reaction);
+        }
+        //Same reaction in different objects get the same id
+        reaction.setIndex(id);
+    }
+
+    /**
+     * Returns the dense id of a main identifier or interactor
+     *
+     * @param identifier the main identifier or the interactor accession
+     * @return the dense id of a main identifier or interactor
+     * @throws IllegalStateException if the identifier is not in the data structure
+     */
+    public int getIdentifierId(String identifier) {
+        Integer id = this.identifiers.get(identifier);
+        if (id == null) throw new IllegalStateException("Identifier " + identifier + " is not in the data structure");
+        return id;
+    }
+
+    //Only called while the ids are assigned (construction and addInteractors)
+    private int setIdentifierId(String identifier) {
+        Integer id = this.identifiers.get(identifier);
+        if (id == null) {
+            id = this.identifiers.size();
+            this.identifiers.put(identifier, id);
+        }
+        return id;
+    }
+
+    //The reactions have to be indexed already (see setReactionIds)
+    private static LongObjectMap<int[]> getPathwayReactionIds(LongMapSet<AnalysisReaction> pathwayReactions) {
+        if (pathwayReactions == null) return null;
+        long[] pathways = pathwayReactions.keys();
+        LongObjectMap<int[]> rtn = new LongObjectMap<>(pathways.length);
+        for (long pathwayId : pathways) {
+            Set<AnalysisReaction> reactions = pathwayReactions.getElements(pathwayId);
+            int[] ids = new int[reactions.size()];
+            int i = 0;
+            for (AnalysisReaction reaction : reactions) {
+                ids[i++] = reaction.getIndex();
+            }
+            rtn.put(pathwayId, ids);
+        }
+        return rtn;
+    }
+
+    /**
+     * Returns the dense id of a reaction. Reactions that have not been indexed (a copy of an indexed one, for
+     * instance) are resolved by their identifier
+     *
+     * @param reaction a reaction of the data structure
+     * @return the dense id of the reaction
+     * @throws IllegalStateException if the reaction is not in the data structure
+     */
+    public int getReactionId(AnalysisReaction reaction) {
+        int index = reaction.getIndex();
+        if (index >= 0) return index;
+        Integer id;
+        synchronized (this) {
+            id = this.reactionIds.get(reaction.getDbId());
+        }
+        if (id == null) throw new IllegalStateException("Reaction " + reaction + " is not in the data structure");
+        reaction.setIndex(id);
+        return id;
+    }
+
+    /**
+     * @return the dense ids of the given reactions of the data structure (see getReactionId)
+     */
+    public int[] getReactionIds(Set<AnalysisReaction> reactions) {
+        if (reactions == null || reactions.isEmpty()) return NO_IDS;
+        int[] rtn = new int[reactions.size()];
+        int i = 0;
+        for (AnalysisReaction reaction : reactions) {
+            rtn[i++] = this.getReactionId(reaction);
+        }
+        return rtn;
+    }
+
+    public AnalysisReaction getReaction(int id) {
+        return this.reactions[id];
+    }
+}
@@ -3,7 +3,11 @@ package org.reactome.server.analysis.core.model;
 import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
 import org.reactome.server.analysis.core.util.MapSet;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
@@ -16,7 +20,7 @@ public class EntitiesContainer {
         this.nodes = new MapSet<>();
     }
 
-    public EntityNode add(EntityNode node) {
+    public synchronized EntityNode add(EntityNode node) {
         Set<EntityNode> aux = nodes.getElements(node.getIdentifier());
         if (aux != null) {
             for (EntityNode entityNode : aux) {
@@ -41,4 +45,71 @@ public class EntitiesContainer {
         }
     }
 
+    /**
+     * Sets the orthologies cross links using several threads. The orthologous nodes of every node are
+     * taken first in parallel and then the back links are added in node order, so the link kept when several
+     * nodes of a species point to the same orthologous node does not depend on the threads scheduling
+     *
+     * @param parallelism the number of threads (1 to do it sequentially)
+     */
+    public void setOrthologiesCrossLinks(int parallelism){
+        if (parallelism < 2) {
+            setOrthologiesCrossLinks();
+            return;
+        }
+        final List<EntityNode> nodes = new ArrayList<>(getAllNodes());
+        final EntityNode[][] inferredTo = new EntityNode[nodes.size()][];
+        final EntityNode[][] inferredFrom = new EntityNode[nodes.size()][];
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RangeAction(0, nodes.size()) {
+                @Override
+                void compute(int i) {
+                    inferredTo[i] = nodes.get(i).getInferredToNodes();
+                    inferredFrom[i] = nodes.get(i).getInferredFromNodes();
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).setOrthologiesCrossLinks(inferredTo[i], inferredFrom[i]);
+        }
+    }
+
+    //Splits [from, to) until the ranges are small enough to be processed by a single task
+    private static abstract class RangeAction extends RecursiveAction {
+        private static final int THRESHOLD = 4096;
+        private final int from;
+        private final int to;
+
+        RangeAction(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        abstract void compute(int i);
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) compute(i);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            final RangeAction parent = this;
+            invokeAll(new RangeAction(from, mid) {
+                @Override
+                void compute(int i) {
+                    parent.compute(i);
+                }
+            }, new RangeAction(mid, to) {
+                @Override
+                void compute(int i) {
+                    parent.compute(i);
+                }
+            });
+        }
+    }
+
 }
@@ -2,7 +2,7 @@ package org.reactome.server.analysis.core.model;
 
 import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
 import org.reactome.server.analysis.core.model.resource.MainResource;
-import org.reactome.server.analysis.core.util.MapSet;
+import org.reactome.server.analysis.core.util.LongMapSet;
 
 import java.util.*;
 
@@ -22,11 +22,24 @@ public class EntityNode {
     //We DO NOT use PathwayNode here because at some point cloning the hierarchies
     //structure will be needed and keeping this separate will help to maintain the
     //links between both structures easy through the pathway location map
-    private MapSet<Long, AnalysisReaction> pathwayReactions = null;
+    //Only while building: they are moved to the EntityPathways of the container once it is created (see setPathways)
+    private transient LongMapSet<AnalysisReaction> pathwayReactions = null;
+
+    //The pathways and reactions of this node are stored in its position of the EntityPathways (a section on its own)
+    private int position = -1;
+    private transient EntityPathways pathways = null;
+
+    //Dense id + 1 of the main identifier (assigned by DenseIds, not stored). 0 means not assigned since Kryo
+    //does not run the field initialisers when loading
+    private transient int identifierId;
 
     public EntityNode(SpeciesNode species, MainResource mainResource, String mainIdentifier, List<Modification> modifications) {
+        this(species, new MainIdentifier(mainResource, new AnalysisIdentifier(mainIdentifier)), modifications);
+    }
+
+    public EntityNode(SpeciesNode species, MainIdentifier identifier, List<Modification> modifications) {
         this.species = species;
-        this.identifier = new MainIdentifier(mainResource, new AnalysisIdentifier(mainIdentifier));
+        this.identifier = identifier;
         this.modifications = modifications;
         Collections.sort(this.modifications);
     }
@@ -53,11 +66,12 @@ public class EntityNode {
         this.inferredFrom.put(inferredFrom.getSpecies(), inferredFrom);
     }
 
-    public void addPathwayReactions(MapSet<Long, AnalysisReaction> pathwayReactions) {
+    public void addPathwayReactions(long pathwayId, Collection<AnalysisReaction> reactions) {
+        if (this.pathways != null) throw new IllegalStateException("The pathways of the entity " + getName() + " cannot be modified once compiled");
         if (this.pathwayReactions == null) {
-            this.pathwayReactions = new MapSet<>();
+            this.pathwayReactions = new LongMapSet<>();
         }
-        this.pathwayReactions.addAll(pathwayReactions);
+        this.pathwayReactions.add(pathwayId, reactions);
     }
 
 
@@ -93,48 +107,122 @@ public class EntityNode {
         return inferredTo;
     }
 
-    public Set<AnalysisReaction> getReactions(Long pathwayId) {
-        Set<AnalysisReaction> rtn = new HashSet<>();
-        if (this.pathwayReactions != null) {
-            Set<AnalysisReaction> reactions = this.pathwayReactions.getElements(pathwayId);
-            if (reactions != null) {
-                rtn.addAll(reactions);
-            }
+    /**
+     * @return a read only view of the reactions of the pathway where this entity participates
+     */
+    public Set<AnalysisReaction> getReactions(long pathwayId) {
+        Set<AnalysisReaction> rtn = null;
+        if (this.pathways != null) {
+            int entry = this.pathways.indexOf(this.position, pathwayId);
+            if (entry >= 0) rtn = Collections.unmodifiableSet(this.pathways.getReactions(entry));
+        } else if (this.pathwayReactions != null) {
+            rtn = this.pathwayReactions.getElements(pathwayId);
         }
-        return rtn;
+        return rtn != null ? rtn : Collections.<AnalysisReaction>emptySet();
+    }
+
+    /**
+     * @return the dense id of the main identifier (see DenseIds)
+     */
+    public int getIdentifierId() {
+        if (this.identifierId == 0) throw new IllegalStateException("The main identifier of the entity " + getName() + " has not been indexed (see DenseIds)");
+        return this.identifierId - 1;
+    }
+
+    /**
+     * @return the dense ids of the reactions of the pathway where this entity participates (see EntityPathways)
+     */
+    public int[] getReactionIds(long pathwayId) {
+        if (this.pathways == null) {
+            if (this.pathwayReactions == null) return DenseIds.NO_IDS;
+            throw new IllegalStateException("The reactions of the entity " + getName() + " have not been compiled (see EntityPathways)");
+        }
+        int entry = this.pathways.indexOf(this.position, pathwayId);
+        return entry >= 0 ? this.pathways.getReactionIds(entry) : DenseIds.NO_IDS;
+    }
+
+    void setIdentifierId(int identifierId) {
+        this.identifierId = identifierId + 1;
+    }
+
+    /**
+     * Sets where the pathways and reactions of this node are kept. When building, the ones added so far are
+     * released since they are in the given EntityPathways from then on
+     *
+     * @param position the position of this node in the EntityPathways
+     */
+    void setPathways(EntityPathways pathways, int position) {
+        this.pathways = pathways;
+        this.position = position;
+        this.pathwayReactions = null;
+    }
+
+    /**
+     * @return the position of this node in the EntityPathways (-1 if it has not been compiled)
+     */
+    int getPosition() {
+        return position;
+    }
+
+    private String getName() {
+        return this.identifier != null ? this.identifier.getValue().getId() : "without main identifier";
     }
 
     public SpeciesNode getSpecies() {
         return species;
     }
 
-    public Set<Long> getPathwayIds() {
-        Set<Long> rtn = new HashSet<>();
-        if (this.pathwayReactions != null) {
-            rtn.addAll(this.pathwayReactions.keySet());
-        }
-        return rtn;
+    public long[] getPathwayIds() {
+        if (this.pathways != null) return this.pathways.getPathwayIds(this.position);
+        if (this.pathwayReactions == null) return new long[0];
+        return this.pathwayReactions.keys();
     }
 
-    public MapSet<Long, AnalysisReaction> getPathwayReactions() {
-        return pathwayReactions;
+    /**
+     * @return the reactions per pathway where this entity participates (a copy once they have been compiled,
+     * see EntityPathways) or null if there are none
+     */
+    public LongMapSet<AnalysisReaction> getPathwayReactions() {
+        if (this.pathways == null) return pathwayReactions;
+        long[] pathwayIds = this.getPathwayIds();
+        if (pathwayIds.length == 0) return null;
+        LongMapSet<AnalysisReaction> rtn = new LongMapSet<>(pathwayIds.length);
+        for (long pathwayId : pathwayIds) {
+            rtn.add(pathwayId, this.getReactions(pathwayId));
+        }
+        return rtn;
     }
 
     protected void setOrthologiesCrossLinks(){
-        for (SpeciesNode speciesNode : this.getInferredTo().keySet()) {
-            if(this.inferredTo.get(speciesNode).inferredFrom==null){
-                this.inferredTo.get(speciesNode).inferredFrom = new HashMap<>();
-            }
-            this.inferredTo.get(speciesNode).inferredFrom.put(this.species, this);
+        this.setOrthologiesCrossLinks(this.getInferredToNodes(), this.getInferredFromNodes());
+    }
+
+    /**
+     * Links this node back from its orthologous nodes. The orthologous nodes are passed in, so they can
+     * be taken for all the nodes before any link is added (the back links change the maps of other nodes).
+     * NOT thread safe: the link kept for a species is the last one added, so they are added in node order
+     */
+    void setOrthologiesCrossLinks(EntityNode[] inferredTo, EntityNode[] inferredFrom){
+        for (EntityNode node : inferredTo) {
+            if (node.inferredFrom == null) node.inferredFrom = new HashMap<>();
+            node.inferredFrom.put(this.species, this);
         }
-        for (SpeciesNode speciesNode : this.getInferredFrom().keySet()) {
-            if(this.inferredFrom.get(speciesNode).inferredTo==null){
-                this.inferredFrom.get(speciesNode).inferredTo = new HashMap<>();
-            }
-            this.inferredFrom.get(speciesNode).inferredTo.put(this.species, this);
+        for (EntityNode node : inferredFrom) {
+            if (node.inferredTo == null) node.inferredTo = new HashMap<>();
+            node.inferredTo.put(this.species, this);
         }
     }
 
+    EntityNode[] getInferredToNodes() {
+        if (this.inferredTo == null) return new EntityNode[0];
+        return this.inferredTo.values().toArray(new EntityNode[this.inferredTo.size()]);
+    }
+
+    EntityNode[] getInferredFromNodes() {
+        if (this.inferredFrom == null) return new EntityNode[0];
+        return this.inferredFrom.values().toArray(new EntityNode[this.inferredFrom.size()]);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
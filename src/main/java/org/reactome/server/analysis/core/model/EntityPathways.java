@@ -0,0 +1,209 @@
+package org.reactome.server.analysis.core.model;
+
+import org.reactome.server.analysis.core.util.LongMapSet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+
+/**
+ * Flat representation of the pathways where every entity node takes part and, for each one of them, the
+ * reactions where the entity participates (see EntityNode.getPathwayIds and EntityNode.getReactions).
+ * <p>
+ * Every EntityNode is identified by its position, assigned when the container is built and stored with the
+ * node. The reactions are referred by their position in the reactions table, which is also their dense id
+ * (see DenseIds). The arrays are kept in buffers so they can either be created from the nodes (build time)
+ * or used in place from the memory-mapped data file, so loading the entities does not deserialise a set of
+ * reactions per entity and pathway. Only the reactions table is kept in the object graph.
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class EntityPathways {
+
+    private AnalysisReaction[] reactions;
+
+    //The pathways of the node in position "n" are in pathwayIds[entryOffsets[n], entryOffsets[n + 1]) (sorted)
+    private IntBuffer entryOffsets;
+    private LongBuffer pathwayIds;
+    //The reactions of the entry "e" are in reactionIds[reactionOffsets[e], reactionOffsets[e + 1])
+    private IntBuffer reactionOffsets;
+    private IntBuffer reactionIds;
+
+    /**
+     * @param nodes the entity nodes (their position in the list is their position here)
+     */
+    EntityPathways(List<EntityNode> nodes) {
+        List<AnalysisReaction> reactions = new ArrayList<>();
+        Map<Long, Integer> ids = new HashMap<>();
+        int[] entryOffsets = new int[nodes.size() + 1];
+        long[] pathwayIds = new long[16];
+        int[] reactionOffsets = new int[16];
+        int[] reactionIds = new int[16];
+        int entries = 0, n = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            entryOffsets[i] = entries;
+            LongMapSet<AnalysisReaction> pathwayReactions = nodes.get(i).getPathwayReactions();
+            if (pathwayReactions == null) continue;
+            long[] pathways = pathwayReactions.keys();
+            Arrays.sort(pathways);
+            for (long pathwayId : pathways) {
+                if (entries + 1 >= pathwayIds.length) {
+                    pathwayIds = Arrays.copyOf(pathwayIds, pathwayIds.length * 2);
+                    reactionOffsets = Arrays.copyOf(reactionOffsets, reactionOffsets.length * 2);
+                }
+                pathwayIds[entries] = pathwayId;
+                reactionOffsets[entries++] = n;
+                for (AnalysisReaction reaction : pathwayReactions.getElements(pathwayId)) {
+                    Integer id = ids.get(reaction.getDbId());
+                    if (id == null) {
+                        id = reactions.size();
+                        ids.put(reaction.getDbId(), id);
+                        reactions.add(reaction);
+                    }
+                    if (n == reactionIds.length) reactionIds = Arrays.copyOf(reactionIds, n * 2);
+                    reactionIds[n++] = id;
+                }
+            }
+        }
+        entryOffsets[nodes.size()] = entries;
+        reactionOffsets[entries] = n;
+        this.reactions = reactions.toArray(new AnalysisReaction[reactions.size()]);
+        this.entryOffsets = IntBuffer.wrap(entryOffsets);
+        this.pathwayIds = LongBuffer.wrap(Arrays.copyOf(pathwayIds, entries));
+        this.reactionOffsets = IntBuffer.wrap(Arrays.copyOf(reactionOffsets, entries + 1));
+        this.reactionIds = IntBuffer.wrap(Arrays.copyOf(reactionIds, n));
+    }
+
+    /**
+     * Uses the arrays in place from the given buffer (see write for the layout)
+     *
+     * @param reactions the reactions table (stored in the object graph)
+     */
+    EntityPathways(ByteBuffer buffer, AnalysisReaction[] reactions) {
+        this.reactions = reactions;
+        ByteBuffer aux = buffer.duplicate();
+        int nodes = aux.getInt();
+        int entries = aux.getInt();
+        int n = aux.getInt();
+        aux.getInt(); //padding
+        this.pathwayIds = slice(aux, entries * 8).asLongBuffer();
+        this.entryOffsets = slice(aux, (nodes + 1) * 4).asIntBuffer();
+        this.reactionOffsets = slice(aux, (entries + 1) * 4).asIntBuffer();
+        this.reactionIds = slice(aux, n * 4).asIntBuffer();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer rtn = buffer.slice();
+        rtn.limit(length);
+        buffer.position(buffer.position() + length);
+        return rtn;
+    }
+
+    /**
+     * Writes the arrays with the following layout (big-endian):
+     * int nodes, int entries, int n, int padding (so the longs are aligned), long[entries] pathwayIds,
+     * int[nodes + 1] entryOffsets, int[entries + 1] reactionOffsets, int[n] reactionIds
+     */
+    void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        int entries = this.pathwayIds.limit();
+        out.writeInt(this.size());
+        out.writeInt(entries);
+        out.writeInt(this.reactionIds.limit());
+        out.writeInt(0);
+        for (int i = 0; i < entries; i++) out.writeLong(this.pathwayIds.get(i));
+        for (int i = 0; i <= this.size(); i++) out.writeInt(this.entryOffsets.get(i));
+        for (int i = 0; i <= entries; i++) out.writeInt(this.reactionOffsets.get(i));
+        for (int i = 0; i < this.reactionIds.limit(); i++) out.writeInt(this.reactionIds.get(i));
+        out.flush();
+    }
+
+    /**
+     * @return the reactions table (the position of a reaction is its id)
+     */
+    public AnalysisReaction[] getReactions() {
+        return reactions;
+    }
+
+    /**
+     * @return the pathways where the node in the given position takes part (sorted)
+     */
+    long[] getPathwayIds(int node) {
+        int from = this.entryOffsets.get(node);
+        long[] rtn = new long[this.entryOffsets.get(node + 1) - from];
+        for (int i = 0; i < rtn.length; i++) {
+            rtn[i] = this.pathwayIds.get(from + i);
+        }
+        return rtn;
+    }
+
+    /**
+     * @return the entry of the pathway for the node in the given position or -1 if it does not take part in it
+     */
+    int indexOf(int node, long pathwayId) {
+        int low = this.entryOffsets.get(node);
+        int high = this.entryOffsets.get(node + 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long id = this.pathwayIds.get(mid);
+            if (id < pathwayId) {
+                low = mid + 1;
+            } else if (id > pathwayId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the ids of the reactions of the given entry
+     */
+    int[] getReactionIds(int entry) {
+        int from = this.reactionOffsets.get(entry);
+        int[] rtn = new int[this.reactionOffsets.get(entry + 1) - from];
+        for (int i = 0; i < rtn.length; i++) {
+            rtn[i] = this.reactionIds.get(from + i);
+        }
+        return rtn;
+    }
+
+    /**
+     * @return the reactions of the given entry
+     */
+    Set<AnalysisReaction> getReactions(int entry) {
+        int from = this.reactionOffsets.get(entry);
+        int to = this.reactionOffsets.get(entry + 1);
+        Set<AnalysisReaction> rtn = new HashSet<>();
+        for (int i = from; i < to; i++) {
+            rtn.add(this.reactions[this.reactionIds.get(i)]);
+        }
+        return rtn;
+    }
+
+    /**
+     * @return the number of nodes
+     */
+    public int size() {
+        return this.entryOffsets.limit() - 1;
+    }
+
+    /**
+     * @return the number of (node, pathway) entries
+     */
+    public int getEntriesCount() {
+        return this.pathwayIds.limit();
+    }
+
+    /**
+     * @return the size in bytes of the arrays
+     */
+    public long getSize() {
+        return 16L + this.getEntriesCount() * 12L + (this.size() + 2) * 4L + this.reactionIds.limit() * 4L;
+    }
+}
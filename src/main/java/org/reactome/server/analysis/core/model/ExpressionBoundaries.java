@@ -11,8 +11,9 @@ public class ExpressionBoundaries {
 
     public ExpressionBoundaries(Set<AnalysisIdentifier> identifiers){
         for (AnalysisIdentifier identifier : identifiers) {
-            for (Double exp : identifier.getExp()) {
-                if( exp == null ) continue;
+            for (int i = 0; i < identifier.getExpSize(); i++) {
+                double exp = identifier.getExp(i);
+                if( Double.isNaN(exp) ) continue;
                 if( min == null && max == null ){
                     min = exp;
                     max = exp;
@@ -27,6 +28,13 @@ public class ExpressionBoundaries {
         }
     }
 
+    public ExpressionBoundaries(ExpressionMatrix matrix){
+        if( matrix != null ){
+            this.min = matrix.getMin();
+            this.max = matrix.getMax();
+        }
+    }
+
     public Double getMin() {
         return min;
     }
@@ -0,0 +1,125 @@
+package org.reactome.server.analysis.core.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Expression values of the submitted identifiers kept in a single row-major double[] (one row per identifier
+ * and one column per expression column) where the missing values are NaN. Identifiers only keep their row
+ * (see AnalysisIdentifier), so the values are neither boxed nor copied when the identifiers are cloned during
+ * the analysis. Since Kryo tracks references, the matrix is also written only once per stored result
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class ExpressionMatrix {
+
+    private static final int INITIAL_ROWS = 64;
+
+    private int columns;
+    private int rows = 0;
+    private double[] values;
+
+    public ExpressionMatrix(int columns) {
+        if (columns < 1) throw new IllegalArgumentException("An expression matrix needs at least one column");
+        this.columns = columns;
+        this.values = new double[INITIAL_ROWS * columns];
+    }
+
+    /**
+     * Adds a row with the given values (missing values have to be NaN)
+     *
+     * @param row the values of the row (only the first getColumns() are taken into account)
+     * @return the index of the new row
+     */
+    public int addRow(double[] row) {
+        int offset = rows * columns;
+        if (offset + columns > values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, offset + columns));
+        }
+        int n = Math.min(row.length, columns);
+        System.arraycopy(row, 0, values, offset, n);
+        Arrays.fill(values, offset + n, offset + columns, Double.NaN);
+        return rows++;
+    }
+
+    /**
+     * Releases the capacity reserved for rows that have not been added
+     */
+    public void trim() {
+        if (values.length > rows * columns) {
+            values = Arrays.copyOf(values, rows * columns);
+        }
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the value in the given position (NaN when missing)
+     */
+    public double get(int row, int column) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            throw new IndexOutOfBoundsException(String.format("[%d, %d] is not in a %d x %d matrix", row, column, rows, columns));
+        }
+        return values[row * columns + column];
+    }
+
+    /**
+     * @return the smallest value in the matrix (null if there are not values)
+     */
+    public Double getMin() {
+        double min = Double.NaN;
+        for (int i = 0, n = rows * columns; i < n; i++) {
+            if (values[i] < min || Double.isNaN(min)) min = values[i];
+        }
+        return Double.isNaN(min) ? null : min;
+    }
+
+    /**
+     * @return the biggest value in the matrix (null if there are not values)
+     */
+    public Double getMax() {
+        double max = Double.NaN;
+        for (int i = 0, n = rows * columns; i < n; i++) {
+            if (values[i] > max || Double.isNaN(max)) max = values[i];
+        }
+        return Double.isNaN(max) ? null : max;
+    }
+
+    /**
+     * @return a read-only view of the row where the missing values are null
+     */
+    public List<Double> getRow(final int row) {
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException(String.format("Row %d is not in a matrix with %d rows", row, rows));
+        }
+        return new Row(row);
+    }
+
+    private class Row extends AbstractList<Double> implements RandomAccess {
+        private final int offset;
+
+        Row(int row) {
+            this.offset = row * columns;
+        }
+
+        @Override
+        public Double get(int index) {
+            if (index < 0 || index >= columns) throw new IndexOutOfBoundsException("Column " + index + " of " + columns);
+            double value = values[offset + index];
+            return Double.isNaN(value) ? null : value;
+        }
+
+        @Override
+        public int size() {
+            return columns;
+        }
+    }
+}
@@ -1,24 +1,80 @@
 package org.reactome.server.analysis.core.model;
 
+import org.reactome.server.analysis.core.metrics.AnalysisMetrics;
+import org.reactome.server.analysis.core.model.identifier.Identifier;
+import org.reactome.server.analysis.core.model.identifier.InteractorIdentifier;
+import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
 import org.reactome.server.analysis.core.model.resource.MainResource;
-import org.reactome.server.analysis.core.util.MapSet;
+import org.reactome.server.analysis.core.util.BinomialPValue;
+import org.reactome.server.analysis.core.util.LongMapSet;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Keeps the result of an analysis on top of the pathway hierarchies.
+ * <p>
+ * The pathway hierarchies (and the pathway location map) are SHARED between all the analysis and they are NOT
+ * modified while analysing. Instead, the result for every pathway node is kept in a sparse overlay indexed by
+ * PathwayNode.getIndex(), so an analysis only allocates the PathwayNodeData of the pathways that are actually hit
+ *
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
  */
 public class HierarchiesData {
+
+    //Number of threads used to calculate the statistics of the different species (1 means sequentially)
+    private static int STATISTICS_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static ForkJoinPool STATISTICS_POOL = null;
+
     //A double link hierarchy tree with the pathways for each species
     private Map<SpeciesNode, PathwayHierarchy> pathwayHierarchies;
     //A map between pathways identifier and their locations in the pathway hierarchy
-    private MapSet<Long, PathwayNode> pathwayLocation;
+    private LongMapSet<PathwayNode> pathwayLocation;
+    //Flat representation of the pathway hierarchies (used to propagate the hits without following the parent links)
+    private CompiledHierarchies compiledHierarchies;
+    //Dense ids of the identifiers and reactions (used to keep track of the found elements)
+    private DenseIds denseIds;
+
+    //The analysis result for each hit pathway node (null for the pathways that have not been hit)
+    private PathwayNodeData[] results;
+    //The hit pathway nodes for each species
+    private Map<SpeciesNode, List<PathwayNode>> hitPathways = new HashMap<>();
+    //The analysis result at species level (counterpart of the PathwayHierarchy data)
+    private Map<SpeciesNode, PathwayNodeData> speciesResults = new HashMap<>();
 
     Set<AnalysisIdentifier> notFound = new HashSet<>();
 
-    public HierarchiesData(Map<SpeciesNode, PathwayHierarchy> pathwayHierarchies, MapSet<Long, PathwayNode> pathwayLocation) {
+    public HierarchiesData(Map<SpeciesNode, PathwayHierarchy> pathwayHierarchies, LongMapSet<PathwayNode> pathwayLocation, CompiledHierarchies compiledHierarchies, DenseIds denseIds) {
         this.pathwayHierarchies = pathwayHierarchies;
         this.pathwayLocation = pathwayLocation;
+        this.compiledHierarchies = compiledHierarchies;
+        this.denseIds = denseIds;
+        this.results = new PathwayNodeData[compiledHierarchies.size()];
+    }
+
+    /**
+     * Sets the maximum number of threads used to calculate the statistics of the different hit species
+     *
+     * @param parallelism the maximum number of threads (1 for sequential calculation)
+     */
+    public static synchronized void setStatisticsParallelism(int parallelism) {
+        STATISTICS_PARALLELISM = Math.max(1, parallelism);
+        //The previous pool (if any) is not shut down because it might be in use. Its threads finish when idle
+        STATISTICS_POOL = null;
+    }
+
+    public static synchronized int getStatisticsParallelism() {
+        return STATISTICS_PARALLELISM;
+    }
+
+    private static synchronized ForkJoinPool getStatisticsPool() {
+        if (STATISTICS_PARALLELISM < 2) return null;
+        if (STATISTICS_POOL == null) {
+            STATISTICS_POOL = new ForkJoinPool(STATISTICS_PARALLELISM);
+        }
+        return STATISTICS_POOL;
     }
 
     public void addNotFound(AnalysisIdentifier identifier){
@@ -37,7 +93,12 @@ public class HierarchiesData {
                 }
             }
         }
-        Collections.sort(rtn);
+        Collections.sort(rtn, new Comparator<PathwayNode>() {
+            @Override
+            public int compare(PathwayNode o1, PathwayNode o2) {
+                return getPathwayNodeData(o1).compareTo(getPathwayNodeData(o2));
+            }
+        });
         return rtn;
     }
 
@@ -45,10 +106,10 @@ public class HierarchiesData {
         return pathwayHierarchies;
     }
 
-    private Set<PathwayNode> getHitPathways(){
-        Set<PathwayNode> rtn = new HashSet<>();
-        for (SpeciesNode species : pathwayHierarchies.keySet()) {
-            rtn.addAll(pathwayHierarchies.get(species).getHitPathways());
+    private List<PathwayNode> getHitPathways(){
+        List<PathwayNode> rtn = new LinkedList<>();
+        for (List<PathwayNode> nodes : hitPathways.values()) {
+            rtn.addAll(nodes);
         }
         return rtn;
     }
@@ -57,68 +118,299 @@ public class HierarchiesData {
         return notFound;
     }
 
-    public MapSet<Long, PathwayNode> getPathwayLocation() {
+    public LongMapSet<PathwayNode> getPathwayLocation() {
         return pathwayLocation;
     }
 
-    @SuppressWarnings("ConstantConditions")
-    public void setResultStatistics(Map<MainResource, Integer> sampleSizePerResource, Integer notFound, boolean includeInteractors){
-        for (SpeciesNode species : this.pathwayHierarchies.keySet()) {
-            PathwayHierarchy hierarchy = this.pathwayHierarchies.get(species);
-            for (PathwayRoot node : hierarchy.getChildren()) {
-                node.setResultStatistics(sampleSizePerResource, notFound, includeInteractors);
+    /**
+     * Returns the analysis result for the given pathway node
+     *
+     * @param node a pathway node of the shared hierarchies
+     * @return the analysis result for the given pathway node or null if it has not been hit
+     */
+    public PathwayNodeData getPathwayNodeData(PathwayNode node) {
+        return this.results[node.getIndex()];
+    }
+
+    /**
+     * Returns the analysis result at species level (counterpart of PathwayHierarchy.getData())
+     *
+     * @param species the species of the hierarchy
+     * @return the analysis result at species level or null if the species hierarchy has not been hit
+     */
+    public PathwayNodeData getSpeciesData(SpeciesNode species) {
+        return this.speciesResults.get(species);
+    }
+
+    public void process(PathwayNode node, Identifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
+        this.resolve(reactions);
+        int id = this.denseIds.getIdentifierId(mainIdentifier.getValue().getId());
+        for (PathwayNode aux = node; aux != null; aux = aux.getParent()) {
+            PathwayNodeData data = getOrCreatePathwayNodeData(aux);
+            data.addEntity(identifier, mainIdentifier, id);
+            data.addReactions(mainIdentifier.getResource(), reactions);
+            if (aux instanceof PathwayRoot) {
+                data = getOrCreateSpeciesData(((PathwayRoot) aux).getPathwayHierarchy());
+                data.addEntity(identifier, mainIdentifier, id);
+                data.addReactions(mainIdentifier.getResource(), reactions);
+            }
+        }
+    }
+
+    public void processInteractor(PathwayNode node, InteractorIdentifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
+        this.resolve(reactions);
+        int id = this.denseIds.getIdentifierId(identifier.getMapsTo());
+        boolean hasReactions = reactions != null && !reactions.isEmpty();
+        for (PathwayNode aux = node; aux != null; aux = aux.getParent()) {
+            if (hasReactions) {
+                PathwayNodeData data = getOrCreatePathwayNodeData(aux);
+                data.addInteractors(mainIdentifier, identifier, id);
+                data.addReactions(mainIdentifier.getResource(), reactions);
+            }
+            if (aux instanceof PathwayRoot) {
+                PathwayNodeData data = getOrCreateSpeciesData(((PathwayRoot) aux).getPathwayHierarchy());
+                data.addInteractors(mainIdentifier, identifier, id);
+                data.addReactions(mainIdentifier.getResource(), reactions);
+            }
+            if (!hasReactions) break;
+        }
+    }
+
+    /**
+     * Propagates the hit of an identifier to all the locations of the pathway and their ancestors
+     * using the compiled hierarchies
+     *
+     * @return true if the pathway is present in the hierarchies
+     */
+    public boolean process(long pathwayId, Identifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
+        int id = this.denseIds.getIdentifierId(mainIdentifier.getValue().getId());
+        return this.process(pathwayId, identifier, mainIdentifier, id, this.denseIds.getReactionIds(reactions));
+    }
+
+    /**
+     * Propagates the hit of an identifier to all the locations of the pathway and their ancestors
+     * using the compiled hierarchies and the dense ids precomputed in the nodes (see EntityNode.getReactionIds)
+     *
+     * @param id        the dense id of the main identifier
+     * @param reactions the dense ids of the reactions of the pathway
+     * @return true if the pathway is present in the hierarchies
+     */
+    public boolean process(long pathwayId, Identifier identifier, MainIdentifier mainIdentifier, int id, int[] reactions){
+        int pos = this.compiledHierarchies.indexOf(pathwayId);
+        if (pos < 0) return false;
+        for (int i = this.compiledHierarchies.getClosureFrom(pos); i < this.compiledHierarchies.getClosureTo(pos); i++) {
+            int node = this.compiledHierarchies.getClosureNode(i);
+            PathwayNodeData data = getOrCreatePathwayNodeData(node);
+            data.addEntity(identifier, mainIdentifier, id);
+            data.addReactions(mainIdentifier.getResource(), reactions);
+            PathwayHierarchy hierarchy = this.compiledHierarchies.getHierarchy(node);
+            if (hierarchy != null) {
+                data = getOrCreateSpeciesData(hierarchy);
+                data.addEntity(identifier, mainIdentifier, id);
+                data.addReactions(mainIdentifier.getResource(), reactions);
             }
-            /*
-            FDR has to be calculated after the pValues for each pathway because it uses all the pValues.
-            How to do it? Easy :) first we create a list of PathwayStatic objects (class that I defined here as an innerClass
-            because it is only used here and it does not make any sense for me to create it in a different class).
-            The list will contain all the nodes information but take care of a the following detail:
-            In the present implementation we have results split by main resources and we also have the "all together" result.
-            That explains what it looks like a mess in the next bit of code, but take it easy and keep reading.
-             */
-            //Contains several sets of PathwayStatistic objects depending on the main resource (this one is used to calculate
-            //the entities FDR result based on the entities pValues
-            MapSet<MainResource, PathwayStatistic> pathwayResourceEntityPValue = new MapSet<MainResource, PathwayStatistic>();
-
-            //This one does not depend on main resource because is for the combined result of the entities FDR based in their pValues
-            List<PathwayStatistic> pathwayEntityPValue = new LinkedList<PathwayStatistic>();
-
-            //First thing we have to do, is iterate over the hit pathways and populate the lists (and MapSet) defined above
-            for (PathwayNode node : hierarchy.getHitPathways()) {
-                PathwayNodeData nodeData = node.getPathwayNodeData();
-
-                for (MainResource resource : nodeData.getResources()) {
-                    Double pValue = nodeData.getEntitiesPValue(resource);
-                    if(pValue!=null)
-                        pathwayResourceEntityPValue.add(resource, new PathwayStatistic(node, pValue));
+        }
+        return true;
+    }
+
+    /**
+     * Propagates the hit of an interactor to all the locations of the pathway and their ancestors
+     * using the compiled hierarchies
+     *
+     * @return true if the pathway is present in the hierarchies
+     */
+    public boolean processInteractor(long pathwayId, InteractorIdentifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
+        int id = this.denseIds.getIdentifierId(identifier.getMapsTo());
+        return this.processInteractor(pathwayId, identifier, mainIdentifier, id, this.denseIds.getReactionIds(reactions));
+    }
+
+    /**
+     * Propagates the hit of an interactor to all the locations of the pathway and their ancestors
+     * using the compiled hierarchies and the dense ids precomputed in the nodes (see InteractorNode.getReactionIds)
+     *
+     * @param id        the dense id of the interactor (the one it maps to)
+     * @param reactions the dense ids of the reactions of the pathway
+     * @return true if the pathway is present in the hierarchies
+     */
+    public boolean processInteractor(long pathwayId, InteractorIdentifier identifier, MainIdentifier mainIdentifier, int id, int[] reactions){
+        int pos = this.compiledHierarchies.indexOf(pathwayId);
+        if (pos < 0) return false;
+        if (reactions.length == 0) {
+            //As in processInteractor(PathwayNode, ...), the hit only reaches the species of the locations that
+            //are top level pathways (the closure mixes the ancestors of all the locations, so it cannot be used)
+            for (PathwayNode location : this.pathwayLocation.getElements(pathwayId)) {
+                if (location instanceof PathwayRoot) {
+                    getOrCreateSpeciesData(((PathwayRoot) location).getPathwayHierarchy()).addInteractors(mainIdentifier, identifier, id);
+                }
+            }
+            return true;
+        }
+        for (int i = this.compiledHierarchies.getClosureFrom(pos); i < this.compiledHierarchies.getClosureTo(pos); i++) {
+            int node = this.compiledHierarchies.getClosureNode(i);
+            PathwayNodeData data = getOrCreatePathwayNodeData(node);
+            data.addInteractors(mainIdentifier, identifier, id);
+            data.addReactions(mainIdentifier.getResource(), reactions);
+            PathwayHierarchy hierarchy = this.compiledHierarchies.getHierarchy(node);
+            if (hierarchy != null) {
+                data = getOrCreateSpeciesData(hierarchy);
+                data.addInteractors(mainIdentifier, identifier, id);
+                data.addReactions(mainIdentifier.getResource(), reactions);
+            }
+        }
+        return true;
+    }
+
+    //Makes sure every reaction has its dense id before it is added to the results
+    private void resolve(Set<AnalysisReaction> reactions) {
+        if (reactions == null) return;
+        for (AnalysisReaction reaction : reactions) {
+            if (reaction.getIndex() < 0) this.denseIds.getReactionId(reaction);
+        }
+    }
+
+    private PathwayNodeData getOrCreatePathwayNodeData(PathwayNode node){
+        return getOrCreatePathwayNodeData(node.getIndex());
+    }
+
+    private PathwayNodeData getOrCreatePathwayNodeData(int id){
+        PathwayNodeData data = this.results[id];
+        if (data == null) {
+            PathwayNode node = this.compiledHierarchies.getNode(id);
+            data = new PathwayNodeData(node.getPathwayNodeData());
+            this.results[id] = data;
+            SpeciesNode species = node.getSpecies();
+            List<PathwayNode> nodes = this.hitPathways.get(species);
+            if (nodes == null) {
+                nodes = new ArrayList<>();
+                this.hitPathways.put(species, nodes);
+            }
+            nodes.add(node);
+        }
+        return data;
+    }
+
+    private PathwayNodeData getOrCreateSpeciesData(PathwayHierarchy hierarchy){
+        PathwayNodeData data = this.speciesResults.get(hierarchy.getSpecies());
+        if (data == null) {
+            data = new PathwayNodeData(hierarchy.getData());
+            this.speciesResults.put(hierarchy.getSpecies(), data);
+        }
+        return data;
+    }
+
+    public void setResultStatistics(final Map<MainResource, Integer> sampleSizePerResource, final Integer notFound, final boolean includeInteractors){
+        final List<SpeciesNode> speciesList = new ArrayList<>(this.hitPathways.keySet());
+        //Many pathways share ratio, sample size and found entities so the p-values are memoized per analysis
+        final BinomialPValue.Memo memo = new BinomialPValue.Memo();
+        final AtomicLong fdrNanos = new AtomicLong(0);
+        ForkJoinPool pool = getStatisticsPool();
+        if (pool == null || speciesList.size() < 2) {
+            for (SpeciesNode species : speciesList) {
+                this.setResultStatistics(species, sampleSizePerResource, notFound, includeInteractors, memo, fdrNanos, false);
+            }
+            AnalysisMetrics.getTimer(AnalysisMetrics.Stage.FDR).record(fdrNanos.get());
+            return;
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<>();
+                for (final SpeciesNode species : speciesList) {
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            setResultStatistics(species, sampleSizePerResource, notFound, includeInteractors, memo, fdrNanos, true);
+                        }
+                    });
                 }
-                Double pValue = nodeData.getEntitiesPValue();
-                pathwayEntityPValue.add(new PathwayStatistic(node, pValue));
+                invokeAll(tasks);
             }
-            /*
-            Here we have to iterate over the different resources where the "individual" results have been found
-            and is when the funny stuff begins, so let's go for it
-             */
-            for (MainResource resource : pathwayResourceEntityPValue.keySet()) {
-                //MapSep contains data in Set associated to the left side of the map to avoid duplication
-                Set<PathwayStatistic> set = pathwayResourceEntityPValue.getElements(resource);
-                //But we need a list
-                List<PathwayStatistic> list = new LinkedList<PathwayStatistic>(set);
-                //And now go to see the comments in the method
-                this.setFDRWithBenjaminiHochberg(list);
-                //When the method finishes, we only need to take the results and assign to the node in question
-                for (PathwayStatistic pathwayStatistic : list) {
-                    PathwayNodeData nodeData = pathwayStatistic.getPathwayNode().getPathwayNodeData();
-                    nodeData.setEntitiesFDR(resource, pathwayStatistic.getFDR());
+        });
+        AnalysisMetrics.getTimer(AnalysisMetrics.Stage.FDR).record(fdrNanos.get());
+    }
+
+    /**
+     * Calculates the statistics and the FDR for the hit pathways of a species. Species do not share pathway
+     * nodes so they can be processed at the same time
+     *
+     * @param fdrNanos accumulates the time spent on the FDR calculation
+     * @param fork     true when running in the statistics pool (the FDR of the different resources is then forked)
+     */
+    @SuppressWarnings("ConstantConditions")
+    private void setResultStatistics(SpeciesNode species, Map<MainResource, Integer> sampleSizePerResource, Integer notFound, boolean includeInteractors, BinomialPValue.Memo memo, AtomicLong fdrNanos, boolean fork){
+        List<PathwayNode> hitPathways = this.hitPathways.get(species);
+        for (PathwayNode node : hitPathways) {
+            getPathwayNodeData(node).setResultStatistics(sampleSizePerResource, notFound, includeInteractors, denseIds, memo);
+        }
+        long fdrStart = System.nanoTime();
+        /*
+        FDR has to be calculated after the pValues for each pathway because it uses all the pValues.
+        How to do it? Easy :) first we create a list of PathwayStatic objects (class that I defined here as an innerClass
+        because it is only used here and it does not make any sense for me to create it in a different class).
+        The list will contain all the nodes information but take care of a the following detail:
+        In the present implementation we have results split by main resources and we also have the "all together" result.
+        That explains what it looks like a mess in the next bit of code, but take it easy and keep reading.
+         */
+        //Contains several lists of PathwayStatistic objects depending on the main resource (this one is used to calculate
+        //the entities FDR result based on the entities pValues. Lists keep the hit order so the result is always the same
+        Map<MainResource, List<PathwayStatistic>> pathwayResourceEntityPValue = new LinkedHashMap<>();
+
+        //This one does not depend on main resource because is for the combined result of the entities FDR based in their pValues
+        List<PathwayStatistic> pathwayEntityPValue = new ArrayList<>();
+
+        //First thing we have to do, is iterate over the hit pathways and populate the lists (and Map) defined above
+        for (PathwayNode node : hitPathways) {
+            PathwayNodeData nodeData = getPathwayNodeData(node);
+
+            for (MainResource resource : nodeData.getResources()) {
+                Double pValue = nodeData.getEntitiesPValue(resource);
+                if(pValue!=null) {
+                    List<PathwayStatistic> list = pathwayResourceEntityPValue.get(resource);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        pathwayResourceEntityPValue.put(resource, list);
+                    }
+                    list.add(new PathwayStatistic(node, pValue));
                 }
             }
-            //You know what the comment here is... the same than before but for the combined result
-            this.setFDRWithBenjaminiHochberg(pathwayEntityPValue);
-            for (PathwayStatistic pathwayStatistic : pathwayEntityPValue) {
-                PathwayNodeData nodeData = pathwayStatistic.getPathwayNode().getPathwayNodeData();
-                nodeData.setEntitiesFDR(pathwayStatistic.getFDR());
+            Double pValue = nodeData.getEntitiesPValue();
+            pathwayEntityPValue.add(new PathwayStatistic(node, pValue));
+        }
+        /*
+        Here we have to iterate over the different resources where the "individual" results have been found
+        and is when the funny stuff begins, so let's go for it. Every resource (and the combined result) writes
+        in a different counter of the PathwayNodeData so, when running in the pool, they are forked
+         */
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (final MainResource resource : pathwayResourceEntityPValue.keySet()) {
+            final List<PathwayStatistic> list = pathwayResourceEntityPValue.get(resource);
+            RecursiveAction fdr = new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    //And now go to see the comments in the method
+                    setFDRWithBenjaminiHochberg(list);
+                    //When the method finishes, we only need to take the results and assign to the node in question
+                    for (PathwayStatistic pathwayStatistic : list) {
+                        PathwayNodeData nodeData = getPathwayNodeData(pathwayStatistic.getPathwayNode());
+                        nodeData.setEntitiesFDR(resource, pathwayStatistic.getFDR());
+                    }
+                }
+            };
+            if (fork) {
+                tasks.add(fdr);
+            } else {
+                fdr.invoke();
             }
         }
+        if (!tasks.isEmpty()) RecursiveAction.invokeAll(tasks);
+
+        //You know what the comment here is... the same than before but for the combined result
+        this.setFDRWithBenjaminiHochberg(pathwayEntityPValue);
+        for (PathwayStatistic pathwayStatistic : pathwayEntityPValue) {
+            PathwayNodeData nodeData = getPathwayNodeData(pathwayStatistic.getPathwayNode());
+            nodeData.setEntitiesFDR(pathwayStatistic.getFDR());
+        }
+        fdrNanos.addAndGet(System.nanoTime() - fdrStart);
     }
 
     /**
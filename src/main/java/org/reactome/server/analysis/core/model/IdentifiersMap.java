@@ -1,62 +1,309 @@
 package org.reactome.server.analysis.core.model;
 
-import com.googlecode.concurrenttrees.radix.ConcurrentRadixTree;
-import com.googlecode.concurrenttrees.radix.RadixTree;
-import com.googlecode.concurrenttrees.radix.node.NodeFactory;
-import com.googlecode.concurrenttrees.radix.node.concrete.DefaultCharSequenceNodeFactory;
 import org.reactome.server.analysis.core.model.resource.Resource;
 import org.reactome.server.analysis.core.util.MapSet;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
 
 /**
+ * Maps the (upper case) identifiers to the elements of the data structure for each resource.
+ * <p>
+ * While building, the identifiers are added to a map. Once all of them have been added, build() creates
+ * an immutable index (sorted table of identifiers plus packed postings) that is the one used from then on.
+ * The index is a single buffer, so it can either be on the heap (build time) or used in place from the
+ * memory-mapped data file. Only the resources and the elements are kept in the object graph.
+ * <p>
+ * The isoforms of a UniProt accession (identifiers starting with "ACCESSION-") are consecutive in the sorted
+ * identifiers, so their families are precomputed as ranges of identifiers (sorted by accession). Looking up
+ * an accession then returns its postings plus the ones of its isoforms without any regular expression or
+ * prefix traversal.
+ * <p>
+ * Index layout (big-endian):
+ * <pre>
+ *   int keys, int postings, int resourceBits, int families
+ *   int[keys + 1]     keyOffsets       identifier i bytes (UTF-8) are in keyBytes[keyOffsets[i], keyOffsets[i+1])
+ *   int[keys + 1]     postingOffsets   identifier i postings are in postings[postingOffsets[i], postingOffsets[i+1])
+ *   int[postings]     postings         (element index &lt;&lt; resourceBits) | resource index
+ *   int[families * 2] isoforms         [from, to) identifiers of each isoforms family
+ *   byte[]            keyBytes         identifiers sorted by their bytes
+ * </pre>
+ *
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
  */
 public class IdentifiersMap<T> implements Serializable {
 
-    private RadixTree<MapSet<Resource, T>> tree;
+    private static final int HEADER = 16;
 
-    public IdentifiersMap() {
-        NodeFactory nodeFactory = new DefaultCharSequenceNodeFactory();
-        this.tree = new ConcurrentRadixTree<>(nodeFactory);
+    //Order of the identifiers in the index (unsigned comparison of their UTF-8 bytes)
+    public static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] o1, byte[] o2) {
+            int n = Math.min(o1.length, o2.length);
+            for (int i = 0; i < n; i++) {
+                int cmp = (o1[i] & 0xFF) - (o2[i] & 0xFF);
+                if (cmp != 0) return cmp;
+            }
+            return o1.length - o2.length;
+        }
+    };
+
+    private static final Pattern UNIPROT = Pattern.compile("[OPQ][0-9][A-Z0-9]{3}[0-9]|[A-NR-Z][0-9]([A-Z][A-Z0-9]{2}[0-9]){1,2}");
+
+    //Only used while building (null once the index has been built or after loading)
+    private transient Map<String, MapSet<Resource, T>> map = new HashMap<>();
+
+    private Resource[] resources;
+    private Object[] elements;
+
+    private transient ByteBuffer index;
+    private transient int keys;
+    private transient int resourceBits;
+    private transient int postingOffsets;
+    private transient int postings;
+    private transient int families;
+    private transient int isoforms;
+    private transient int keyBytes;
+
+    public synchronized boolean add(String identifier, Resource resource, T node) {
+        if (identifier == null || resource == null || node == null) return false;
+        if (map == null) throw new IllegalStateException("Identifiers cannot be added once the index has been built");
+        String id = identifier.trim().toUpperCase();
+        MapSet<Resource, T> aux = map.get(id);
+        if (aux == null) {
+            aux = new MapSet<>();
+            map.put(id, aux);
+        }
+        return aux.add(resource, node);
     }
 
-    private MapSet<Resource, T> getOrCreateResourceEntitiesMap(String identifier) {
-        MapSet<Resource, T> map = this.tree.getValueForExactKey(identifier);
-        if (map == null) {
-            map = new MapSet<>();
-            this.tree.put(identifier, map);
+    /**
+     * Creates the index with the added identifiers. It has to be called once all of them have been added
+     */
+    public synchronized void build() {
+        if (map == null) return;
+
+        Map<Resource, Integer> resourceIds = new LinkedHashMap<>();
+        Map<T, Integer> elementIds = new LinkedHashMap<>();
+        for (MapSet<Resource, T> aux : map.values()) {
+            for (Resource resource : aux.keySet()) {
+                if (!resourceIds.containsKey(resource)) resourceIds.put(resource, resourceIds.size());
+                for (T element : aux.getElements(resource)) {
+                    if (!elementIds.containsKey(element)) elementIds.put(element, elementIds.size());
+                }
+            }
         }
-        return map;
+        int resourceBits = 32 - Integer.numberOfLeadingZeros(Math.max(1, resourceIds.size() - 1));
+        if (elementIds.size() > 1 << (31 - resourceBits)) {
+            throw new IllegalStateException(String.format("%d elements and %d resources cannot be packed in the postings", elementIds.size(), resourceIds.size()));
+        }
+
+        List<byte[]> sorted = new ArrayList<>(map.size());
+        Map<byte[], String> identifiers = new IdentityHashMap<>(map.size());
+        int bytes = 0, n = 0;
+        for (Map.Entry<String, MapSet<Resource, T>> entry : map.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            sorted.add(key);
+            identifiers.put(key, entry.getKey());
+            bytes += key.length;
+            n += entry.getValue().values().size();
+        }
+        Collections.sort(sorted, KEY_ORDER);
+
+        int keys = sorted.size();
+        List<Integer> isoforms = getIsoformFamilies(sorted);
+        ByteBuffer index = ByteBuffer.allocate(HEADER + (keys + 1) * 8 + n * 4 + isoforms.size() * 4 + bytes);
+        index.putInt(keys).putInt(n).putInt(resourceBits).putInt(isoforms.size() / 2);
+        int offset = 0;
+        for (byte[] key : sorted) {
+            index.putInt(offset);
+            offset += key.length;
+        }
+        index.putInt(offset);
+        offset = 0;
+        for (byte[] key : sorted) {
+            index.putInt(offset);
+            offset += map.get(identifiers.get(key)).values().size();
+        }
+        index.putInt(offset);
+        for (byte[] key : sorted) {
+            MapSet<Resource, T> aux = map.get(identifiers.get(key));
+            for (Resource resource : aux.keySet()) {
+                int resourceId = resourceIds.get(resource);
+                for (T element : aux.getElements(resource)) {
+                    index.putInt(elementIds.get(element) << resourceBits | resourceId);
+                }
+            }
+        }
+        for (Integer isoform : isoforms) {
+            index.putInt(isoform);
+        }
+        for (byte[] key : sorted) {
+            index.put(key);
+        }
+        index.flip();
+
+        this.resources = resourceIds.keySet().toArray(new Resource[resourceIds.size()]);
+        this.elements = elementIds.keySet().toArray(new Object[elementIds.size()]);
+        this.map = null;
+        this.setIndex(index);
     }
 
-    public boolean add(String identifier, Resource resource, T node) {
-        if (identifier == null || resource == null || node == null) return false;
-        String id = identifier.trim().toUpperCase();
-        MapSet<Resource, T> map = getOrCreateResourceEntitiesMap(id);
-        return map.add(resource, node);
+    /**
+     * Uses the given buffer (see write) as index
+     */
+    void setIndex(ByteBuffer index) {
+        this.index = index;
+        this.keys = index.getInt(0);
+        this.resourceBits = index.getInt(8);
+        this.postingOffsets = HEADER + (keys + 1) * 4;
+        this.postings = postingOffsets + (keys + 1) * 4;
+        this.families = index.getInt(12);
+        this.isoforms = postings + index.getInt(4) * 4;
+        this.keyBytes = isoforms + families * 8;
     }
 
-    public MapSet<Resource, T> get(AnalysisIdentifier identifier) {
-        Set<AnalysisIdentifier> identifiers = expandIdentifierWithPolimorfism(identifier);
+    /**
+     * Groups the consecutive identifiers starting with the same UniProt accession followed by "-"
+     *
+     * @return the [from, to) identifiers of each family (sorted by accession)
+     */
+    private static List<Integer> getIsoformFamilies(List<byte[]> sorted) {
+        List<Integer> rtn = new ArrayList<>();
+        String current = null;
+        for (int i = 0; i < sorted.size(); i++) {
+            String key = new String(sorted.get(i), StandardCharsets.UTF_8);
+            int dash = key.indexOf('-');
+            String accession = dash > 0 ? key.substring(0, dash) : null;
+            if (accession != null && accession.equals(current)) {
+                rtn.set(rtn.size() - 1, i + 1);
+            } else if (accession != null && UNIPROT.matcher(accession).matches()) {
+                rtn.add(i);
+                rtn.add(i + 1);
+                current = accession;
+            } else {
+                current = null;
+            }
+        }
+        return rtn;
+    }
 
+    /**
+     * Writes the index to be stored in its own section of the data file (see the layout above)
+     */
+    void write(OutputStream os) throws IOException {
+        ByteBuffer aux = index.duplicate();
+        aux.clear();
+        byte[] buffer = new byte[1 << 16];
+        while (aux.hasRemaining()) {
+            int n = Math.min(buffer.length, aux.remaining());
+            aux.get(buffer, 0, n);
+            os.write(buffer, 0, n);
+        }
+        os.flush();
+    }
+
+    /**
+     * Returns the elements for the identifier plus, when it is a UniProt accession, the ones of its isoforms
+     *
+     * @deprecated it copies the elements, use getPostings instead
+     */
+    @Deprecated
+    public MapSet<Resource, T> get(AnalysisIdentifier identifier) {
         MapSet<Resource, T> rtn = new MapSet<>();
-        for (AnalysisIdentifier aux : identifiers) {
-            String id = aux.getId().toUpperCase();
-            MapSet<Resource, T> res = this.tree.getValueForExactKey(id);
-            if (res != null) {
-                rtn.addAll(res);
-            }
+        Postings<T> postings = getPostings(identifier);
+        for (int i = 0; i < postings.size(); i++) {
+            rtn.add(postings.getResource(i), postings.getElement(i));
         }
         return rtn;
     }
 
+    /**
+     * Returns a read-only view of the elements for the identifier plus, when it is a UniProt accession,
+     * the ones of its isoforms. The postings of each identifier are grouped by resource, but the ones of the
+     * accession and the ones of its isoforms follow each other, so the resources can interleave in the view.
+     * The same element can be present more than once when it is mapped by both the accession and an isoform
+     */
+    public Postings<T> getPostings(AnalysisIdentifier identifier) {
+        byte[] id = identifier.getId().toUpperCase().getBytes(StandardCharsets.UTF_8);
+        int pos = find(id);
+        int from = 0, to = 0;
+        if (pos >= 0) {
+            from = index.getInt(postingOffsets + pos * 4);
+            to = index.getInt(postingOffsets + (pos + 1) * 4);
+        }
+        int family = findFamily(id);
+        if (family < 0) return new Postings<>(this, from, to, 0, 0);
+        int first = index.getInt(isoforms + family * 8);
+        int last = index.getInt(isoforms + family * 8 + 4);
+        return new Postings<>(this, from, to, index.getInt(postingOffsets + first * 4), index.getInt(postingOffsets + last * 4));
+    }
+
+    /**
+     * Bulk version of getPostings(AnalysisIdentifier). The keys have to be upper case, unique and sorted with
+     * KEY_ORDER so each binary search starts where the previous one ended
+     *
+     * @param keys   the (UTF-8) identifiers to resolve
+     * @param from   first key to resolve (inclusive)
+     * @param to     last key to resolve (exclusive)
+     * @param target where the (key position, element id, resource id) matches are added (grouped by key)
+     */
+    public void resolve(byte[][] keys, int from, int to, Matches target) {
+        int mask = (1 << resourceBits) - 1;
+        int low = 0, familyLow = 0;
+        for (int k = from; k < to; k++) {
+            int pos = find(keys[k], low);
+            low = pos >= 0 ? pos : -pos - 1;
+            if (pos >= 0) {
+                int last = index.getInt(postingOffsets + (pos + 1) * 4);
+                for (int i = index.getInt(postingOffsets + pos * 4); i < last; i++) {
+                    int posting = getPosting(i);
+                    target.add(k, posting >>> resourceBits, posting & mask);
+                }
+            }
+            int family = findFamily(keys[k], familyLow);
+            familyLow = family >= 0 ? family : -family - 1;
+            if (family >= 0) {
+                int last = index.getInt(postingOffsets + index.getInt(isoforms + family * 8 + 4) * 4);
+                for (int i = index.getInt(postingOffsets + index.getInt(isoforms + family * 8) * 4); i < last; i++) {
+                    int posting = getPosting(i);
+                    target.add(k, posting >>> resourceBits, posting & mask);
+                }
+            }
+        }
+    }
+
+    /**
+     * The element id is its position in the elements of the map (see Postings and resolve)
+     */
+    @SuppressWarnings("unchecked")
+    public T getElement(int elementId) {
+        return (T) elements[elementId];
+    }
+
+    public Resource getResource(int resourceId) {
+        return resources[resourceId];
+    }
+
+    public int getElementsCount() {
+        return elements.length;
+    }
+
     public MapSet<Resource, T> get(String identifier) {
-        MapSet<Resource, T> res = this.tree.getValueForExactKey(identifier.toUpperCase());
-        if (res != null) return res;
-        return new MapSet<>();
+        String id = identifier.toUpperCase();
+        if (map != null) {
+            MapSet<Resource, T> res = map.get(id);
+            return res != null ? res : new MapSet<Resource, T>();
+        }
+        MapSet<Resource, T> rtn = new MapSet<>();
+        int pos = find(id.getBytes(StandardCharsets.UTF_8));
+        if (pos >= 0) addPostings(pos, rtn);
+        return rtn;
     }
 
     /**
@@ -65,37 +312,214 @@ public class IdentifiersMap<T> implements Serializable {
      * @return all the identifiers in the Map (upper Case)
      */
     public Set<String> keySet() {
+        if (map != null) return new HashSet<>(map.keySet());
         Set<String> keySet = new HashSet<>();
-        for (CharSequence charSequence : this.tree.getKeysStartingWith("")) {
-            keySet.add(String.valueOf(charSequence));
+        for (int i = 0; i < keys; i++) {
+            keySet.add(getKey(i));
         }
         return keySet;
     }
 
+    @SuppressWarnings("unchecked")
     public Set<T> values() {
         Set<T> rtn = new HashSet<>();
-        for (String s : keySet()) {
-            rtn.addAll(get(s).values());
+        if (map != null) {
+            for (MapSet<Resource, T> aux : map.values()) rtn.addAll(aux.values());
+        } else {
+            for (Object element : elements) rtn.add((T) element);
         }
         return rtn;
     }
 
-    private Set<AnalysisIdentifier> expandIdentifierWithPolimorfism(AnalysisIdentifier identifier) {
-        //The compiler takes care of replacing this where the variables are used, so no worries for performance
-        String UNIPROT = "[OPQ][0-9][A-Z0-9]{3}[0-9]|[A-NR-Z][0-9]([A-Z][A-Z0-9]{2}[0-9]){1,2}";
-//        String UNIPROT_POLIMORFISM = UNIPROT + "\\-\\d+$";
-
-        Set<AnalysisIdentifier> rtn = new HashSet<>();
-        rtn.add(identifier);
-        String id = identifier.getId().toUpperCase();
-        if (id.matches(UNIPROT) && !id.contains("-")) {
-            for (CharSequence sequence : this.tree.getKeysStartingWith(id + "-")) {
-//                String aux = sequence.toString();
-//                if(aux.matches(UNIPROT_POLIMORFISM)){
-                rtn.add(new AnalysisIdentifier(sequence.toString(), identifier.getExp()));
-//                }
+    /**
+     * Number of identifiers in the index
+     */
+    public int size() {
+        return map != null ? map.size() : keys;
+    }
+
+    /**
+     * Size in bytes of the index (0 before it is built)
+     */
+    public int getIndexSize() {
+        return index != null ? index.capacity() : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addPostings(int pos, MapSet<Resource, T> target) {
+        int mask = (1 << resourceBits) - 1;
+        int from = index.getInt(postingOffsets + pos * 4);
+        int to = index.getInt(postingOffsets + (pos + 1) * 4);
+        for (int i = from; i < to; i++) {
+            int posting = index.getInt(postings + i * 4);
+            target.add(resources[posting & mask], (T) elements[posting >>> resourceBits]);
+        }
+    }
+
+    /**
+     * Binary search of the key in the sorted identifiers
+     *
+     * @return the position of the key or (-(insertion point) - 1) if it is not in the index
+     */
+    private int find(byte[] key) {
+        return find(key, 0);
+    }
+
+    private int find(byte[] key, int low) {
+        int high = keys - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
             }
         }
-        return rtn;
+        return -(low + 1);
+    }
+
+    private int compare(int pos, byte[] key) {
+        int from = keyBytes + index.getInt(HEADER + pos * 4);
+        int length = index.getInt(HEADER + (pos + 1) * 4) - index.getInt(HEADER + pos * 4);
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (index.get(from + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Binary search of the accession in the isoforms families
+     *
+     * @return the position of the family or (-(insertion point) - 1) if the accession does not have isoforms
+     */
+    private int findFamily(byte[] accession) {
+        return findFamily(accession, 0);
+    }
+
+    private int findFamily(byte[] accession, int low) {
+        int high = families - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareAccession(index.getInt(isoforms + mid * 8), accession);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    //Compares the accession of the isoform in pos (the bytes before the "-") with the given one
+    private int compareAccession(int pos, byte[] accession) {
+        int from = keyBytes + index.getInt(HEADER + pos * 4);
+        for (int i = 0; i < accession.length; i++) {
+            byte b = index.get(from + i);
+            if (b == '-') return -1;
+            int cmp = (b & 0xFF) - (accession[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return index.get(from + accession.length) == '-' ? 0 : 1;
+    }
+
+    private String getKey(int pos) {
+        int from = index.getInt(HEADER + pos * 4);
+        byte[] key = new byte[index.getInt(HEADER + (pos + 1) * 4) - from];
+        for (int i = 0; i < key.length; i++) key[i] = index.get(keyBytes + from + i);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private int getPosting(int i) {
+        return index.getInt(postings + i * 4);
+    }
+
+    /**
+     * Read-only view of the postings found for an identifier (and its isoforms). It does not copy them,
+     * they are read from the index when accessed
+     */
+    public static class Postings<T> {
+        private IdentifiersMap<T> map;
+        private int from, to, isoformsFrom, isoformsTo;
+
+        Postings(IdentifiersMap<T> map, int from, int to, int isoformsFrom, int isoformsTo) {
+            this.map = map;
+            this.from = from;
+            this.to = to;
+            this.isoformsFrom = isoformsFrom;
+            this.isoformsTo = isoformsTo;
+        }
+
+        public int size() {
+            return (to - from) + (isoformsTo - isoformsFrom);
+        }
+
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        public Resource getResource(int i) {
+            return map.resources[getPosting(i) & ((1 << map.resourceBits) - 1)];
+        }
+
+        @SuppressWarnings("unchecked")
+        public T getElement(int i) {
+            return (T) map.elements[getElementId(i)];
+        }
+
+        /**
+         * The element id is its position in the elements of the map (unique per element)
+         */
+        public int getElementId(int i) {
+            return getPosting(i) >>> map.resourceBits;
+        }
+
+        private int getPosting(int i) {
+            int n = to - from;
+            return map.getPosting(i < n ? from + i : isoformsFrom + i - n);
+        }
+    }
+
+    /**
+     * Growable list of (key position, element id, resource id) matches found by resolve
+     */
+    public static class Matches {
+        private int size = 0;
+        private int[] keys = new int[64];
+        private int[] elements = new int[64];
+        private int[] resources = new int[64];
+
+        void add(int key, int element, int resource) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                elements = Arrays.copyOf(elements, size * 2);
+                resources = Arrays.copyOf(resources, size * 2);
+            }
+            keys[size] = key;
+            elements[size] = element;
+            resources[size++] = resource;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getKey(int i) {
+            return keys[i];
+        }
+
+        public int getElementId(int i) {
+            return elements[i];
+        }
+
+        public int getResourceId(int i) {
+            return resources[i];
+        }
     }
 }
@@ -1,8 +1,10 @@
 package org.reactome.server.analysis.core.model;
 
 import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
-import org.reactome.server.analysis.core.util.MapSet;
+import org.reactome.server.analysis.core.util.LongMapSet;
+import org.reactome.server.analysis.core.util.LongObjectMap;
 
+import java.util.Collection;
 import java.util.Set;
 
 /**
@@ -15,19 +17,24 @@ public class InteractorNode {
 
     private String accession;
 
-    private MapSet<Long, MainIdentifier> interactsWith;
+    private LongMapSet<MainIdentifier> interactsWith;
 
     //We DO NOT use PathwayNode here because at some point cloning the hierarchies
     //structure will be needed and keeping this separate will help to maintain the
     //links between both structures easy through the pathway location map
-    private MapSet<Long, AnalysisReaction> pathwayReactions = null;
+    private LongMapSet<AnalysisReaction> pathwayReactions = null;
+
+    //Dense ids of the accession (+ 1, so 0 means not assigned even if Kryo skips the field initialisers when
+    //loading) and of the reactions per pathway (assigned by DenseIds, not stored)
+    private transient int identifierId;
+    private transient LongObjectMap<int[]> reactionIds = null;
 
     public InteractorNode(String accession) {
-        this.interactsWith = new MapSet<>();
+        this.interactsWith = new LongMapSet<>();
         this.accession = accession;
     }
 
-    public void addInteractsWith(Long pathway, MainIdentifier interactsWith) {
+    public void addInteractsWith(long pathway, MainIdentifier interactsWith) {
         this.interactsWith.add(pathway, interactsWith);
     }
 
@@ -35,19 +42,42 @@ public class InteractorNode {
         return accession;
     }
 
-    public Set<MainIdentifier> getInteractsWith(Long pathway) {
+    public Set<MainIdentifier> getInteractsWith(long pathway) {
         return interactsWith.getElements(pathway);
     }
 
-    public MapSet<Long, AnalysisReaction> getPathwayReactions() {
+    public LongMapSet<AnalysisReaction> getPathwayReactions() {
         return pathwayReactions;
     }
 
-    public void addPathwayReactions(MapSet<Long, AnalysisReaction> pathwayReactions) {
+    /**
+     * @return the dense id of the accession (see DenseIds)
+     */
+    public int getIdentifierId() {
+        if (this.identifierId == 0) throw new IllegalStateException("The interactor " + this.accession + " has not been indexed (see DenseIds)");
+        return this.identifierId - 1;
+    }
+
+    /**
+     * @return the dense ids of the reactions of the pathway (see DenseIds)
+     */
+    public int[] getReactionIds(long pathwayId) {
+        if (this.pathwayReactions == null) return DenseIds.NO_IDS;
+        if (this.reactionIds == null) throw new IllegalStateException("The reactions of the interactor " + this.accession + " have not been indexed (see DenseIds)");
+        int[] rtn = this.reactionIds.get(pathwayId);
+        return rtn != null ? rtn : DenseIds.NO_IDS;
+    }
+
+    void setDenseIds(int identifierId, LongObjectMap<int[]> reactionIds) {
+        this.identifierId = identifierId + 1;
+        this.reactionIds = reactionIds;
+    }
+
+    public void addPathwayReactions(long pathwayId, Collection<AnalysisReaction> reactions) {
         if (this.pathwayReactions == null) {
-            this.pathwayReactions = new MapSet<>();
+            this.pathwayReactions = new LongMapSet<>();
         }
-        this.pathwayReactions.addAll(pathwayReactions);
+        this.pathwayReactions.add(pathwayId, reactions);
     }
 
     @Override
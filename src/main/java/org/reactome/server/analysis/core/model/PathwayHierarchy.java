@@ -25,7 +25,11 @@ public class PathwayHierarchy implements Serializable {
     }
 
     public PathwayNode addTopLevelPathway(TopLevelPathway tlp){
-        PathwayRoot node = new PathwayRoot(this, tlp.getStId(), tlp.getDbId(), tlp.getDisplayName(), tlp.getHasDiagram());
+        return this.addTopLevelPathway(tlp.getStId(), tlp.getDbId(), tlp.getDisplayName(), tlp.getHasDiagram());
+    }
+
+    public PathwayNode addTopLevelPathway(String stId, Long pathwayId, String name, boolean hasDiagram){
+        PathwayRoot node = new PathwayRoot(this, stId, pathwayId, name, hasDiagram);
         this.children.add(node);
         return node;
     }
@@ -42,14 +46,6 @@ public class PathwayHierarchy implements Serializable {
         return species;
     }
 
-    protected Set<PathwayNode> getHitPathways(){
-        Set<PathwayNode> rtn = new HashSet<>();
-        for (PathwayNode node : this.children) {
-            rtn.addAll(node.getHitNodes());
-        }
-        return rtn;
-    }
-
     public void setCountersAndCleanUp(){
         this.data.setCounters(getData());
         for (PathwayRoot node : children) {
@@ -57,13 +53,13 @@ public class PathwayHierarchy implements Serializable {
         }
     }
 
-    public void process(Identifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
-        this.data.addEntity(identifier, mainIdentifier);
+    public void process(Identifier identifier, MainIdentifier mainIdentifier, int id, Set<AnalysisReaction> reactions){
+        this.data.addEntity(identifier, mainIdentifier, id);
         this.data.addReactions(mainIdentifier.getResource(), reactions);
     }
 
-    public void processInteractor(InteractorIdentifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
-        this.data.addInteractors(mainIdentifier, identifier);
+    public void processInteractor(InteractorIdentifier identifier, int id, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
+        this.data.addInteractors(mainIdentifier, identifier, id);
         this.data.addReactions(mainIdentifier.getResource(), reactions);
     }
 }
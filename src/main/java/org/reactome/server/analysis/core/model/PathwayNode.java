@@ -3,12 +3,10 @@ package org.reactome.server.analysis.core.model;
 import org.reactome.server.analysis.core.model.identifier.Identifier;
 import org.reactome.server.analysis.core.model.identifier.InteractorIdentifier;
 import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
-import org.reactome.server.analysis.core.model.resource.MainResource;
 import org.reactome.server.graph.domain.model.Pathway;
 
 import java.io.Serializable;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -26,6 +24,9 @@ public class PathwayNode implements Serializable, Comparable<PathwayNode> {
 
     private PathwayNodeData data;
 
+    //Position of the node in the compiled hierarchies and the analysis result overlays (assigned at build time)
+    private int index = -1;
+
     public PathwayNode(String stId, Long pathwayId, String name, boolean hasDiagram) {
         this(null, stId, pathwayId, name, hasDiagram);
     }
@@ -41,7 +42,11 @@ public class PathwayNode implements Serializable, Comparable<PathwayNode> {
     }
 
     public PathwayNode addChild(Pathway p){
-        PathwayNode node = new PathwayNode(this, p.getStId(), p.getDbId(), p.getDisplayName(), p.getHasDiagram());
+        return this.addChild(p.getStId(), p.getDbId(), p.getDisplayName(), p.getHasDiagram());
+    }
+
+    public PathwayNode addChild(String stId, Long pathwayId, String name, boolean hasDiagram){
+        PathwayNode node = new PathwayNode(this, stId, pathwayId, name, hasDiagram);
         this.children.add(node);
         return node;
     }
@@ -64,17 +69,6 @@ public class PathwayNode implements Serializable, Comparable<PathwayNode> {
         return null;
     }
 
-    protected Set<PathwayNode> getHitNodes(){
-        Set<PathwayNode> rtn = new HashSet<>();
-        if(this.data.hasResult()){
-            rtn.add(this);
-            for (PathwayNode node : children) {
-                rtn.addAll(node.getHitNodes());
-            }
-        }
-        return rtn;
-    }
-
     public boolean isLowerLevelPathway() {
         return isLowerLevelPathway;
     }
@@ -83,6 +77,10 @@ public class PathwayNode implements Serializable, Comparable<PathwayNode> {
         return pathwayId;
     }
 
+    public int getIndex() {
+        return index;
+    }
+
     public PathwayNode getParent() {
         return parent;
     }
@@ -104,6 +102,10 @@ public class PathwayNode implements Serializable, Comparable<PathwayNode> {
         return stId;
     }
 
+    void setIndex(int index) {
+        this.index = index;
+    }
+
     public void setLowerLevelPathway(boolean isLowerLevelPathway) {
         this.isLowerLevelPathway = isLowerLevelPathway;
     }
@@ -115,31 +117,24 @@ public class PathwayNode implements Serializable, Comparable<PathwayNode> {
         }
     }
 
-    public void setResultStatistics(Map<MainResource, Integer> sampleSizePerResource, Integer notFound, boolean includeInteractors){
-        for (PathwayNode child : this.children) {
-            child.setResultStatistics(sampleSizePerResource, notFound, includeInteractors);
-        }
-        this.data.setResultStatistics(sampleSizePerResource, notFound, includeInteractors);
-    }
-
-    public void process(MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
-        this.process(mainIdentifier, mainIdentifier, reactions);
+    public void process(MainIdentifier mainIdentifier, int id, Set<AnalysisReaction> reactions){
+        this.process(mainIdentifier, mainIdentifier, id, reactions);
     }
 
-    public void process(Identifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
-        this.data.addEntity(identifier, mainIdentifier);
+    public void process(Identifier identifier, MainIdentifier mainIdentifier, int id, Set<AnalysisReaction> reactions){
+        this.data.addEntity(identifier, mainIdentifier, id);
         this.data.addReactions(mainIdentifier.getResource(), reactions);
         if(this.parent!=null){
-            this.parent.process(identifier, mainIdentifier, reactions);
+            this.parent.process(identifier, mainIdentifier, id, reactions);
         }
     }
 
-    public void processInteractor(InteractorIdentifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
+    public void processInteractor(InteractorIdentifier identifier, int id, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
         if(reactions!=null && !reactions.isEmpty()) {
-            data.addInteractors(mainIdentifier, identifier);
+            data.addInteractors(mainIdentifier, identifier, id);
             data.addReactions(mainIdentifier.getResource(), reactions);
             if (parent != null) {
-                parent.processInteractor(identifier, mainIdentifier, reactions);
+                parent.processInteractor(identifier, id, mainIdentifier, reactions);
             }
         }
     }
@@ -147,14 +142,6 @@ public class PathwayNode implements Serializable, Comparable<PathwayNode> {
     @SuppressWarnings("NullableProblems")
     @Override
     public int compareTo(PathwayNode o) {
-        int rtn = this.data.getEntitiesPValue().compareTo(o.data.getEntitiesPValue());
-        if(rtn==0){
-            Double oScore = o.data.getScore(); Double thisScore = this.data.getScore();
-            rtn = oScore.compareTo(thisScore);
-            if(rtn==0){
-                rtn = o.data.getEntitiesFound().compareTo(this.data.getEntitiesFound());
-            }
-        }
-        return rtn;
+        return this.data.compareTo(o.data);
     }
 }
@@ -4,8 +4,9 @@ import org.reactome.server.analysis.core.model.identifier.Identifier;
 import org.reactome.server.analysis.core.model.identifier.InteractorIdentifier;
 import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
 import org.reactome.server.analysis.core.model.resource.MainResource;
+import org.reactome.server.analysis.core.util.BinomialPValue;
 import org.reactome.server.analysis.core.util.MapSet;
-import org.reactome.server.analysis.core.util.MathUtilities;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.util.*;
 
@@ -14,10 +15,14 @@ import java.util.*;
  * this class: (1) the mapping between identifiers provided by the user and main identifiers used
  * for the result, (2) The set of reactions identifiers found for each main resource and (3) the
  * result counters -and statistics- for each main resource and for the combination of all of them
+ * <p>
+ * While the elements are being added (build time or analysis) the found main identifiers, interactors and
+ * reactions are kept in bitsets of dense ids (see DenseIds). Once the counters are set, the bitsets are
+ * discarded and the counters are the ones used to answer the "found" methods
  *
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
  */
-public class PathwayNodeData {
+public class PathwayNodeData implements Comparable<PathwayNodeData> {
     //Please note that counter is used for each main identifier and for the combinedResult
     class Counter {
         Integer totalEntities = 0; //Pre-calculated in setCounters method
@@ -32,14 +37,110 @@ public class PathwayNodeData {
 
         //Aggregation
         Integer totalFound = 0;
+        Integer foundEntitiesAndInteractors = 0;
 
         //TP-Based analysis
         Integer totalReactions = 0; //Pre-calculated in setCounters method
         Integer foundReactions = 0;
         Double reactionsRatio;
+
+        Counter() {
+        }
+
+        //Keeps the pre-calculated values (build time) of the given counter
+        Counter(Counter counter) {
+            this.totalEntities = counter.totalEntities;
+            this.entitiesRatio = counter.entitiesRatio;
+            this.totalInteractors = counter.totalInteractors;
+            this.interactorsRatio = counter.interactorsRatio;
+            this.totalFound = counter.totalFound;
+            this.totalReactions = counter.totalReactions;
+            this.reactionsRatio = counter.reactionsRatio;
+        }
+    }
+
+    //Keeps track of the found elements using their dense ids
+    private static class Found {
+        RoaringBitmap entities = new RoaringBitmap();
+        RoaringBitmap interactors = new RoaringBitmap();
+        RoaringBitmap total = new RoaringBitmap(); //Union of entities and interactors
+        RoaringBitmap reactions = new RoaringBitmap();
+    }
+
+    //Accumulates the expression values of the distinct identifiers column by column (missing values, NaN, are skipped)
+    private static class ExpressionAccumulator {
+        private final Set<AnalysisIdentifier> seen = new HashSet<>();
+        private double[] sum = new double[0];
+        private int[] count = new int[0];
+
+        void add(AnalysisIdentifier identifier) {
+            if (!seen.add(identifier)) return;
+            int size = identifier.getExpSize();
+            if (size > sum.length) {
+                sum = Arrays.copyOf(sum, size);
+                count = Arrays.copyOf(count, size);
+            }
+            for (int i = 0; i < size; i++) {
+                double ev = identifier.getExp(i);
+                if (!Double.isNaN(ev)) {
+                    sum[i] += ev;
+                    count[i]++;
+                }
+            }
+        }
+
+        //The average per column (null for the columns without values)
+        List<Double> getAverage() {
+            List<Double> avg = new ArrayList<>(sum.length);
+            for (int i = 0; i < sum.length; i++) {
+                avg.add(count[i] > 0 ? sum[i] / count[i] : null);
+            }
+            return Collections.unmodifiableList(avg);
+        }
     }
 
-    private MapSet<MainResource, String> foundTotal = new MapSet<>();
+    //Expression values averages for the combined result and each main resource, calculated in one go
+    private static class ExpressionValuesAvg {
+        final List<Double> combined;
+        final Map<MainResource, List<Double>> resources = new HashMap<>();
+
+        ExpressionValuesAvg(MapSet<Identifier, MainIdentifier> entities, MapSet<MainIdentifier, InteractorIdentifier> interactors) {
+            ExpressionAccumulator combined = new ExpressionAccumulator();
+            Map<MainResource, ExpressionAccumulator> accumulators = new HashMap<>();
+            for (Identifier identifier : entities.keySet()) {
+                for (MainIdentifier mainIdentifier : entities.getElements(identifier)) {
+                    combined.add(mainIdentifier.getValue());
+                    getOrCreate(accumulators, mainIdentifier.getResource()).add(mainIdentifier.getValue());
+                }
+            }
+            for (MainIdentifier mainIdentifier : interactors.keySet()) {
+                ExpressionAccumulator accumulator = getOrCreate(accumulators, mainIdentifier.getResource());
+                for (InteractorIdentifier identifier : interactors.getElements(mainIdentifier)) {
+                    combined.add(identifier);
+                    accumulator.add(identifier);
+                }
+            }
+            this.combined = combined.getAverage();
+            for (MainResource resource : accumulators.keySet()) {
+                this.resources.put(resource, accumulators.get(resource).getAverage());
+            }
+        }
+
+        private static ExpressionAccumulator getOrCreate(Map<MainResource, ExpressionAccumulator> accumulators, MainResource resource) {
+            ExpressionAccumulator rtn = accumulators.get(resource);
+            if (rtn == null) {
+                accumulators.put(resource, rtn = new ExpressionAccumulator());
+            }
+            return rtn;
+        }
+    }
+
+    //Only present while the elements are being added (NOT stored)
+    private transient Map<MainResource, Found> found;
+    private transient Found combinedFound;
+
+    //Calculated by demand once the elements have been added (NOT stored)
+    private transient volatile ExpressionValuesAvg expressionValuesAvg;
 
     /*
     The following structure plays two different roles
@@ -48,11 +149,7 @@ public class PathwayNodeData {
     */
     private MapSet<Identifier, MainIdentifier> entities = new MapSet<>();
 
-    /*
-    The following structure plays two different roles
-    1) While building the data structure it will keep track of the contained reactions in the pathway
-    2) During the analysis it will keep track of the seen reactions
-    */
+    //The found reactions (only populated with the analysis result, see setResultStatistics)
     private MapSet<MainResource, AnalysisReaction> reactions = new MapSet<>();
 
     /*
@@ -69,18 +166,65 @@ public class PathwayNodeData {
     public PathwayNodeData() {
     }
 
-    public void addEntity(Identifier identifier, MainIdentifier mainIdentifier) {
-        this.entities.add(identifier, mainIdentifier);
-        this.foundTotal.add(mainIdentifier.getResource(), mainIdentifier.getValue().getId());
+    /**
+     * Creates an empty analysis result for a pathway keeping the pre-calculated counters of the
+     * given data (the one contained in the shared pathway hierarchy)
+     *
+     * @param data the shared pathway node data with the pre-calculated counters
+     */
+    public PathwayNodeData(PathwayNodeData data) {
+        for (MainResource mainResource : data.entitiesResult.keySet()) {
+            this.entitiesResult.put(mainResource, new Counter(data.entitiesResult.get(mainResource)));
+        }
+        this.combinedResult = new Counter(data.combinedResult);
     }
 
-    public void addInteractors(MainIdentifier mainIdentifier, InteractorIdentifier identifier) {
+    /**
+     * @param id the dense id of the main identifier
+     */
+    public void addEntity(Identifier identifier, MainIdentifier mainIdentifier, int id) {
+        this.entities.add(identifier, mainIdentifier);
+        this.expressionValuesAvg = null;
+        Found found = getOrCreateFound(mainIdentifier.getResource());
+        found.entities.add(id);
+        found.total.add(id);
+        this.combinedFound.entities.add(id);
+        this.combinedFound.total.add(id);
+    }
+
+    /**
+     * @param id the dense id of the interactor (the one it maps to)
+     */
+    public void addInteractors(MainIdentifier mainIdentifier, InteractorIdentifier identifier, int id) {
         this.interactors.add(mainIdentifier, identifier);
-        this.foundTotal.add(mainIdentifier.getResource(), identifier.getMapsTo());
+        this.expressionValuesAvg = null;
+        Found found = getOrCreateFound(mainIdentifier.getResource());
+        found.interactors.add(id);
+        found.total.add(id);
+        this.combinedFound.interactors.add(id);
+        this.combinedFound.total.add(id);
     }
 
     public void addReactions(MainResource mainResource, Set<AnalysisReaction> reactions) {
-        this.reactions.add(mainResource, reactions);
+        Found found = getOrCreateFound(mainResource);
+        for (AnalysisReaction reaction : reactions) {
+            int index = reaction.getIndex();
+            //A negative index would be stored in the bitmaps as a huge unsigned one
+            if (index < 0) throw new IllegalStateException("Reaction " + reaction + " has not been indexed (see DenseIds)");
+            found.reactions.add(index);
+            this.combinedFound.reactions.add(index);
+        }
+    }
+
+    /**
+     * @param reactions the dense ids of the reactions (see DenseIds)
+     */
+    public void addReactions(MainResource mainResource, int[] reactions) {
+        Found found = getOrCreateFound(mainResource);
+        for (int reaction : reactions) {
+            found.reactions.add(reaction);
+            this.combinedFound.reactions.add(reaction);
+        }
     }
 
 
@@ -97,16 +241,21 @@ public class PathwayNodeData {
     }
 
     public Integer getEntitiesAndInteractorsFound() {
+        if (found == null) return combinedResult.foundEntitiesAndInteractors;
         int total = 0;
-        for (MainResource resource : foundTotal.keySet()) {
-            total += foundTotal.getElements(resource).size();
+        for (Found aux : found.values()) {
+            total += aux.total.getCardinality();
         }
         return total;
     }
 
     public Integer getEntitiesAndInteractorsFound(MainResource resource) {
-        Set<String> found = this.foundTotal.getElements(resource);
-        return found == null ? 0 : found.size();
+        if (found == null) {
+            Counter counter = this.entitiesResult.get(resource);
+            return counter == null ? 0 : counter.foundEntitiesAndInteractors;
+        }
+        Found aux = found.get(resource);
+        return aux == null ? 0 : aux.total.getCardinality();
     }
 
     // ENTITIES Result
@@ -133,101 +282,23 @@ public class PathwayNodeData {
         return rtn;
     }
 
-    private List<List<Double>> groupEntitiesExpressionValues(Collection<AnalysisIdentifier> identifiers, Collection<InteractorIdentifier> interactors) {
-        List<List<Double>> evss = new LinkedList<>();
-        Collection<AnalysisIdentifier> aggregation = new HashSet<>();
-        aggregation.addAll(identifiers);
-        aggregation.addAll(interactors);
-        for (AnalysisIdentifier identifier : aggregation) {
-            int i = 0;
-            for (Double ev : identifier.getExp()) {
-                List<Double> evs;
-                if (evss.size() > i) {
-                    evs = evss.get(i);
-                } else {
-                    evs = new LinkedList<>();
-                    evss.add(i, evs);
-                }
-                evs.add(ev);
-                i++;
-            }
-        }
-        return evss;
-    }
-
-    private List<Double> calculateAverage(List<List<Double>> expressionValues) {
-        List<Double> avg = new LinkedList<>();
-        int i = 0;
-        for (List<Double> evs : expressionValues) {
-            Double sum = 0.0;
-            Double total = 0.0;
-            for (Double ev : evs) {
-                if (ev != null) {
-                    sum += ev;
-                    total++;
-                }
-            }
-            if (total > 0.0) {
-                avg.add(i++, sum / total);
-            } else {
-                avg.add(i++, null);
-            }
-        }
-        return avg;
-    }
-
-    private List<AnalysisIdentifier> getEntitiesDuplication() {
-        List<AnalysisIdentifier> rtn = new LinkedList<>();
-        for (Identifier identifier : entities.keySet()) {
-            for (MainIdentifier mainIdentifier : entities.getElements(identifier)) {
-                rtn.add(mainIdentifier.getValue());
-            }
-        }
-        return rtn;
-    }
-
-    private List<AnalysisIdentifier> getEntitiesDuplication(MainResource resource) {
-        List<AnalysisIdentifier> rtn = new LinkedList<>();
-        for (Identifier identifier : entities.keySet()) {
-            for (MainIdentifier mainIdentifier : entities.getElements(identifier)) {
-                if (mainIdentifier.getResource().equals(resource)) {
-                    rtn.add(mainIdentifier.getValue());
-                }
-            }
-        }
-        return rtn;
+    public List<Double> getExpressionValuesAvg() {
+        return getExpressionValuesAverages().combined;
     }
 
-    private List<InteractorIdentifier> getInteractorsDuplication() {
-        List<InteractorIdentifier> rtn = new LinkedList<>();
-        for (MainIdentifier mainIdentifier : interactors.keySet()) {
-            for (InteractorIdentifier identifier : interactors.getElements(mainIdentifier)) {
-                rtn.add(identifier);
-            }
-        }
-        return rtn;
+    public List<Double> getExpressionValuesAvg(MainResource resource) {
+        List<Double> rtn = getExpressionValuesAverages().resources.get(resource);
+        return rtn == null ? Collections.<Double>emptyList() : rtn;
     }
 
-    private List<InteractorIdentifier> getInteractorsDuplication(MainResource resource) {
-        List<InteractorIdentifier> rtn = new LinkedList<>();
-        for (MainIdentifier mainIdentifier : interactors.keySet()) {
-            if (mainIdentifier.getResource().equals(resource)) {
-                for (InteractorIdentifier identifier : interactors.getElements(mainIdentifier)) {
-                    rtn.add(identifier);
-                }
-            }
+    private ExpressionValuesAvg getExpressionValuesAverages() {
+        ExpressionValuesAvg rtn = this.expressionValuesAvg;
+        if (rtn == null) {
+            rtn = this.expressionValuesAvg = new ExpressionValuesAvg(entities, interactors);
         }
         return rtn;
     }
 
-    public List<Double> getExpressionValuesAvg() {
-        return calculateAverage(groupEntitiesExpressionValues(getEntitiesDuplication(), getInteractorsDuplication()));
-    }
-
-    public List<Double> getExpressionValuesAvg(MainResource resource) {
-        return calculateAverage(groupEntitiesExpressionValues(getEntitiesDuplication(resource), getInteractorsDuplication(resource)));
-    }
-
     public Integer getEntitiesCount() {
         return this.combinedResult.totalEntities;
     }
@@ -241,11 +312,17 @@ public class PathwayNodeData {
     }
 
     public Integer getEntitiesFound() {
-        return getFoundEntities().size();
+        if (found == null) return combinedResult.foundEntities;
+        return combinedFound.entities.getCardinality();
     }
 
     public Integer getEntitiesFound(MainResource resource) {
-        return getFoundEntities(resource).size();
+        if (found == null) {
+            Counter counter = this.entitiesResult.get(resource);
+            return counter == null ? 0 : counter.foundEntities;
+        }
+        Found aux = found.get(resource);
+        return aux == null ? 0 : aux.entities.getCardinality();
     }
 
     public Double getEntitiesPValue() {
@@ -335,19 +412,17 @@ public class PathwayNodeData {
     }
 
     public Integer getInteractorsFound(){
-        Set<String> mapsTo = new HashSet<>();
-        for (InteractorIdentifier interactor : getFoundInteractors()) {
-            mapsTo.add(interactor.getMapsTo());
-        }
-        return mapsTo.size();
+        if (found == null) return combinedResult.foundInteractors;
+        return combinedFound.interactors.getCardinality();
     }
 
     public Integer getInteractorsFound(MainResource resource){
-        Set<String> mapsTo = new HashSet<>();
-        for (InteractorIdentifier interactor : getFoundInteractors(resource)) {
-            mapsTo.add(interactor.getMapsTo());
+        if (found == null) {
+            Counter counter = this.entitiesResult.get(resource);
+            return counter == null ? 0 : counter.foundInteractors;
         }
-        return mapsTo.size();
+        Found aux = found.get(resource);
+        return aux == null ? 0 : aux.interactors.getCardinality();
     }
 
 
@@ -390,11 +465,17 @@ public class PathwayNodeData {
     }
 
     public Integer getReactionsFound(){
-        return this.getReactions().size();
+        if (found == null) return combinedResult.foundReactions;
+        return combinedFound.reactions.getCardinality();
     }
 
     public Integer getReactionsFound(MainResource resource){
-        return this.getReactions(resource).size();
+        if (found == null) {
+            Counter counter = this.entitiesResult.get(resource);
+            return counter == null ? 0 : counter.foundReactions;
+        }
+        Found aux = found.get(resource);
+        return aux == null ? 0 : aux.reactions.getCardinality();
     }
 
     public Double getReactionsRatio(){
@@ -414,7 +495,8 @@ public class PathwayNodeData {
     }
 
     public boolean hasResult(){
-        return !foundTotal.isEmpty();
+        if (found == null) return combinedResult.foundEntitiesAndInteractors > 0;
+        return !combinedFound.total.isEmpty();
 //        return !entities.isEmpty() || !interactors.isEmpty();
     }
 
@@ -428,16 +510,15 @@ public class PathwayNodeData {
 
     //This is only called in build time
     protected void setCounters(PathwayNodeData speciesData){
-        Set<AnalysisReaction> totalReactions = new HashSet<>();
-        for (MainResource mainResource : reactions.keySet()) {
-            Counter counter = getOrCreateCounter(mainResource);
-            counter.totalReactions = reactions.getElements(mainResource).size();
-            totalReactions.addAll(reactions.getElements(mainResource));
-            counter.reactionsRatio = counter.totalReactions/speciesData.getReactionsCount(mainResource).doubleValue();
-        }
-        combinedResult.totalReactions += totalReactions.size(); totalReactions.clear();
+        if (found != null) {
+            for (MainResource mainResource : found.keySet()) {
+                Counter counter = getOrCreateCounter(mainResource);
+                counter.totalReactions = found.get(mainResource).reactions.getCardinality();
+                counter.reactionsRatio = counter.totalReactions/speciesData.getReactionsCount(mainResource).doubleValue();
+            }
+            combinedResult.totalReactions += combinedFound.reactions.getCardinality();
+        }
         combinedResult.reactionsRatio =  combinedResult.totalReactions /speciesData.getReactionsCount().doubleValue();
-        reactions = new MapSet<>();
 
         MapSet<MainResource, AnalysisIdentifier> aux = new MapSet<>();
         for (Identifier identifier : entities.keySet()) {
@@ -478,35 +559,46 @@ public class PathwayNodeData {
             combinedResult.totalInteractors += counter.totalInteractors;
         }
         combinedResult.interactorsRatio = this.combinedResult.totalFound / speciesData.getEntitiesAndInteractorsCount().doubleValue();
-        foundTotal = new MapSet<>();
-    }
-
-    public void setResultStatistics(Map<MainResource, Integer> sampleSizePerResource, Integer notFound, boolean includeInteractors){
+        found = null;
+        combinedFound = null;
+    }
+
+    /**
+     * Calculates the statistics for the analysis result and keeps the found counters and reactions so
+     * the result does not depend on the dense ids from this moment on
+     *
+     * @param ids   the dense ids used while adding the elements
+     * @param memo  the p-values already calculated in the analysis
+     */
+    public void setResultStatistics(Map<MainResource, Integer> sampleSizePerResource, Integer notFound, boolean includeInteractors, DenseIds ids, BinomialPValue.Memo memo){
         for (MainResource mainResource : this.getResources()) {
             Counter counter = this.entitiesResult.get(mainResource);
             counter.foundEntities = getEntitiesFound(mainResource);
             counter.foundReactions = getReactionsFound(mainResource);
 
+            counter.foundEntitiesAndInteractors = getEntitiesAndInteractorsFound(mainResource);
+
             int found;
             if (includeInteractors) {
                 counter.foundInteractors = getInteractorsFound(mainResource);
-                found = getEntitiesAndInteractorsFound(mainResource); //Union of interactors and entities --> IMPORTANT
+                found = counter.foundEntitiesAndInteractors; //Union of interactors and entities --> IMPORTANT
             } else {
                 found = counter.foundEntities;
             }
             if (found > 0) {
                 Integer sampleSize = sampleSizePerResource.get(mainResource) + notFound;
                 double ratio = includeInteractors ? counter.interactorsRatio : counter.entitiesRatio;
-                counter.entitiesPValue = MathUtilities.calculatePValue(ratio, sampleSize, found);
+                counter.entitiesPValue = memo.calculate(ratio, sampleSize, found);
             }
         }
 
         Counter counter = combinedResult;
         counter.foundEntities = getEntitiesFound();
+        counter.foundEntitiesAndInteractors = getEntitiesAndInteractorsFound();
         int found;
         if(includeInteractors) {
             counter.foundInteractors = getInteractorsFound();
-            found = getEntitiesAndInteractorsFound();
+            found = counter.foundEntitiesAndInteractors;
         } else {
             found = counter.foundEntities;
         }
@@ -516,9 +608,21 @@ public class PathwayNodeData {
                 sampleSize += sampleSizePerResource.get(mainResource);
             }
             double ratio = includeInteractors ? counter.interactorsRatio : counter.entitiesRatio;
-            counter.entitiesPValue = MathUtilities.calculatePValue(ratio, sampleSize, counter.foundEntities);
+            counter.entitiesPValue = memo.calculate(ratio, sampleSize, counter.foundEntities);
         }
         counter.foundReactions = getReactionsFound();
+
+        if (this.found != null) {
+            for (MainResource mainResource : this.found.keySet()) {
+                Set<AnalysisReaction> reactions = new HashSet<>();
+                for (int id : this.found.get(mainResource).reactions) {
+                    reactions.add(ids.getReaction(id));
+                }
+                this.reactions.add(mainResource, reactions);
+            }
+            this.found = null;
+            this.combinedFound = null;
+        }
     }
 
     protected Double getScore(){
@@ -535,6 +639,19 @@ public class PathwayNodeData {
         return (0.75 * (reactionsPercentage)) + (0.25 * (entitiesPercentage));
     }
 
+    private Found getOrCreateFound(MainResource mainResource){
+        if (this.found == null) {
+            this.found = new HashMap<>();
+            this.combinedFound = new Found();
+        }
+        Found rtn = this.found.get(mainResource);
+        if (rtn == null) {
+            rtn = new Found();
+            this.found.put(mainResource, rtn);
+        }
+        return rtn;
+    }
+
     private Counter getOrCreateCounter(MainResource mainResource){
         Counter counter = this.entitiesResult.get(mainResource);
         if (counter == null) {
@@ -543,4 +660,18 @@ public class PathwayNodeData {
         }
         return counter;
     }
-}
\ No newline at end of file
+
+    @SuppressWarnings("NullableProblems")
+    @Override
+    public int compareTo(PathwayNodeData o) {
+        int rtn = this.getEntitiesPValue().compareTo(o.getEntitiesPValue());
+        if(rtn==0){
+            Double oScore = o.getScore(); Double thisScore = this.getScore();
+            rtn = oScore.compareTo(thisScore);
+            if(rtn==0){
+                rtn = o.getEntitiesFound().compareTo(this.getEntitiesFound());
+            }
+        }
+        return rtn;
+    }
+}
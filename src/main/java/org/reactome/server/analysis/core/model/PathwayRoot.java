@@ -27,14 +27,14 @@ public class PathwayRoot extends PathwayNode {
     }
 
     @Override
-    public void process(Identifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions){
-        super.process(identifier, mainIdentifier, reactions);
-        this.pathwayHierarchy.process(identifier, mainIdentifier, reactions);
+    public void process(Identifier identifier, MainIdentifier mainIdentifier, int id, Set<AnalysisReaction> reactions){
+        super.process(identifier, mainIdentifier, id, reactions);
+        this.pathwayHierarchy.process(identifier, mainIdentifier, id, reactions);
     }
 
     @Override
-    public void processInteractor(InteractorIdentifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions) {
-        super.processInteractor(identifier, mainIdentifier, reactions);
-        this.pathwayHierarchy.processInteractor(identifier, mainIdentifier, reactions);
+    public void processInteractor(InteractorIdentifier identifier, int id, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions) {
+        super.processInteractor(identifier, id, mainIdentifier, reactions);
+        this.pathwayHierarchy.processInteractor(identifier, id, mainIdentifier, reactions);
     }
 }
@@ -2,8 +2,7 @@ package org.reactome.server.analysis.core.model;
 
 import org.reactome.server.graph.domain.model.Species;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
@@ -14,13 +13,15 @@ public abstract class SpeciesNodeFactory {
     public static String HUMAN_TAX_ID = "9606";
     public static String HUMAN_STR = "Homo sapiens";
 
-    private static Map<Long, SpeciesNode> speciesMap = new HashMap<>();
+    //Species are imported in parallel
+    private static ConcurrentHashMap<Long, SpeciesNode> speciesMap = new ConcurrentHashMap<>();
 
     public static SpeciesNode getSpeciesNode(Long speciesID, String taxID, String name) {
         SpeciesNode speciesNode = speciesMap.get(speciesID);
         if (speciesNode == null) {
             speciesNode = new SpeciesNode(speciesID, taxID, name);
-            speciesMap.put(speciesID, speciesNode);
+            SpeciesNode previous = speciesMap.putIfAbsent(speciesID, speciesNode);
+            if (previous != null) speciesNode = previous;
         }
         return speciesNode;
     }
@@ -30,7 +31,8 @@ public abstract class SpeciesNodeFactory {
         if (speciesNode == null) {
             try {
                 speciesNode = new SpeciesNode(s.getDbId(), s.getTaxId(), s.getDisplayName());
-                speciesMap.put(s.getDbId(), speciesNode);
+                SpeciesNode previous = speciesMap.putIfAbsent(s.getDbId(), speciesNode);
+                if (previous != null) speciesNode = previous;
             } catch (Exception e) {
                 e.printStackTrace();
             }
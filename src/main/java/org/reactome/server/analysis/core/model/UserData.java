@@ -10,6 +10,7 @@ import java.util.Set;
 public class UserData {
     List<String> columnNames;
     Set<AnalysisIdentifier> identifiers;
+    ExpressionMatrix expressionMatrix;
     String inputMD5;
     ExpressionBoundaries expressionBoundaries;
     List<String> warningMessages;
@@ -29,6 +30,18 @@ public class UserData {
         this.warningMessages = warningResponses;
     }
 
+    /**
+     * @param expressionMatrix the expression values of the identifiers (null if there are not expression values)
+     */
+    public UserData(List<String> columnNames, Set<AnalysisIdentifier> identifiers, ExpressionMatrix expressionMatrix, String inputMD5, List<String> warningResponses) {
+        this.columnNames = columnNames;
+        this.identifiers = identifiers;
+        this.expressionMatrix = expressionMatrix;
+        this.inputMD5 = inputMD5;
+        this.expressionBoundaries = new ExpressionBoundaries(expressionMatrix);
+        this.warningMessages = warningResponses;
+    }
+
     public String getSampleName(){
         return this.columnNames!=null && !this.columnNames.isEmpty() ?
                 this.columnNames.get(0) :
@@ -49,6 +62,10 @@ public class UserData {
         return expressionBoundaries;
     }
 
+    public ExpressionMatrix getExpressionMatrix() {
+        return expressionMatrix;
+    }
+
     public Set<AnalysisIdentifier> getIdentifiers() {
         return identifiers;
     }
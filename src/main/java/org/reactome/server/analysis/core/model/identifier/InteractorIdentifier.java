@@ -19,7 +19,7 @@ public class InteractorIdentifier extends AnalysisIdentifier {
         this.mapsTo = mapsTo;
     }
     public InteractorIdentifier(AnalysisIdentifier identifier) {
-        super(identifier.getId(), identifier.getExp());
+        super(identifier.getId(), identifier);
     }
 
     public String getMapsTo() {
@@ -2,6 +2,7 @@ package org.reactome.server.analysis.core.model.resource;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Antonio Fabregat <fabregat@ebi.ac.uk>
@@ -29,8 +30,8 @@ public abstract class ResourceFactory {
         equivalences.put("DOCK_BLASTER", "PROTEIN_DATA_BANK");
     }
 
-    //Cache containing the previously created resource for a given name
-    private static Map<String, Resource> resourceMap = new HashMap<String, Resource>();
+    //Cache containing the previously created resource for a given name (species are imported in parallel)
+    private static ConcurrentHashMap<String, Resource> resourceMap = new ConcurrentHashMap<>();
 
     public static Resource getResource(String name){
         name = name.toUpperCase().replaceAll("\\s", "_").trim();
@@ -52,7 +53,8 @@ public abstract class ResourceFactory {
             if(resource==null){
                 resource = new Resource(name);
             }
-            resourceMap.put(name, resource);
+            Resource previous = resourceMap.putIfAbsent(name, resource);
+            if(previous!=null) resource = previous;
         }
         return resource;
     }
@@ -2,19 +2,24 @@ package org.reactome.server.analysis.core.parser;
 
 
 import org.apache.commons.lang3.StringEscapeUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.reactome.server.analysis.core.model.AnalysisIdentifier;
+import org.reactome.server.analysis.core.model.ExpressionMatrix;
 import org.reactome.server.analysis.core.parser.exception.ParserException;
 import org.reactome.server.analysis.core.parser.response.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.regex.Pattern;
 
 /**
  * Parser for AnalysisData tool
+ * <p>
+ * The input is read once, line by line, from a Reader. Only the lines up to the second non blank one are
+ * kept (to decide whether it is a single line file and to analyse the header). The rest of the content is
+ * tokenized straight from a reused char buffer, so no String is created per line or per expression value.
  *
  * @author Guilherme Viteri <gviteri@ebi.ac.uk>
  */
@@ -30,19 +35,32 @@ public class InputFormat {
     private static final String DEFAULT_EXPRESSION_HEADER = "col";
 
     /** Pride is using colon, we decided to remove it from the parser **/
-    private static final String HEADER_SPLIT_REGEX = "[\\t,;]+";
+    private static final Pattern HEADER_SPLIT_REGEX = Pattern.compile("[\\t,;]+");
 
     /** Regex for parsing the content when we do not have the header, trying to build a default one **/
-    private static final String NO_HEADER_DEFAULT_REGEX = "[\\s,;]+";
+    private static final Pattern NO_HEADER_DEFAULT_REGEX = Pattern.compile("[\\s,;]+");
 
-    /** Regex used to split the content of a single line file **/
-    private static final String ONE_LINE_CONTENT_SPLIT_REGEX = "[\\s,;]+";
+    private static final Pattern HEADER_PREFIX_REGEX = Pattern.compile("^(#|//)");
 
-    /** Regex used to split the content of a multiple line file **/
-    private static final String MULTI_LINE_CONTENT_SPLIT_REGEX = "[\\s,;]+";
+    /** Size of the buffer used to read the input **/
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Numbers with up to this amount of digits fit in a long that is exactly represented as a double **/
+    private static final int MAX_FAST_DIGITS = 15;
+
+    /** Powers of ten that are exactly represented as doubles (see parseNumber) **/
+    private static final double[] POWERS_OF_TEN = new double[MAX_FAST_DIGITS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
 
     private List<String> headerColumnNames = new LinkedList<>();
     private Set<AnalysisIdentifier> analysisIdentifierSet = new LinkedHashSet<>();
+    private ExpressionMatrix expressionMatrix = null; //Only created when the content has expression columns
     private boolean hasHeader = false;
 
     /**
@@ -60,6 +78,15 @@ public class InputFormat {
      */
     private int startOnLine = 0;
 
+    /** One row of values (missing ones are NaN) that is copied to the matrix for every new identifier **/
+    private double[] values;
+
+    /**
+     * Empty lines are only reported when followed by a non empty one (trailing empty lines are
+     * ignored). This keeps the index of the first empty line still to be reported (-1 if none)
+     */
+    private int emptySince = -1;
+
     /**
      * This is the core method. Start point for calling other features.
      * It is split in header and data.
@@ -70,26 +97,52 @@ public class InputFormat {
      * @throws IOException, ParserException
      */
     public void parseData(String input) throws IOException, ParserException {
+        parseData(new StringReader(input));
+    }
+
+    /**
+     * Parses the input straight from the stream (decoded with the platform default charset)
+     *
+     * @param input the submitted data
+     * @throws IOException, ParserException
+     */
+    public void parseData(InputStream input) throws IOException, ParserException {
+        parseData(new InputStreamReader(input, Charset.defaultCharset()));
+    }
+
+    /**
+     * Parses the input in a single pass. Lines are split by "\n" or "\r\n" and the header and warning
+     * messages are the same as if the whole content was processed at once.
+     * <p>
+     * ParserException is thrown only when there are errors.
+     *
+     * @param input the submitted data (it is not closed)
+     * @throws IOException, ParserException
+     */
+    public void parseData(Reader input) throws IOException, ParserException {
         long start = System.currentTimeMillis();
 
-        String clean = input.trim();
-        if (clean.equalsIgnoreCase("")) {
+        LineReader lines = new LineReader(input);
+
+        // Keeps the lines until the second non blank one to know whether it is a one line file
+        List<String> firstLines = new ArrayList<>();
+        int nonBlankLines = 0;
+        while (nonBlankLines < 2 && lines.next()) {
+            if (!isBlank(lines.line, 0, lines.length)) nonBlankLines++;
+            firstLines.add(new String(lines.line, 0, lines.length));
+        }
+
+        if (nonBlankLines == 0) {
             // no data to be analysed
             errorResponses.add(Response.getMessage(Response.EMPTY_FILE));
+        } else if (nonBlankLines == 1) {
+            analyseOneLineFile(firstLines);
         } else {
-            // Split lines
-            String[] lines = input.split("\r?\n"); // Do not add + here. It will remove empty lines
-
-            // check and parser whether one line file is present.
-            boolean isOneLine = isOneLineFile(lines);
-            if (!isOneLine) {
-                // Prepare header
-                analyseHeaderColumns(lines);
-
-                // Prepare content
-                analyseContent(lines);
-            }
+            // Prepare header
+            analyseHeaderColumns(firstLines);
 
+            // Prepare content
+            analyseContent(firstLines, lines);
         }
 
         long end = System.currentTimeMillis();
@@ -104,42 +157,20 @@ public class InputFormat {
 
     /**
      * ---- FOR VERY SPECIFIC CASES, BUT VERY USEFUL FOR REACTOME ----
-     * There're cases where the user inputs a file with one single line to be analysed
-     * This method performs a quick view into the file and count the lines. It stops if file has more than one line.
+     * There're cases where the user inputs a file with one single line to be analysed.
      * p.s empty lines are always ignored
-     * To avoid many iteration to the same file, during counting lines the main attributes are being set and used in the
-     * analyse content method.
-     * This method ignores blank lines,spaces, tabs and so on.
      *
-     * @param input the file
-     * @return true if file has one line, false otherwise.
+     * @param lines all the lines in the file (only one of them is not blank)
      */
-    private boolean isOneLineFile(String[] input) {
-
-        int countNonEmptyLines = 0;
-        String validLine = "";
-
-        for (int i = 0; i < input.length; i++) {
-            // Cleaning the line in other to eliminate blank or spaces spread in the file
-            String cleanLine = input[i].trim();
-            if (StringUtils.isNotEmpty(cleanLine) || StringUtils.isNotBlank(cleanLine)) {
-                countNonEmptyLines++;
-
-                // Line without parsing - otherwise we can't eliminate blank space and tabs spread in the file.
-                validLine = input[i];
-
-                // We don't need to keep counting...
-                if (countNonEmptyLines > 1) {
-                    return false;
-                }
+    private void analyseOneLineFile(List<String> lines) {
+        hasHeader = false;
+        for (String line : lines) {
+            // Line without parsing - otherwise we can't eliminate blank space and tabs spread in the file.
+            if (!isBlank(line)) {
+                analyseOneLineFile(line);
+                return;
             }
         }
-
-        hasHeader = false;
-
-        analyseOneLineFile(validLine);
-
-        return true;
     }
 
     /**
@@ -152,30 +183,23 @@ public class InputFormat {
     private void analyseOneLineFile(String line) {
         long start = System.nanoTime();
 
-        /** Note also that using + instead of * avoids replacing empty strings and therefore might also speed up the process. **/
-        String regexp = ONE_LINE_CONTENT_SPLIT_REGEX;
-
-        Pattern p = Pattern.compile(regexp);
-
         // Line cannot start with # or //
         if (hasHeaderLine(line)) {
             errorResponses.add(Response.getMessage(Response.START_WITH_HASH));
             return;
         }
 
-        /** Note that using String.replaceAll() will compile the regular expression each time you call it. **/
-        line = p.matcher(line).replaceAll(" ");
-
-        /** StringTokenizer has more performance to offer than String.slit. **/
-        StringTokenizer st = new StringTokenizer(line); //space is default delimiter.
-
-        int tokens = st.countTokens();
-        if (tokens > 0) {
-            headerColumnNames.add(DEFAULT_IDENTIFIER_HEADER);
-            while (st.hasMoreTokens()) {
-                AnalysisIdentifier rtn = new AnalysisIdentifier(st.nextToken().trim());
-                analysisIdentifierSet.add(rtn);
+        char[] chars = line.toCharArray();
+        int i = 0;
+        while (i < chars.length) {
+            while (i < chars.length && isDelimiter(chars[i])) i++;
+            if (i == chars.length) break;
+            int from = i;
+            while (i < chars.length && !isDelimiter(chars[i])) i++;
+            if (headerColumnNames.isEmpty()) {
+                headerColumnNames.add(DEFAULT_IDENTIFIER_HEADER);
             }
+            analysisIdentifierSet.add(new AnalysisIdentifier(new String(chars, from, i - from).trim()));
         }
 
         long end = System.nanoTime();
@@ -186,9 +210,9 @@ public class InputFormat {
      * Analyse header based on the first line.
      * Headers must start with # or //
      *
-     * @param data is the file lines
+     * @param data the first lines of the file
      */
-    private void analyseHeaderColumns(String[] data) {
+    private void analyseHeaderColumns(List<String> data) {
         long start = System.currentTimeMillis();
 
         /**
@@ -197,9 +221,9 @@ public class InputFormat {
          * blank lines in the beginning.
          */
         String headerLine = "";
-        for (int i = 0; i < data.length; i++) {
-            if (StringUtils.isNotEmpty(data[i])) {
-                headerLine = data[i];
+        for (int i = 0; i < data.size(); i++) {
+            if (!data.get(i).isEmpty()) {
+                headerLine = data.get(i);
                 startOnLine = i;
                 break;
             }
@@ -230,14 +254,14 @@ public class InputFormat {
 
         List<String> columnNames = new LinkedList<>();
 
-        firstLine = firstLine.replaceAll("^(#|//)", "");
+        firstLine = HEADER_PREFIX_REGEX.matcher(firstLine).replaceFirst("");
 
         /**
          * We cannot use the HEADER REGEX for parsing the header and prepare the default
          * Why? Tab is a delimiter for header, but space isn't. Colon is a delimiter fo the content
          * but not for the header.
          **/
-        String[] data = firstLine.split(NO_HEADER_DEFAULT_REGEX);
+        String[] data = NO_HEADER_DEFAULT_REGEX.split(firstLine);
 
         if (data.length > 0) {
             for (String col : data) {
@@ -278,63 +302,103 @@ public class InputFormat {
     }
 
     /**
-     * Analyse all the data itself.
-     * Replace any character like space, comma, semicolon, tab into a space and then replace split by space.
+     * Analyse all the data itself. The first lines (already read) are processed and then the rest of
+     * the lines are read from the input.
      *
-     * @param content line array
+     * @param firstLines the lines already read
+     * @param lines      the reader positioned after the first lines
      */
-    private void analyseContent(String[] content) {
+    private void analyseContent(List<String> firstLines, LineReader lines) throws IOException {
         long start = System.nanoTime();
         if (hasHeader) {
             startOnLine += 1;
         }
 
-        /** Note also that using + instead of * avoids replacing empty strings and therefore might also speed up the process. **/
-        String regexp = MULTI_LINE_CONTENT_SPLIT_REGEX;
+        if (thresholdColumn > 1) {
+            expressionMatrix = new ExpressionMatrix(thresholdColumn - 1);
+            values = new double[thresholdColumn - 1];
+        }
+
+        int i = startOnLine;
+        for (; i < firstLines.size(); ++i) {
+            char[] line = firstLines.get(i).toCharArray();
+            analyseLine(line, line.length, i);
+        }
+        while (lines.next()) {
+            analyseLine(lines.line, lines.length, i++);
+        }
+        if (expressionMatrix != null) expressionMatrix.trim();
 
-        Pattern p = Pattern.compile(regexp);
+        long end = System.nanoTime();
+        logger.debug("Elapsed time on AnalyseContent: " + (end - start) + ".ms");
+    }
 
-        for (int i = startOnLine; i < content.length; ++i) {
-            String line = content[i].trim();
-            if (line.isEmpty()) {
-                warningResponses.add(Response.getMessage(Response.EMPTY_LINE, i + 1));
-                continue;
+    /**
+     * Any character like space, comma, semicolon, tab separates the tokens of the line
+     *
+     * @param line   the chars of the line (line terminator not included)
+     * @param length the length of the line
+     * @param i      the index of the line in the file (0 based)
+     */
+    private void analyseLine(char[] line, int length, int i) {
+        if (length == 0) {
+            if (emptySince < 0) emptySince = i;
+            return;
+        }
+        // The empty lines are only reported when there is content after them
+        if (emptySince >= 0) {
+            for (int e = emptySince; e < i; e++) {
+                warningResponses.add(Response.getMessage(Response.EMPTY_LINE, e + 1));
             }
+            emptySince = -1;
+        }
 
-            /** Note that using String.replaceAll() will compile the regular expression each time you call it. **/
-            line = p.matcher(line).replaceAll(" "); // slow slow slow
-
-            // StringTokenizer has more performance to offer than String.slit.
-            StringTokenizer st = new StringTokenizer(line); //space is default delimiter.
-
-            int tokens = st.countTokens();
-            if (tokens > 0) {
-                /**
-                 * analyse if each line has the same amount of columns as the threshold based on first line, otherwise
-                 * an error will be reported.
-                 */
-                if (thresholdColumn == tokens) {
-                    String first = st.nextToken();
-                    AnalysisIdentifier rtn = new AnalysisIdentifier(first);
-                    int j = 1;
-                    while (st.hasMoreTokens()) {
-                        String token = st.nextToken().trim();
-                        if(isNumeric(token)){
-                            rtn.add(Double.valueOf(token));
-                        }else {
-                            warningResponses.add(Response.getMessage(Response.INLINE_PROBLEM, i + 1, j + 1));
-                        }
-                        j++;
+        int from = 0, to = length;
+        while (from < to && line[from] <= ' ') from++;
+        while (to > from && line[to - 1] <= ' ') to--;
+        if (from == to) {
+            warningResponses.add(Response.getMessage(Response.EMPTY_LINE, i + 1));
+            return;
+        }
+
+        int tokens = countTokens(line, from, to);
+        if (tokens > 0) {
+            /**
+             * analyse if each line has the same amount of columns as the threshold based on first line, otherwise
+             * an error will be reported.
+             */
+            if (thresholdColumn == tokens) {
+                int p = from;
+                while (isDelimiter(line[p])) p++;
+                int tokenStart = p;
+                while (p < to && !isDelimiter(line[p])) p++;
+                String first = new String(line, tokenStart, p - tokenStart);
+                int j = 1;
+                while (p < to) {
+                    while (p < to && isDelimiter(line[p])) p++;
+                    if (p == to) break;
+                    tokenStart = p;
+                    while (p < to && !isDelimiter(line[p])) p++;
+                    int tokenEnd = p;
+                    while (tokenStart < tokenEnd && line[tokenStart] <= ' ') tokenStart++;
+                    while (tokenEnd > tokenStart && line[tokenEnd - 1] <= ' ') tokenEnd--;
+                    double value = parseNumber(line, tokenStart, tokenEnd);
+                    values[j - 1] = value; // NaN keeps the rest of the values in their columns
+                    if (Double.isNaN(value)) {
+                        warningResponses.add(Response.getMessage(Response.INLINE_PROBLEM, i + 1, j + 1));
                     }
-                    analysisIdentifierSet.add(rtn);
-                } else {
-                    errorResponses.add(Response.getMessage(Response.COLUMN_MISMATCH, i + 1, thresholdColumn, tokens));
+                    j++;
                 }
+                AnalysisIdentifier rtn = new AnalysisIdentifier(first);
+                // Only the first occurrence of an identifier is kept, so repeated ones do not take a row
+                if (expressionMatrix != null && !analysisIdentifierSet.contains(rtn)) {
+                    rtn = new AnalysisIdentifier(first, expressionMatrix, expressionMatrix.addRow(values));
+                }
+                analysisIdentifierSet.add(rtn);
+            } else {
+                errorResponses.add(Response.getMessage(Response.COLUMN_MISMATCH, i + 1, thresholdColumn, tokens));
             }
         }
-
-        long end = System.nanoTime();
-        logger.debug("Elapsed time on AnalyseContent: " + (end - start) + ".ms");
     }
 
     private static boolean hasHeaderLine(String line) {
@@ -348,10 +412,10 @@ public class InputFormat {
      */
     private void getHeaderLabel(String line) {
         // remove chars which categorizes a comment.
-        line = line.replaceAll("^(#|//)", "");
+        line = HEADER_PREFIX_REGEX.matcher(line).replaceFirst("");
 
         // Split header line by our known delimiters
-        String[] cols = line.split(HEADER_SPLIT_REGEX);
+        String[] cols = HEADER_SPLIT_REGEX.split(line);
 
         thresholdColumn = cols.length;
 
@@ -368,6 +432,13 @@ public class InputFormat {
         return analysisIdentifierSet;
     }
 
+    /**
+     * @return the expression values of the identifiers (null when the content does not have expression columns)
+     */
+    public ExpressionMatrix getExpressionMatrix() {
+        return expressionMatrix;
+    }
+
     /**
      * An easy handy method for determining if the parse succeeded
      *
@@ -397,11 +468,8 @@ public class InputFormat {
     }
 
     /**
-     * Instead of calling the Double.valueOf(...) in a try-catch statement and many of the checks to fail due to
-     * not being a number then performance of this mechanism will not be great, since you're relying upon
-     * exceptions being thrown for each failure, which is a fairly expensive operation.
-     * <p>
-     * An alternative approach may be to use a regular expression to check for validity of being a number:
+     * A number is an optional '-' followed by digits and optionally by a '.' and more digits
+     * (the same as the regular expression "-?\\d+(\\.\\d+)?" but without compiling it for every call)
      *
      * @param str
      * @return true if is Number
@@ -410,7 +478,145 @@ public class InputFormat {
         if (str == null) {
             return false;
         }
+        return !Double.isNaN(parseNumber(str.toCharArray(), 0, str.length()));
+    }
+
+    /**
+     * Parses the number (see isNumeric) in the given range. Numbers with up to MAX_FAST_DIGITS significant
+     * digits are calculated dividing two exactly represented doubles, which gives the same correctly rounded
+     * result as Double.parseDouble without creating a String
+     *
+     * @return the value or NaN if the range does not contain a number
+     */
+    static double parseNumber(char[] chars, int from, int to) {
+        int i = from;
+        boolean negative = i < to && chars[i] == '-';
+        if (negative) i++;
+
+        int integerStart = i;
+        while (i < to && isDigit(chars[i])) i++;
+        int integerEnd = i;
+        if (integerEnd == integerStart) return Double.NaN;
+
+        int decimalsStart = i, decimalsEnd = i;
+        if (i < to && chars[i] == '.') {
+            decimalsStart = ++i;
+            while (i < to && isDigit(chars[i])) i++;
+            decimalsEnd = i;
+            if (decimalsEnd == decimalsStart) return Double.NaN;
+        }
+        if (i != to) return Double.NaN;
+
+        while (integerStart < integerEnd - 1 && chars[integerStart] == '0') integerStart++; //leading zeros
+        int decimals = decimalsEnd - decimalsStart;
+        if (integerEnd - integerStart + decimals > MAX_FAST_DIGITS) {
+            return Double.parseDouble(new String(chars, from, to - from));
+        }
+        long mantissa = 0;
+        for (int k = integerStart; k < integerEnd; k++) mantissa = mantissa * 10 + (chars[k] - '0');
+        for (int k = decimalsStart; k < decimalsEnd; k++) mantissa = mantissa * 10 + (chars[k] - '0');
+        double value = mantissa / POWERS_OF_TEN[decimals];
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * The content is split by any of [\s,;] (the same as replacing "[\\s,;]+" by spaces and tokenizing)
+     */
+    private static boolean isDelimiter(char c) {
+        switch (c) {
+            case ' ':
+            case '\t':
+            case '\n':
+            case '\u000B':
+            case '\f':
+            case '\r':
+            case ',':
+            case ';':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int countTokens(char[] line, int from, int to) {
+        int tokens = 0;
+        boolean inToken = false;
+        for (int i = from; i < to; i++) {
+            boolean delimiter = isDelimiter(line[i]);
+            if (!delimiter && !inToken) tokens++;
+            inToken = !delimiter;
+        }
+        return tokens;
+    }
+
+    // The same as String.trim().isEmpty()
+    private static boolean isBlank(char[] chars, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (chars[i] > ' ') return false;
+        }
+        return true;
+    }
+
+    private static boolean isBlank(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) > ' ') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Splits the input in lines by "\n" or "\r\n" (a single "\r" is part of the line) reusing the same
+     * char array for every line. The last line is returned even when it is empty
+     */
+    private static class LineReader {
+        private final Reader reader;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int position = 0;
+        private int limit = 0;
+        private boolean finished = false;
+
+        char[] line = new char[256];
+        int length = 0;
+
+        LineReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        boolean next() throws IOException {
+            if (finished) return false;
+            length = 0;
+            while (true) {
+                if (position == limit) {
+                    int read = reader.read(buffer, 0, buffer.length);
+                    if (read < 0) {
+                        finished = true;
+                        return true;
+                    }
+                    position = 0;
+                    limit = read;
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') position++;
+                append(start, position);
+                if (position < limit) {
+                    position++; //skips the '\n'
+                    if (length > 0 && line[length - 1] == '\r') length--;
+                    return true;
+                }
+            }
+        }
 
-        return str.matches("-?\\d+(\\.\\d+)?");  //match a number with optional '-' and decimal.
+        private void append(int from, int to) {
+            int n = to - from;
+            if (length + n > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + n));
+            }
+            System.arraycopy(buffer, from, line, length, n);
+            length += n;
+        }
     }
 }
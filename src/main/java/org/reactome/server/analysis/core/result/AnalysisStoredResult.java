@@ -1,5 +1,6 @@
 package org.reactome.server.analysis.core.result;
 
+import org.reactome.server.analysis.core.metrics.AnalysisMetrics;
 import org.reactome.server.analysis.core.model.*;
 import org.reactome.server.analysis.core.model.identifier.Identifier;
 import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
@@ -25,7 +26,11 @@ public class AnalysisStoredResult {
     private List<ResourceSummary> resourceSummary;
     private ExpressionSummary expressionSummary;
 
+    //The analysis result overlay is only needed to set the hit pathways (it is NOT stored)
+    private transient HierarchiesData data;
+
     public AnalysisStoredResult(UserData userData, HierarchiesData data){
+        this.data = data;
         this.warnings = userData.getWarningMessages();
         this.notFound = data.getNotFound();
         this.pathways = new LinkedList<>();
@@ -33,19 +38,20 @@ public class AnalysisStoredResult {
     }
 
     public void setHitPathways(List<PathwayNode> pathwayNodes){
+        long start = System.nanoTime();
         //At the time we set the hit pathways, we also initialize resource summary
         Map<String, Integer> aux = new HashMap<>();
         Integer total = 0;
         for (PathwayNode pathwayNode : pathwayNodes) {
             total++;
-            for (MainResource mainResource : pathwayNode.getPathwayNodeData().getResources()) {
-                PathwayNodeData data = pathwayNode.getPathwayNodeData();
+            PathwayNodeData data = this.data.getPathwayNodeData(pathwayNode);
+            for (MainResource mainResource : data.getResources()) {
                 if (data.getEntitiesFound(mainResource) > 0 || data.getInteractorsFound(mainResource) > 0) {
                     Integer n = aux.get(mainResource.getName());
                     aux.put(mainResource.getName(), n == null ? 1 : n + 1 );
                 }
             }
-            this.pathways.add(new PathwayNodeSummary(pathwayNode));
+            this.pathways.add(new PathwayNodeSummary(pathwayNode, data));
         }
         resourceSummary = new LinkedList<>();
         for (String resource : aux.keySet()) {
@@ -54,6 +60,7 @@ public class AnalysisStoredResult {
         Collections.sort(resourceSummary, Collections.reverseOrder());
         //Total is always inserted on top
         resourceSummary.add(0, new ResourceSummary("TOTAL", total));
+        AnalysisMetrics.record(AnalysisMetrics.Stage.SUMMARY, start);
     }
 
     public void setSummary(AnalysisSummary summary) {
@@ -297,7 +304,7 @@ public class AnalysisStoredResult {
                     PathwaySummary aux = new PathwaySummary(pathway, resource.toUpperCase(), summary.isInteractors());
                     rtn.add(new PathwayBase(aux));
 
-                    List<Double> exps = new LinkedList<>();
+                    List<Double> exps = Collections.emptyList();
                     if (r instanceof MainResource) {
                         exps = pathway.getData().getExpressionValuesAvg((MainResource) r);
                     } else if (resource.equals("TOTAL")) {
@@ -305,11 +312,9 @@ public class AnalysisStoredResult {
                     }
 
                     for (Double exp : exps) {
-                        if (min == null || exp < min) {
-                            min = exp;
-                        } else if (max == null || exp > max) {
-                            max = exp;
-                        }
+                        if (exp == null) continue; //Columns without values for the pathway
+                        if (min == null || exp < min) min = exp;
+                        if (max == null || exp > max) max = exp;
                     }
                 }
             }
@@ -22,12 +22,16 @@ public class PathwayNodeSummary {
 
 
     public PathwayNodeSummary(PathwayNode node) {
+        this(node, node.getPathwayNodeData());
+    }
+
+    public PathwayNodeSummary(PathwayNode node, PathwayNodeData data) {
         this.stId = node.getStId();
         this.pathwayId = node.getPathwayId();
         this.name = node.getName();
         this.species = node.getSpecies();
         this.llp = node.isLowerLevelPathway();
-        this.data = node.getPathwayNodeData();
+        this.data = data;
     }
 
     public String getStId() {
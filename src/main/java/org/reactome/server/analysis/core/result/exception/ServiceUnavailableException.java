@@ -0,0 +1,14 @@
+package org.reactome.server.analysis.core.result.exception;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+//Do NOT annotate it with "ResponseStatus" because it is treated in "HandlerExceptionResolverImpl"
+public final class ServiceUnavailableException extends AnalysisServiceException {
+
+    public ServiceUnavailableException(String message) {
+        super(HttpStatus.SERVICE_UNAVAILABLE, message);
+    }
+}
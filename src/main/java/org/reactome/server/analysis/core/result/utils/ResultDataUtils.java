@@ -5,6 +5,7 @@ import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.shaded.org.objenesis.strategy.StdInstantiatorStrategy;
+import org.reactome.server.analysis.core.metrics.AnalysisMetrics;
 import org.reactome.server.analysis.core.result.AnalysisStoredResult;
 import org.reactome.server.analysis.core.result.report.AnalysisReport;
 import org.reactome.server.analysis.core.result.report.ReportParameters;
@@ -39,6 +40,7 @@ public abstract class ResultDataUtils {
     }
 
     public static void kryoSerialisation(AnalysisStoredResult result, String fileName){
+        long nanos = System.nanoTime();
         long start = System.currentTimeMillis();
         try {
             Kryo kryo = new Kryo();
@@ -52,6 +54,7 @@ public abstract class ResultDataUtils {
             logger.error(e.getMessage(), e);
             e.printStackTrace();
         }
+        AnalysisMetrics.record(AnalysisMetrics.Stage.RESULT_SAVE, nanos);
         long end = System.currentTimeMillis();
         logger.info(String.format("%s saved in %d ms", result.getClass().getSimpleName(), end - start));
     }
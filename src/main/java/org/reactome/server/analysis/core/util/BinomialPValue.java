@@ -0,0 +1,166 @@
+package org.reactome.server.analysis.core.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binomial test p-values, P(X >= found) for X ~ Binomial(sampleSize, ratio), calculated as the
+ * regularized incomplete beta function I_ratio(found, sampleSize - found + 1) in log-space.
+ * <p>
+ * The calculation does not allocate objects and does not keep state, so it is thread-safe. The log-factorials
+ * are cached for the usual sample sizes and the Memo can be used to avoid calculating the same p-value more
+ * than once in the same analysis (many pathways share ratio, sample size and found entities)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class BinomialPValue {
+
+    private static final int MAX_ITERATIONS = 100000;
+    private static final double EPSILON = 1e-15;
+    private static final double FP_MIN = Double.MIN_VALUE / EPSILON;
+
+    //Lanczos approximation (g = 671/128, 14 terms) with relative error below 1e-15
+    private static final double[] LANCZOS = {
+            57.1562356658629235, -59.5979603554754912, 14.1360979747417471, -0.491913816097620199,
+            .339946499848118887e-4, .465236289270485756e-4, -.983744753048795646e-4, .158088703224912494e-3,
+            -.210264441724104883e-3, .217439618115212643e-3, -.164318106536763890e-3, .844182239838527433e-4,
+            -.261908384015814087e-4, .368991826595316234e-5
+    };
+
+    private static final int LOG_FACTORIALS_SIZE = 10000;
+    private static final double[] LOG_FACTORIALS = new double[LOG_FACTORIALS_SIZE];
+
+    static {
+        for (int i = 0; i < LOG_FACTORIALS_SIZE; i++) {
+            LOG_FACTORIALS[i] = logGamma(i + 1d);
+        }
+    }
+
+    /**
+     * Returns the probability of finding "success" or more elements in a sample of size "sampleSize" where
+     * each element is found with probability "ratio"
+     *
+     * @param ratio      the probability of finding one element
+     * @param sampleSize the size of the sample
+     * @param success    the number of found elements (0 is treated as 1 to avoid unreasonable values)
+     * @return the p-value of the binomial test
+     */
+    public static double calculate(double ratio, int sampleSize, int success) {
+        if (ratio >= 1d) return 0d;
+        if (success == 0) success = 1; // To avoid unreasonable value
+        if (ratio <= 0d || success > sampleSize) return 0d;
+
+        double a = success;
+        double b = sampleSize - success + 1;
+        double logBeta = logFactorial(sampleSize) - logFactorial(success - 1) - logFactorial(sampleSize - success);
+        double logFront = logBeta + a * Math.log(ratio) + b * Math.log1p(-ratio);
+        double rtn;
+        if (ratio < (a + 1d) / (a + b + 2d)) {
+            rtn = Math.exp(logFront) * continuedFraction(a, b, ratio) / a;
+        } else {
+            rtn = 1d - Math.exp(logFront) * continuedFraction(b, a, 1d - ratio) / b;
+        }
+        return Math.min(1d, Math.max(0d, rtn));
+    }
+
+    //Modified Lentz's method for the continued fraction of the incomplete beta function
+    private static double continuedFraction(double a, double b, double x) {
+        double qab = a + b;
+        double qap = a + 1d;
+        double qam = a - 1d;
+        double c = 1d;
+        double d = 1d - qab * x / qap;
+        if (Math.abs(d) < FP_MIN) d = FP_MIN;
+        d = 1d / d;
+        double h = d;
+        for (int m = 1; m <= MAX_ITERATIONS; m++) {
+            int m2 = 2 * m;
+            double aa = m * (b - m) * x / ((qam + m2) * (a + m2));
+            d = 1d + aa * d;
+            if (Math.abs(d) < FP_MIN) d = FP_MIN;
+            c = 1d + aa / c;
+            if (Math.abs(c) < FP_MIN) c = FP_MIN;
+            d = 1d / d;
+            h *= d * c;
+            aa = -(a + m) * (qab + m) * x / ((a + m2) * (qap + m2));
+            d = 1d + aa * d;
+            if (Math.abs(d) < FP_MIN) d = FP_MIN;
+            c = 1d + aa / c;
+            if (Math.abs(c) < FP_MIN) c = FP_MIN;
+            d = 1d / d;
+            double del = d * c;
+            h *= del;
+            if (Math.abs(del - 1d) < EPSILON) break;
+        }
+        return h;
+    }
+
+    private static double logFactorial(int n) {
+        return n < LOG_FACTORIALS_SIZE ? LOG_FACTORIALS[n] : logGamma(n + 1d);
+    }
+
+    private static double logGamma(double x) {
+        double y = x;
+        double tmp = x + 5.24218750000000000;
+        tmp = (x + 0.5) * Math.log(tmp) - tmp;
+        double ser = 0.999999999999997092;
+        for (double c : LANCZOS) {
+            ser += c / ++y;
+        }
+        return tmp + Math.log(2.5066282746310005 * ser / x);
+    }
+
+    /**
+     * Keeps the p-values already calculated in an analysis. It is thread-safe so it can be shared by the
+     * tasks calculating the statistics of the different species
+     */
+    public static class Memo {
+
+        private Map<Key, Double> pValues = new ConcurrentHashMap<>();
+
+        public double calculate(double ratio, int sampleSize, int success) {
+            Key key = new Key(ratio, sampleSize, success);
+            Double pValue = this.pValues.get(key);
+            if (pValue == null) {
+                pValue = BinomialPValue.calculate(ratio, sampleSize, success);
+                this.pValues.put(key, pValue);
+            }
+            return pValue;
+        }
+
+        public int size() {
+            return this.pValues.size();
+        }
+    }
+
+    private static class Key {
+        private final double ratio;
+        private final int sampleSize;
+        private final int success;
+
+        Key(double ratio, int sampleSize, int success) {
+            this.ratio = ratio;
+            this.sampleSize = sampleSize;
+            this.success = success;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            return Double.compare(key.ratio, ratio) == 0 && sampleSize == key.sampleSize && success == key.success;
+        }
+
+        @Override
+        public int hashCode() {
+            long temp = Double.doubleToLongBits(ratio);
+            int result = (int) (temp ^ (temp >>> 32));
+            result = 31 * result + sampleSize;
+            result = 31 * result + success;
+            return result;
+        }
+    }
+}
@@ -1,17 +1,19 @@
 package org.reactome.server.analysis.core.util;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringEscapeUtils;
-import org.reactome.server.analysis.core.model.AnalysisIdentifier;
 import org.reactome.server.analysis.core.model.UserData;
 import org.reactome.server.analysis.core.parser.InputFormat;
 import org.reactome.server.analysis.core.parser.exception.ParserException;
+import org.reactome.server.analysis.core.result.exception.RequestEntityTooLargeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.DigestUtils;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -23,24 +25,54 @@ import java.util.List;
 public abstract class InputUtils {
     private static Logger logger = LoggerFactory.getLogger("importLogger");
 
+    private static final int BUFFER_SIZE = 8192;
+
+    private static volatile long maxInputSize = Long.MAX_VALUE;
+
+    /**
+     * Sets the maximum size of the submitted data. Bigger inputs are rejected with RequestEntityTooLargeException
+     * as soon as the limit is exceeded, without reading the rest of the input
+     *
+     * @param maxInputSize the maximum size in bytes (0 or negative for no limit)
+     */
+    public static void setMaxInputSize(long maxInputSize) {
+        InputUtils.maxInputSize = maxInputSize > 0 ? maxInputSize : Long.MAX_VALUE;
+    }
+
     @SuppressWarnings("UnusedDeclaration")
     public static UserData getUserData(String input) throws IOException, ParserException {
         logger.trace("Loading identifiers...");
         long start = System.currentTimeMillis();
-        String md5 = DigestUtils.md5DigestAsHex(input.getBytes());
-        UserData ud = processData(input, md5);
+        byte[] bytes = input.getBytes();
+        if (bytes.length > maxInputSize) tooLarge(maxInputSize);
+        String md5 = toHex(getMD5Digest().digest(bytes));
+        InputFormat parser = new InputFormat();
+        parser.parseData(input);
+        UserData ud = getUserData(parser, md5);
         long end = System.currentTimeMillis();
         logger.trace(String.format("%d loaded in %d ms", ud.getIdentifiers().size(), end-start));
         return ud;
     }
 
+    /**
+     * The input is parsed while it is read and its MD5 is calculated on the same bytes, so the content is
+     * never kept in memory as a whole
+     *
+     * @param is the submitted data (it is read to the end but not closed)
+     * @throws RequestEntityTooLargeException if the input is bigger than the maximum size (see setMaxInputSize)
+     */
     public static UserData getUserData(InputStream is) throws IOException, ParserException {
         logger.trace("Loading identifiers...");
         long start = System.currentTimeMillis();
-        String input = IOUtils.toString(is);
-        String md5 = DigestUtils.md5DigestAsHex(input.getBytes());
-        //UserData ud = InputUtils.processData(input, md5);
-        UserData ud = processData(input, md5);
+        MessageDigest digest = getMD5Digest();
+        InputStream input = new LimitedInputStream(new DigestInputStream(is, digest), maxInputSize);
+        InputFormat parser = new InputFormat();
+        parser.parseData(input);
+        //Whatever the parser did not need is still part of the MD5
+        byte[] buffer = new byte[BUFFER_SIZE];
+        //noinspection StatementWithEmptyBody
+        while (input.read(buffer) >= 0) ;
+        UserData ud = getUserData(parser, toHex(digest.digest()));
         long end = System.currentTimeMillis();
         logger.trace(String.format("%d loaded in %d ms", ud.getIdentifiers().size(), end-start));
         return ud;
@@ -59,27 +91,76 @@ public abstract class InputUtils {
         return columnNames; // Arrays.asList(line.split("\\s"));
     }
 
-    private static AnalysisIdentifier getAnalysisIdentifier(String line){
-        AnalysisIdentifier rtn = null;
-        if(line==null || line.isEmpty()) return rtn;
-        String[] data = line.split("\\t");
-        if(data.length>0){
-            rtn = new AnalysisIdentifier(data[0].trim());
-            for(int i=1; i<data.length; ++i){
-                try{
-                    rtn.add(Double.valueOf(data[i].trim()));
-                }catch (NumberFormatException nfe){
-                    rtn.add(null); //null won't be taken into account for the AVG
-                }
-            }
+    private static UserData getUserData(InputFormat parser, String md5) {
+        return new UserData(parser.getHeaderColumnNames(), parser.getAnalysisIdentifierSet(), parser.getExpressionMatrix(), md5, parser.getWarningResponses());
+    }
+
+    private static void tooLarge(long maxSize) {
+        logger.warn(String.format("Submitted data rejected: it exceeds the maximum size of %d bytes", maxSize));
+        throw new RequestEntityTooLargeException();
+    }
+
+    private static MessageDigest getMD5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
         }
-        return rtn;
     }
 
-    private static UserData processData(String data, String md5) throws IOException, ParserException {
-        InputFormat parser = new InputFormat();
-        parser.parseData(data);
+    //Lower case hexadecimal representation (the same as in DigestUtils.md5DigestAsHex)
+    private static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] rtn = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            rtn[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+            rtn[2 * i + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(rtn);
+    }
 
-        return new UserData(parser.getHeaderColumnNames(), parser.getAnalysisIdentifierSet(), md5, parser.getWarningResponses());
+    /**
+     * Counts the bytes read and fails as soon as they exceed the maximum size
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long maxSize;
+        private long size = 0;
+
+        LimitedInputStream(InputStream in, long maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            //Skipped bytes would not be part of the MD5
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int read = n > 0 ? read(buffer, 0, buffer.length) : 0;
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(int n) {
+            size += n;
+            if (size > maxSize) tooLarge(maxSize);
+        }
     }
 }
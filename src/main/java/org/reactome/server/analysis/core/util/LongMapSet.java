@@ -0,0 +1,203 @@
+package org.reactome.server.analysis.core.util;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Compact counterpart of MapSet for primitive long keys (open addressing with linear probing). The keys are
+ * not boxed and the elements of each key are kept in an array with the exact size instead of a HashSet, so
+ * it is meant for many small sets that are built once and read many times. Sets growing over MAX_ARRAY_SIZE
+ * elements are moved to a HashSet, so adding elements to a big set is not linear in its size
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class LongMapSet<T> implements Serializable {
+
+    private static final float LOAD_FACTOR = 0.75f;
+    //Biggest set kept in an array (checking whether an element is present in it is linear)
+    private static final int MAX_ARRAY_SIZE = 8;
+
+    private long[] keys;
+    //The elements for each slot: null for the empty slots, an exact size Object[] or a HashSet for the big sets
+    private Object[] values;
+    private int size = 0;
+
+    public LongMapSet() {
+        this(2);
+    }
+
+    public LongMapSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean add(long key, T elem) {
+        int i = index(key);
+        Object slot = values[i];
+        if (slot == null) {
+            if (size + 1 > keys.length * LOAD_FACTOR) {
+                resize(keys.length << 1);
+                i = index(key);
+            }
+            keys[i] = key;
+            values[i] = new Object[]{elem};
+            size++;
+            return true;
+        }
+        if (slot instanceof Set) return ((Set<Object>) slot).add(elem);
+        Object[] elems = (Object[]) slot;
+        for (Object e : elems) {
+            if (e.equals(elem)) return false;
+        }
+        if (elems.length == MAX_ARRAY_SIZE) {
+            Set<Object> set = new HashSet<>(Arrays.asList(elems));
+            set.add(elem);
+            values[i] = set;
+            return true;
+        }
+        elems = Arrays.copyOf(elems, elems.length + 1);
+        elems[elems.length - 1] = elem;
+        values[i] = elems;
+        return true;
+    }
+
+    public boolean add(long key, Collection<T> elems) {
+        boolean rtn = false;
+        for (T elem : elems) {
+            rtn |= add(key, elem);
+        }
+        return rtn;
+    }
+
+    public void addAll(LongMapSet<T> map) {
+        for (int i = 0; i < map.values.length; i++) {
+            if (map.values[i] == null) continue;
+            for (Object elem : elements(map.values[i])) {
+                //noinspection unchecked
+                add(map.keys[i], (T) elem);
+            }
+        }
+    }
+
+    /**
+     * @return a read only view of the elements for the key or null if the key is not present
+     */
+    @SuppressWarnings("unchecked")
+    public Set<T> getElements(long key) {
+        Object slot = values[index(key)];
+        if (slot == null) return null;
+        if (slot instanceof Set) return Collections.unmodifiableSet((Set<T>) slot);
+        return new ArraySet<>((Object[]) slot);
+    }
+
+    public boolean containsKey(long key) {
+        return values[index(key)] != null;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the keys in the map (no specific order)
+     */
+    public long[] keys() {
+        long[] rtn = new long[size];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) rtn[n++] = keys[i];
+        }
+        return rtn;
+    }
+
+    public Set<T> values() {
+        Set<T> rtn = new HashSet<>();
+        for (Object slot : values) {
+            if (slot == null) continue;
+            for (Object elem : elements(slot)) {
+                //noinspection unchecked
+                rtn.add((T) elem);
+            }
+        }
+        return rtn;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<Object> elements(Object slot) {
+        return slot instanceof Set ? (Set<Object>) slot : Arrays.asList((Object[]) slot);
+    }
+
+    //Slot containing the key or the empty slot where it has to be placed
+    private int index(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = index(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    //The elements in the array are unique, so it can be seen as a set without copying them
+    private static class ArraySet<T> extends AbstractSet<T> {
+
+        private final Object[] elems;
+
+        ArraySet(Object[] elems) {
+            this.elems = elems;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < elems.length;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public T next() {
+                    if (i >= elems.length) throw new NoSuchElementException();
+                    return (T) elems[i++];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return elems.length;
+        }
+    }
+}
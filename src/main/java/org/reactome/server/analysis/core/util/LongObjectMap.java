@@ -0,0 +1,111 @@
+package org.reactome.server.analysis.core.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Map with primitive long keys (open addressing with linear probing) that avoids boxing the keys and
+ * creating an entry object per mapping. Null values are not allowed (an empty slot has a null value)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class LongObjectMap<V> implements Serializable {
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    public LongObjectMap() {
+        this(16);
+    }
+
+    public LongObjectMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * @return the previous value for the key or null if there was not one
+     */
+    public V put(long key, V value) {
+        if (value == null) throw new IllegalArgumentException("Null values are not allowed");
+        int i = index(key);
+        @SuppressWarnings("unchecked") V previous = (V) values[i];
+        if (previous == null) {
+            if (size + 1 > keys.length * LOAD_FACTOR) {
+                resize(keys.length << 1);
+                i = index(key);
+            }
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+        return previous;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V) values[index(key)];
+    }
+
+    public boolean containsKey(long key) {
+        return values[index(key)] != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the keys in the map (no specific order)
+     */
+    public long[] keys() {
+        long[] rtn = new long[size];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) rtn[n++] = keys[i];
+        }
+        return rtn;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    //Slot containing the key or the empty slot where it has to be placed
+    private int index(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = index(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
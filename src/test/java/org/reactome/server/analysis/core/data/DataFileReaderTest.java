@@ -0,0 +1,87 @@
+package org.reactome.server.analysis.core.data;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.shaded.org.objenesis.strategy.StdInstantiatorStrategy;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a corrupted section of the data file is detected when it is deserialised (Kryo stops reading
+ * once it has the object, so the section stream is never read to its end)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class DataFileReaderTest {
+
+    private static final String SECTION = "values";
+
+    private static List<Long> values() {
+        List<Long> values = new ArrayList<>();
+        for (long i = 0; i < 10000; i++) values.add(i * 31);
+        return values;
+    }
+
+    private static File write(boolean compress) throws IOException {
+        File file = File.createTempFile("analysis", ".bin");
+        file.deleteOnExit();
+        Kryo kryo = new Kryo();
+        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+        try (DataFileWriter writer = new DataFileWriter(file.getPath(), 0, compress)) {
+            Output output = new Output(writer.startSection(SECTION));
+            kryo.writeClassAndObject(output, values());
+            output.close();
+            writer.endSection();
+            writer.finish();
+        }
+        return file;
+    }
+
+    //Flips one byte in the middle of the (only) section
+    private static void corrupt(File file) throws IOException {
+        long length;
+        try (DataFileReader reader = new DataFileReader(file.getPath())) {
+            length = reader.getStoredSectionSize(SECTION);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long position = 32 + length / 2; //The section starts right after the (32 bytes) header
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x01);
+        }
+    }
+
+    private static void check(boolean compress) throws IOException {
+        File file = write(compress);
+        try (DataFileReader reader = new DataFileReader(file.getPath())) {
+            assertEquals(values(), AnalysisDataUtils.read(reader, SECTION));
+        }
+        corrupt(file);
+        try (DataFileReader reader = new DataFileReader(file.getPath())) {
+            AnalysisDataUtils.read(reader, SECTION);
+            fail("The corrupted section has been loaded");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("CRC32"));
+        }
+    }
+
+    @Test
+    public void testCorruptedSection() throws IOException {
+        check(false);
+    }
+
+    @Test
+    public void testCorruptedCompressedSection() throws IOException {
+        check(true);
+    }
+}
@@ -0,0 +1,330 @@
+package org.reactome.server.analysis.core.data;
+
+import org.reactome.server.analysis.core.model.*;
+import org.reactome.server.analysis.core.model.identifier.InteractorIdentifier;
+import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
+import org.reactome.server.analysis.core.model.resource.MainResource;
+import org.reactome.server.analysis.core.model.resource.Resource;
+import org.reactome.server.analysis.core.model.resource.ResourceFactory;
+import org.reactome.server.analysis.core.util.LongMapSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Creates a DataContainer with synthetic content (no graph database needed) for the benchmarks. The
+ * content mimics the shape of the Reactome one: a pathway hierarchy per species (some pathways present
+ * in more than one branch), proteins in a skewed number of lower level pathways, small molecules shared
+ * between species, orthologous proteins inferred from human and interactors of the human proteins.
+ * <p>
+ * The same seed always produces the same content
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class SyntheticDataGenerator {
+
+    private static final MainResource UNIPROT = (MainResource) ResourceFactory.getResource("UniProt");
+    private static final MainResource CHEBI = (MainResource) ResourceFactory.getResource("ChEBI");
+    private static final Resource GENE_NAMES = ResourceFactory.getResource("#UniProt");
+
+    private int speciesCount = 3;
+    private int depth = 5;
+    private int branching = 4;
+    //Fraction of the lower level pathways that are also placed in a second branch of the hierarchy
+    private double sharedPathways = 0.05;
+    private int reactionsPerPathway = 15;
+    private int proteinsPerSpecies = 11000;
+    private int smallMolecules = 2000;
+    //Fraction of the human proteins that are inferred to each one of the other species
+    private double orthologyRatio = 0.6;
+    private int interactors = 10000;
+    private int maxInteractionsPerInteractor = 5;
+    private long seed = 42L;
+
+    private Random random;
+    private long nextId;
+    private List<SpeciesNode> species;
+    private Map<SpeciesNode, PathwayHierarchy> hierarchies;
+    private LongMapSet<PathwayNode> pathwayLocation;
+    private Map<SpeciesNode, List<Long>> lowerLevelPathways;
+    private LongMapSet<AnalysisReaction> pathwayReactions;
+    private EntitiesContainer entitiesContainer;
+    private IdentifiersMap<EntityNode> entitiesMap;
+    private IdentifiersMap<InteractorNode> interactorsMap;
+    private Map<SpeciesNode, List<String>> speciesIdentifiers;
+    private List<String> interactorIdentifiers;
+
+    public DataContainer generate() {
+        random = new Random(seed);
+        nextId = 1000000L;
+        species = new ArrayList<>();
+        hierarchies = new HashMap<>();
+        pathwayLocation = new LongMapSet<>();
+        lowerLevelPathways = new HashMap<>();
+        pathwayReactions = new LongMapSet<>();
+        entitiesContainer = new EntitiesContainer();
+        entitiesMap = new IdentifiersMap<>();
+        interactorsMap = new IdentifiersMap<>();
+        speciesIdentifiers = new HashMap<>();
+        interactorIdentifiers = new ArrayList<>();
+
+        for (int i = 0; i < speciesCount; i++) {
+            SpeciesNode speciesNode = i == 0
+                    ? SpeciesNodeFactory.getSpeciesNode(SpeciesNodeFactory.HUMAN_DB_ID, SpeciesNodeFactory.HUMAN_TAX_ID, SpeciesNodeFactory.HUMAN_STR)
+                    : SpeciesNodeFactory.getSpeciesNode(100000L + i, "" + (10000 + i), "Synthetic species " + i);
+            species.add(speciesNode);
+            speciesIdentifiers.put(speciesNode, new ArrayList<String>());
+            createHierarchy(speciesNode);
+        }
+        List<EntityNode> human = createProteins();
+        createSmallMolecules();
+        createInteractors(human);
+        entitiesMap.build();
+        interactorsMap.build();
+        setCounters();
+
+        DataContainer container = new DataContainer(hierarchies, pathwayLocation, entitiesContainer, entitiesMap, interactorsMap);
+        container.initialize();
+        return container;
+    }
+
+    /**
+     * Generates the content and stores it in a temporary data file (deleted on exit)
+     *
+     * @return the path of the data file
+     */
+    public String generateFile() throws IOException {
+        File file = File.createTempFile("analysis-synthetic", ".bin");
+        file.deleteOnExit();
+        AnalysisDataUtils.kryoSerialisation(generate(), file.getAbsolutePath());
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Returns a sample of the identifiers of the given species (main identifiers, gene names and small
+     * molecules) and, when interactors are included, of the interactors. A fraction of the sample is made
+     * of identifiers that are not found
+     *
+     * @param size         the number of identifiers
+     * @param notFound     fraction of the sample that is not found
+     * @param species      the species of the identifiers (index in getSpecies)
+     * @param interactors  true to include identifiers of the interactors in the sample
+     * @param seed         the seed used to take the sample
+     */
+    public Set<AnalysisIdentifier> getSample(int size, double notFound, int species, boolean interactors, long seed) {
+        Random random = new Random(seed);
+        List<String> candidates = new ArrayList<>(speciesIdentifiers.get(this.species.get(species)));
+        if (interactors) candidates.addAll(interactorIdentifiers);
+        Collections.shuffle(candidates, random);
+        Set<AnalysisIdentifier> rtn = new HashSet<>();
+        int found = Math.min(candidates.size(), (int) Math.round(size * (1 - notFound)));
+        for (int i = 0; i < found; i++) {
+            rtn.add(new AnalysisIdentifier(candidates.get(i)));
+        }
+        for (int i = 0; rtn.size() < size; i++) {
+            rtn.add(new AnalysisIdentifier("NOTFOUND" + i));
+        }
+        return rtn;
+    }
+
+    public List<SpeciesNode> getSpecies() {
+        return species;
+    }
+
+    private void createHierarchy(SpeciesNode speciesNode) {
+        PathwayHierarchy hierarchy = new PathwayHierarchy(speciesNode);
+        hierarchies.put(speciesNode, hierarchy);
+        List<PathwayNode> leaves = new ArrayList<>();
+        for (int i = 0; i < branching; i++) {
+            long id = nextId++;
+            PathwayNode tlp = hierarchy.addTopLevelPathway(getStId(speciesNode, id), id, "Top level pathway " + id, true);
+            pathwayLocation.add(id, tlp);
+            createChildren(speciesNode, tlp, 1, leaves);
+        }
+        List<Long> lowerLevel = new ArrayList<>();
+        for (PathwayNode leaf : leaves) {
+            leaf.setLowerLevelPathway(true);
+            lowerLevel.add(leaf.getPathwayId());
+            for (int i = 0; i < reactionsPerPathway; i++) {
+                long id = nextId++;
+                pathwayReactions.add(leaf.getPathwayId(), new AnalysisReaction(id, getStId(speciesNode, id)));
+            }
+        }
+        //Some pathways are also children of a different parent (the hits are propagated through both branches)
+        int shared = (int) (leaves.size() * sharedPathways);
+        for (int i = 0; i < shared; i++) {
+            PathwayNode leaf = leaves.get(random.nextInt(leaves.size()));
+            PathwayNode parent = leaves.get(random.nextInt(leaves.size())).getParent();
+            if (parent == null || parent == leaf.getParent()) continue;
+            PathwayNode copy = parent.addChild(leaf.getStId(), leaf.getPathwayId(), leaf.getName(), false);
+            copy.setLowerLevelPathway(true);
+            pathwayLocation.add(leaf.getPathwayId(), copy);
+        }
+        lowerLevelPathways.put(speciesNode, lowerLevel);
+    }
+
+    private void createChildren(SpeciesNode speciesNode, PathwayNode node, int level, List<PathwayNode> leaves) {
+        if (level >= depth) {
+            leaves.add(node);
+            return;
+        }
+        //Not every branch reaches the maximum depth
+        int children = 1 + random.nextInt(branching);
+        for (int i = 0; i < children; i++) {
+            long id = nextId++;
+            PathwayNode child = node.addChild(getStId(speciesNode, id), id, "Pathway " + id, random.nextInt(4) == 0);
+            pathwayLocation.add(id, child);
+            createChildren(speciesNode, child, level + 1, leaves);
+        }
+    }
+
+    private List<EntityNode> createProteins() {
+        List<EntityNode> human = new ArrayList<>();
+        for (int s = 0; s < species.size(); s++) {
+            SpeciesNode speciesNode = species.get(s);
+            List<String> identifiers = speciesIdentifiers.get(speciesNode);
+            for (int i = 0; i < proteinsPerSpecies; i++) {
+                String accession = String.format("%c%05d", (char) ('P' + s), i);
+                EntityNode node = entitiesContainer.add(new EntityNode(speciesNode, UNIPROT, accession, new ArrayList<Modification>()));
+                addPathways(node, lowerLevelPathways.get(speciesNode));
+                entitiesMap.add(accession, UNIPROT, node);
+                String geneName = String.format("GENE%d_%d", s, i);
+                entitiesMap.add(geneName, GENE_NAMES, node);
+                identifiers.add(accession);
+                identifiers.add(geneName);
+                if (s == 0) {
+                    human.add(node);
+                } else if (i < proteinsPerSpecies * orthologyRatio) {
+                    EntityNode from = human.get(i);
+                    from.addInferredTo(node);
+                    node.addInferredFrom(from);
+                }
+            }
+        }
+        return human;
+    }
+
+    private void createSmallMolecules() {
+        List<Long> pathways = new ArrayList<>();
+        for (List<Long> lowerLevel : lowerLevelPathways.values()) {
+            pathways.addAll(lowerLevel);
+        }
+        for (int i = 0; i < smallMolecules; i++) {
+            String identifier = "CHEBI:" + (10000 + i);
+            //Small molecules do not have species and take part in the pathways of any species
+            EntityNode node = entitiesContainer.add(new EntityNode(null, CHEBI, identifier, new ArrayList<Modification>()));
+            addPathways(node, pathways);
+            entitiesMap.add(identifier, CHEBI, node);
+            for (List<String> identifiers : speciesIdentifiers.values()) {
+                identifiers.add(identifier);
+            }
+        }
+    }
+
+    private void createInteractors(List<EntityNode> targets) {
+        for (int i = 0; i < interactors; i++) {
+            String accession = String.format("X%05d", i);
+            InteractorNode interactor = new InteractorNode(accession);
+            int interactions = 1 + random.nextInt(maxInteractionsPerInteractor);
+            for (int j = 0; j < interactions; j++) {
+                EntityNode target = targets.get(random.nextInt(targets.size()));
+                for (long pathwayId : target.getPathwayIds()) {
+                    interactor.addInteractsWith(pathwayId, target.getIdentifier());
+                    interactor.addPathwayReactions(pathwayId, target.getReactions(pathwayId));
+                }
+            }
+            if (interactor.getPathwayReactions() == null) continue;
+            interactorsMap.add(accession, UNIPROT, interactor);
+            interactorIdentifiers.add(accession);
+        }
+    }
+
+    //Most of the entities take part in a few pathways while a few of them take part in many (geometric distribution)
+    private void addPathways(EntityNode node, List<Long> pathways) {
+        int n = 1;
+        while (n < pathways.size() && random.nextDouble() < 0.6) n++;
+        for (int i = 0; i < n; i++) {
+            long pathwayId = pathways.get(random.nextInt(pathways.size()));
+            List<AnalysisReaction> reactions = new ArrayList<>(pathwayReactions.getElements(pathwayId));
+            Collections.shuffle(reactions, random);
+            node.addPathwayReactions(pathwayId, reactions.subList(0, 1 + random.nextInt(3)));
+        }
+    }
+
+    //Same as the resource counters set while building the data from the graph database
+    private void setCounters() {
+        DenseIds denseIds = new DenseIds(entitiesContainer, interactorsMap);
+        for (EntityNode node : entitiesContainer.getAllNodes()) {
+            MainIdentifier mainIdentifier = node.getIdentifier();
+            for (long pathwayId : node.getPathwayIds()) {
+                for (PathwayNode pathwayNode : pathwayLocation.getElements(pathwayId)) {
+                    pathwayNode.process(mainIdentifier, denseIds.getIdentifierId(mainIdentifier.getValue().getId()), node.getReactions(pathwayId));
+                }
+            }
+        }
+        for (InteractorNode interactor : interactorsMap.values()) {
+            InteractorIdentifier identifier = new InteractorIdentifier(interactor.getAccession());
+            int id = denseIds.getIdentifierId(identifier.getMapsTo());
+            LongMapSet<AnalysisReaction> reactions = interactor.getPathwayReactions();
+            for (long pathwayId : reactions.keys()) {
+                for (MainIdentifier mainIdentifier : interactor.getInteractsWith(pathwayId)) {
+                    for (PathwayNode pathwayNode : pathwayLocation.getElements(pathwayId)) {
+                        pathwayNode.processInteractor(identifier, id, mainIdentifier, reactions.getElements(pathwayId));
+                    }
+                }
+            }
+        }
+        for (PathwayHierarchy hierarchy : hierarchies.values()) {
+            hierarchy.setCountersAndCleanUp();
+        }
+    }
+
+    private static String getStId(SpeciesNode species, long id) {
+        return String.format("R-S%s-%d", species.getTaxID(), id);
+    }
+
+    public void setSpeciesCount(int speciesCount) {
+        this.speciesCount = speciesCount;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public void setBranching(int branching) {
+        this.branching = branching;
+    }
+
+    public void setSharedPathways(double sharedPathways) {
+        this.sharedPathways = sharedPathways;
+    }
+
+    public void setReactionsPerPathway(int reactionsPerPathway) {
+        this.reactionsPerPathway = reactionsPerPathway;
+    }
+
+    public void setProteinsPerSpecies(int proteinsPerSpecies) {
+        this.proteinsPerSpecies = proteinsPerSpecies;
+    }
+
+    public void setSmallMolecules(int smallMolecules) {
+        this.smallMolecules = smallMolecules;
+    }
+
+    public void setOrthologyRatio(double orthologyRatio) {
+        this.orthologyRatio = orthologyRatio;
+    }
+
+    public void setInteractors(int interactors) {
+        this.interactors = interactors;
+    }
+
+    public void setMaxInteractionsPerInteractor(int maxInteractionsPerInteractor) {
+        this.maxInteractionsPerInteractor = maxInteractionsPerInteractor;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+}
@@ -0,0 +1,75 @@
+package org.reactome.server.analysis.core.importer;
+
+import org.junit.Test;
+import org.reactome.server.analysis.core.importer.query.InteractionResult;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the interactions of an accession do not depend on the other accessions queried in the same
+ * batch (the rows of the batched query are simulated, filtering them as the query does)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class InteractorsBuilderTest {
+
+    //Rows of the query for every target: identifier, variant identifier and interactor
+    private static final String[][] ROWS = {
+            {"P12345", null, "Q11111"},
+            {"P12345", null, "Q22222"},
+            {"P12345", "P12345-2", "Q33333"},
+            {"P12345", "P12345-3", "Q44444"},
+            {"O00001", null, "O00001"},
+            {"O00002", "O00002-1", "P12345"}
+    };
+
+    private static final List<String> ACCESSIONS = Arrays.asList("P12345", "P12345-2", "P12345-3", "O00001", "O00002-1", "O00002", "X99999");
+
+    //Same filter as "WHERE t.identifier IN {accessions} OR t.variantIdentifier IN {accessions}"
+    private static List<InteractionResult> query(Collection<String> accessions) {
+        List<InteractionResult> rtn = new ArrayList<>();
+        for (String[] row : ROWS) {
+            if (accessions.contains(row[0]) || accessions.contains(row[1])) {
+                InteractionResult result = new InteractionResult(row[0], "IntAct", row[2], true, null, null);
+                result.setTargetVariant(row[1]);
+                rtn.add(result);
+            }
+        }
+        return rtn;
+    }
+
+    private static Map<String, List<String>> getInteractions(List<String> accessions, int batchSize) {
+        Map<String, List<InteractionResult>> interactions = new HashMap<>();
+        for (String accession : accessions) {
+            interactions.put(accession, new ArrayList<InteractionResult>());
+        }
+        for (int i = 0; i < accessions.size(); i += batchSize) {
+            List<String> batch = accessions.subList(i, Math.min(accessions.size(), i + batchSize));
+            InteractorsBuilder.addInteractions(interactions, batch, query(batch));
+        }
+        Map<String, List<String>> rtn = new TreeMap<>();
+        for (Map.Entry<String, List<InteractionResult>> entry : interactions.entrySet()) {
+            List<String> interactors = new ArrayList<>();
+            for (InteractionResult interaction : entry.getValue()) {
+                assertEquals(entry.getKey(), interaction.getTarget());
+                interactors.add(interaction.getIdentifier());
+            }
+            Collections.sort(interactors);
+            rtn.put(entry.getKey(), interactors);
+        }
+        return rtn;
+    }
+
+    @Test
+    public void testBatchMatchesSingleAccessions() {
+        Map<String, List<String>> single = getInteractions(ACCESSIONS, 1);
+        assertEquals(Arrays.asList("Q11111", "Q22222", "Q33333", "Q44444"), single.get("P12345"));
+        assertEquals(Collections.singletonList("Q33333"), single.get("P12345-2"));
+        assertEquals(Collections.<String>emptyList(), single.get("X99999"));
+        for (int batchSize = 2; batchSize <= ACCESSIONS.size(); batchSize++) {
+            assertEquals("batch size " + batchSize, single, getInteractions(ACCESSIONS, batchSize));
+        }
+    }
+}
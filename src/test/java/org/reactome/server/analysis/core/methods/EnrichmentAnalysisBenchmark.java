@@ -0,0 +1,73 @@
+package org.reactome.server.analysis.core.methods;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.reactome.server.analysis.core.data.AnalysisData;
+import org.reactome.server.analysis.core.data.SyntheticDataGenerator;
+import org.reactome.server.analysis.core.model.AnalysisIdentifier;
+import org.reactome.server.analysis.core.model.HierarchiesData;
+import org.reactome.server.analysis.core.model.SpeciesNode;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the over-representation analysis on synthetic data (see SyntheticDataGenerator) for different
+ * sample sizes, with and without interactors and projecting the sample of a different species to human.
+ * The data goes through the data file, so it is loaded in the same way than in the service
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class EnrichmentAnalysisBenchmark {
+
+    private static final long LOAD_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    @Param({"100", "1000", "20000"})
+    private int sampleSize;
+
+    @Param({"false", "true"})
+    private boolean interactors;
+
+    @Param({"false", "true"})
+    private boolean projection;
+
+    private EnrichmentAnalysis enrichmentAnalysis;
+    private Set<AnalysisIdentifier> sample;
+    private SpeciesNode speciesNode;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SyntheticDataGenerator generator = new SyntheticDataGenerator();
+        String fileName = generator.generateFile();
+
+        AnalysisData analysisData = new AnalysisData();
+        analysisData.setFileName(fileName);
+        long start = System.currentTimeMillis();
+        while (!analysisData.isReady(AnalysisData.DataSection.INTERACTORS)) {
+            if (System.currentTimeMillis() - start > LOAD_TIMEOUT) throw new IllegalStateException(fileName + " could not be loaded");
+            Thread.sleep(100);
+        }
+        enrichmentAnalysis = new EnrichmentAnalysis(analysisData);
+
+        //The projection analyses the identifiers of another species in human
+        sample = generator.getSample(sampleSize, 0.1, projection ? 1 : 0, interactors, 7L);
+        speciesNode = projection ? generator.getSpecies().get(0) : null;
+    }
+
+    @Benchmark
+    public HierarchiesData overRepresentation() {
+        return enrichmentAnalysis.overRepresentation(sample, speciesNode, interactors);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EnrichmentAnalysisBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,151 @@
+package org.reactome.server.analysis.core.model;
+
+import org.junit.Test;
+import org.reactome.server.analysis.core.data.SyntheticDataGenerator;
+import org.reactome.server.analysis.core.model.identifier.Identifier;
+import org.reactome.server.analysis.core.model.identifier.InteractorIdentifier;
+import org.reactome.server.analysis.core.model.identifier.MainIdentifier;
+import org.reactome.server.analysis.core.model.identifier.OtherIdentifier;
+import org.reactome.server.analysis.core.util.LongMapSet;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that propagating the hits with the compiled hierarchies and following the parent links of the
+ * pathway hierarchies produce the same HierarchiesData (entities with and without projection and interactors
+ * with and without reactions)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class HierarchiesDataTest {
+
+    private static DataContainer getContainer() {
+        SyntheticDataGenerator generator = new SyntheticDataGenerator();
+        generator.setSpeciesCount(2);
+        generator.setDepth(4);
+        generator.setBranching(3);
+        generator.setSharedPathways(0.2);
+        generator.setProteinsPerSpecies(500);
+        generator.setSmallMolecules(100);
+        generator.setInteractors(300);
+        return generator.generate();
+    }
+
+    //Summary of the result of a node (null when it has not been hit)
+    private static String describe(PathwayNodeData data) {
+        if (data == null) return null;
+        List<String> interactors = new ArrayList<>();
+        for (InteractorIdentifier interactor : data.getFoundInteractors()) {
+            interactors.add(interactor.getId());
+        }
+        Collections.sort(interactors);
+        return String.format("%d entities, %d interactors, %d reactions %s", data.getEntitiesFound(),
+                data.getInteractorsFound(), data.getReactionsFound(), interactors);
+    }
+
+    //Returns the number of hit pathway nodes
+    private static int assertSameResult(DataContainer container, HierarchiesData expected, HierarchiesData actual) {
+        int hit = 0;
+        for (long pathwayId : container.getPathwayLocation().keys()) {
+            for (PathwayNode node : container.getPathwayLocation().getElements(pathwayId)) {
+                String aux = describe(expected.getPathwayNodeData(node));
+                assertEquals(node.getStId(), aux, describe(actual.getPathwayNodeData(node)));
+                if (aux != null) hit++;
+            }
+        }
+        for (SpeciesNode species : container.getPathwayHierarchies().keySet()) {
+            assertEquals(species.getName(), describe(expected.getSpeciesData(species)), describe(actual.getSpeciesData(species)));
+        }
+        return hit;
+    }
+
+    //The compiled hierarchies are used as EnrichmentAnalysis does (with the dense ids precomputed in the nodes)
+    private static void checkEntities(boolean projection) {
+        DataContainer container = getContainer();
+        HierarchiesData tree = container.getHierarchiesData();
+        HierarchiesData compiled = container.getHierarchiesData();
+        SpeciesNode human = SpeciesNodeFactory.getHumanNode();
+        int projected = 0;
+        for (EntityNode entity : container.getEntitiesContainer().getAllNodes()) {
+            EntityNode node = projection ? entity.getProjection(human) : entity;
+            if (node == null || node.getIdentifier() == null) continue;
+            if (node != entity) projected++;
+            MainIdentifier mainIdentifier = node.getIdentifier();
+            Identifier identifier = new OtherIdentifier(mainIdentifier.getResource(), mainIdentifier.getValue());
+            for (long pathwayId : node.getPathwayIds()) {
+                compiled.process(pathwayId, identifier, mainIdentifier, node.getIdentifierId(), node.getReactionIds(pathwayId));
+                Set<PathwayNode> locations = container.getPathwayLocation().getElements(pathwayId);
+                if (locations == null) continue;
+                for (PathwayNode location : locations) {
+                    tree.process(location, identifier, mainIdentifier, node.getReactions(pathwayId));
+                }
+            }
+        }
+        assertTrue(assertSameResult(container, tree, compiled) > 0);
+        assertEquals(projection, projected > 0);
+    }
+
+    private static void process(DataContainer container, HierarchiesData tree, HierarchiesData compiled, long pathwayId,
+                                InteractorIdentifier identifier, MainIdentifier mainIdentifier, Set<AnalysisReaction> reactions) {
+        compiled.processInteractor(pathwayId, identifier, mainIdentifier, reactions);
+        for (PathwayNode node : container.getPathwayLocation().getElements(pathwayId)) {
+            tree.processInteractor(node, identifier, mainIdentifier, reactions);
+        }
+    }
+
+    private static void check(boolean withReactions) {
+        DataContainer container = getContainer();
+        HierarchiesData tree = container.getHierarchiesData();
+        HierarchiesData compiled = container.getHierarchiesData();
+        Set<AnalysisReaction> none = Collections.emptySet();
+        InteractorIdentifier identifier = null;
+        MainIdentifier mainIdentifier = null;
+        for (InteractorNode interactor : container.getInteractorsMap().values()) {
+            identifier = new InteractorIdentifier(interactor.getAccession());
+            LongMapSet<AnalysisReaction> pathwayReactions = interactor.getPathwayReactions();
+            for (long pathwayId : pathwayReactions.keys()) {
+                Set<AnalysisReaction> reactions = withReactions ? pathwayReactions.getElements(pathwayId) : none;
+                for (MainIdentifier interactsWith : interactor.getInteractsWith(pathwayId)) {
+                    mainIdentifier = interactsWith;
+                    process(container, tree, compiled, pathwayId, identifier, interactsWith, reactions);
+                }
+            }
+        }
+        //The interactors are in lower level pathways, so the top level ones are also hit to reach the species
+        assertNotNull(mainIdentifier);
+        for (PathwayHierarchy hierarchy : container.getPathwayHierarchies().values()) {
+            for (PathwayRoot root : hierarchy.getChildren()) {
+                process(container, tree, compiled, root.getPathwayId(), identifier, mainIdentifier, none);
+            }
+        }
+
+        int hit = assertSameResult(container, tree, compiled);
+        //Without reactions only the species are hit
+        assertEquals(withReactions, hit > 0);
+        assertNotNull(compiled.getSpeciesData(SpeciesNodeFactory.getHumanNode()));
+    }
+
+    @Test
+    public void testEntities() {
+        checkEntities(false);
+    }
+
+    @Test
+    public void testEntitiesWithProjection() {
+        checkEntities(true);
+    }
+
+    @Test
+    public void testInteractorsWithReactions() {
+        check(true);
+    }
+
+    @Test
+    public void testInteractorsWithoutReactions() {
+        check(false);
+    }
+}
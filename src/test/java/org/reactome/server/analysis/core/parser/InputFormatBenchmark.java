@@ -0,0 +1,80 @@
+package org.reactome.server.analysis.core.parser;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.reactome.server.analysis.core.parser.exception.ParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing of big expression files (sizeMB of content in memory, so the disk does not take part)
+ * either from a String or straight from the stream of bytes as it comes from the service upload
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class InputFormatBenchmark {
+
+    @Param({"100"})
+    private int sizeMB;
+
+    @Param({"1", "20"})
+    private int columns;
+
+    private String input;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(sizeMB << 20);
+        sb.append("#id");
+        for (int c = 1; c <= columns; c++) {
+            sb.append("\tsample").append(c);
+        }
+        sb.append('\n');
+        for (int row = 0; sb.length() < sizeMB << 20; row++) {
+            sb.append(row % 2 == 0 ? "ENSG" : "P").append(String.format("%011d", row));
+            for (int c = 0; c < columns; c++) {
+                //Every now and then a value is not available (one warning per missing value)
+                if (random.nextInt(10000) == 0) {
+                    sb.append("\tNA");
+                } else {
+                    sb.append('\t').append(String.format(Locale.ENGLISH, "%.4f", random.nextGaussian() * 4));
+                }
+            }
+            sb.append('\n');
+        }
+        input = sb.toString();
+        bytes = input.getBytes();
+    }
+
+    @Benchmark
+    public InputFormat parseString() throws IOException, ParserException {
+        InputFormat parser = new InputFormat();
+        parser.parseData(input);
+        return parser;
+    }
+
+    @Benchmark
+    public InputFormat parseStream() throws IOException, ParserException {
+        InputFormat parser = new InputFormat();
+        parser.parseData(new ByteArrayInputStream(bytes));
+        return parser;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(InputFormatBenchmark.class.getSimpleName()).build()).run();
+    }
+}
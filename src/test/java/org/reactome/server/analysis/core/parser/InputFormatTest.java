@@ -0,0 +1,167 @@
+package org.reactome.server.analysis.core.parser;
+
+import org.junit.Test;
+import org.reactome.server.analysis.core.model.AnalysisIdentifier;
+import org.reactome.server.analysis.core.parser.exception.ParserException;
+import org.reactome.server.analysis.core.parser.response.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the parser against the golden files in /parser: for every "case.txt" the header, identifiers
+ * (with their expression values), warnings and errors have to be the ones in "case.expected". The expected
+ * files were produced with the split and regular expressions based implementation of InputFormat
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class InputFormatTest {
+
+    private static final String[] CASES = {
+            "column_mismatch",
+            "delimiters_only_line",
+            "empty_file",
+            "header_after_blank_lines",
+            "header_only_hash",
+            "header_slash",
+            "header_tab",
+            "identifiers_only",
+            "leading_space_no_header",
+            "mixed_whitespace",
+            "no_header",
+            "no_header_two_labels",
+            "numbers",
+            "one_line",
+            "one_line_blank_lines",
+            "one_line_hash",
+            "one_line_numbers",
+            "potential_header"
+    };
+
+    private static String read(String resource) throws IOException {
+        InputStream is = InputFormatTest.class.getResourceAsStream("/parser/" + resource);
+        assertNotNull(resource + " not found", is);
+        try (Scanner scanner = new Scanner(is, "UTF-8").useDelimiter("\\A")) {
+            return scanner.hasNext() ? scanner.next() : "";
+        }
+    }
+
+    private static String render(InputFormat parser) {
+        StringBuilder sb = new StringBuilder("header");
+        for (String column : parser.getHeaderColumnNames()) {
+            sb.append("\t\"").append(column).append("\"");
+        }
+        sb.append("\n");
+        for (AnalysisIdentifier identifier : parser.getAnalysisIdentifierSet()) {
+            sb.append("identifier\t").append(identifier.getId()).append("\t").append(identifier.getExp()).append("\n");
+        }
+        for (String warning : parser.getWarningResponses()) {
+            sb.append("warning\t").append(warning).append("\n");
+        }
+        for (String error : parser.getErrorResponses()) {
+            sb.append("error\t").append(error).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static InputFormat parse(String input) throws IOException {
+        InputFormat parser = new InputFormat();
+        try {
+            parser.parseData(input);
+            assertFalse(parser.hasError());
+        } catch (ParserException e) {
+            assertEquals(parser.getErrorResponses(), e.getErrorMessages());
+        }
+        return parser;
+    }
+
+    private static InputFormat parseStream(String input) throws IOException {
+        InputFormat parser = new InputFormat();
+        try {
+            parser.parseData(new ByteArrayInputStream(input.getBytes()));
+        } catch (ParserException e) {
+            //The errors are checked with the rendered result
+        }
+        return parser;
+    }
+
+    @Test
+    public void testGoldenFiles() throws IOException {
+        for (String name : CASES) {
+            String input = read(name + ".txt");
+            String expected = read(name + ".expected");
+            assertEquals(name, expected, render(parse(input)));
+            assertEquals(name + " (stream)", expected, render(parseStream(input)));
+        }
+    }
+
+    @Test
+    public void testWindowsLineEndings() throws IOException {
+        for (String name : CASES) {
+            String input = read(name + ".txt").replace("\n", "\r\n");
+            assertEquals(name, read(name + ".expected"), render(parse(input)));
+        }
+    }
+
+    @Test
+    public void testLinesAcrossReadBuffers() throws IOException {
+        StringBuilder sb = new StringBuilder("#id\tv1\tv2\n");
+        for (int i = 1; i <= 20000; i++) {
+            sb.append("ID").append(i).append('\t').append(i).append(".5\t").append(i == 1234 ? "NA" : "-" + i).append('\n');
+        }
+        InputFormat parser = parse(sb.toString());
+        assertEquals(20000, parser.getAnalysisIdentifierSet().size());
+        assertEquals(20000, parser.getExpressionMatrix().getRows());
+        assertEquals(1, parser.getWarningResponses().size());
+        assertEquals(Response.getMessage(Response.INLINE_PROBLEM, 1235, 3), parser.getWarningResponses().get(0));
+
+        Iterator<AnalysisIdentifier> it = parser.getAnalysisIdentifierSet().iterator();
+        for (int i = 1; i <= 20000; i++) {
+            AnalysisIdentifier identifier = it.next();
+            assertEquals("ID" + i, identifier.getId());
+            assertEquals(i + 0.5, identifier.getExp(0), 0d);
+            assertEquals(i == 1234 ? Double.NaN : -i, identifier.getExp(1), 0d);
+        }
+    }
+
+    @Test
+    public void testLongSingleLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append("P").append(i).append(i % 2 == 0 ? ", " : ";\t");
+        }
+        InputFormat parser = parse(sb.toString());
+        assertEquals(50000, parser.getAnalysisIdentifierSet().size());
+        assertNull(parser.getExpressionMatrix());
+    }
+
+    @Test
+    public void testIsNumeric() {
+        InputFormat parser = new InputFormat();
+        for (String number : new String[]{"0", "-1", "1.5", "-0.0", "00012.5000", "123456789012345678901.25"}) {
+            assertTrue(number, parser.isNumeric(number));
+        }
+        for (String text : new String[]{"", "-", ".5", "1.", "+1", "1e5", " 1", "1.2.3", "--1", "NaN", "Infinity"}) {
+            assertFalse(text, parser.isNumeric(text));
+        }
+        assertFalse(parser.isNumeric(null));
+    }
+
+    @Test
+    public void testParseNumber() {
+        String[] numbers = {"0.1", "0.3", "-2.675", "1234567.000000000001", "9007199254740993", "0.000000000000001",
+                "3.14159265358979323846", "999999999999999.9", "100000000000000000000000"};
+        for (String number : numbers) {
+            assertEquals(number, Double.valueOf(number), InputFormat.parseNumber(number.toCharArray(), 0, number.length()), 0d);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.reactome.server.analysis.core.util;
+
+import cern.jet.random.Binomial;
+import cern.jet.random.engine.DRand;
+import cern.jet.random.engine.RandomEngine;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the p-value calculation of the Colt Binomial distribution (one object per p-value) with
+ * BinomialPValue (with and without the per-analysis memo) for a set of (ratio, sampleSize, found)
+ * similar to the ones in an analysis
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BinomialPValueBenchmark {
+
+    private static final int PATHWAYS = 2000;
+
+    @Param({"100", "1000", "10000"})
+    private int sampleSize;
+
+    private double[] ratios = new double[PATHWAYS];
+    private int[] found = new int[PATHWAYS];
+
+    private RandomEngine randomEngine = new DRand();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < PATHWAYS; i++) {
+            //Pathway sizes in the same order of magnitude than the ones in Reactome (few distinct values)
+            ratios[i] = (1 + random.nextInt(200)) / 10000d;
+            found[i] = 1 + random.nextInt(Math.max(1, (int) (ratios[i] * sampleSize * 3)));
+        }
+    }
+
+    @Benchmark
+    public double colt() {
+        double rtn = 0;
+        for (int i = 0; i < PATHWAYS; i++) {
+            Binomial binomial = new Binomial(sampleSize, ratios[i], randomEngine);
+            rtn += 1.0d - binomial.cdf(found[i] - 1);
+        }
+        return rtn;
+    }
+
+    @Benchmark
+    public double binomialPValue() {
+        double rtn = 0;
+        for (int i = 0; i < PATHWAYS; i++) {
+            rtn += BinomialPValue.calculate(ratios[i], sampleSize, found[i]);
+        }
+        return rtn;
+    }
+
+    @Benchmark
+    public double binomialPValueMemo() {
+        BinomialPValue.Memo memo = new BinomialPValue.Memo();
+        double rtn = 0;
+        for (int i = 0; i < PATHWAYS; i++) {
+            rtn += memo.calculate(ratios[i], sampleSize, found[i]);
+        }
+        return rtn;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BinomialPValueBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,64 @@
+package org.reactome.server.analysis.core.util;
+
+import cern.jet.random.Binomial;
+import cern.jet.random.engine.DRand;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the p-values of BinomialPValue against the ones calculated with the Colt Binomial distribution
+ * (the implementation previously used in MathUtilities)
+ *
+ * @author Antonio Fabregat <fabregat@ebi.ac.uk>
+ */
+public class BinomialPValueTest {
+
+    private static final int[] SAMPLE_SIZES = {1, 2, 5, 10, 27, 100, 512, 1000, 5000, 20000};
+    private static final double[] RATIOS = {1e-5, 1e-4, 0.001, 0.01, 0.05, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99};
+
+    private static double colt(double ratio, int sampleSize, int success) {
+        if (ratio == 1.d) return 0d;
+        Binomial binomial = new Binomial(sampleSize, ratio, new DRand());
+        if (success == 0) success = 1;
+        return 1.0d - binomial.cdf(success - 1);
+    }
+
+    @Test
+    public void testAgainstColt() {
+        for (int sampleSize : SAMPLE_SIZES) {
+            for (double ratio : RATIOS) {
+                for (int success = 0; success <= sampleSize; success += Math.max(1, sampleSize / 50)) {
+                    double expected = colt(ratio, sampleSize, success);
+                    double actual = BinomialPValue.calculate(ratio, sampleSize, success);
+                    String msg = String.format("ratio=%s sampleSize=%d success=%d", ratio, sampleSize, success);
+                    //Colt calculates 1 - cdf, so its small p-values are only accurate in absolute terms
+                    assertEquals(msg, expected, actual, 1e-12);
+                    if (expected > 1e-6) {
+                        assertEquals(msg, 1d, actual / expected, 1e-8);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBoundaries() {
+        assertEquals(0d, BinomialPValue.calculate(1d, 10, 3), 0d);
+        assertEquals(BinomialPValue.calculate(0.3, 10, 1), BinomialPValue.calculate(0.3, 10, 0), 0d);
+        assertEquals(0d, BinomialPValue.calculate(0.3, 10, 11), 0d);
+        assertEquals(1d - Math.pow(0.7, 10), BinomialPValue.calculate(0.3, 10, 1), 1e-15);
+        assertEquals(Math.pow(0.3, 10), BinomialPValue.calculate(0.3, 10, 10), 1e-20);
+    }
+
+    @Test
+    public void testMemo() {
+        BinomialPValue.Memo memo = new BinomialPValue.Memo();
+        double pValue = memo.calculate(0.05, 100, 12);
+        assertEquals(BinomialPValue.calculate(0.05, 100, 12), pValue, 0d);
+        assertEquals(pValue, memo.calculate(0.05, 100, 12), 0d);
+        memo.calculate(0.05, 100, 13);
+        assertTrue(memo.size() == 2);
+    }
+}